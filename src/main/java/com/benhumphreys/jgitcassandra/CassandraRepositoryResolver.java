@@ -16,11 +16,16 @@
  */
 package com.benhumphreys.jgitcassandra;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
 import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
 import org.eclipse.jgit.lib.Repository;
@@ -30,46 +35,187 @@ import org.eclipse.jgit.transport.resolver.RepositoryResolver;
 import org.eclipse.jgit.transport.resolver.ServiceNotAuthorizedException;
 import org.eclipse.jgit.transport.resolver.ServiceNotEnabledException;
 
+import com.benhumphreys.jgitcassandra.repo.CacheStatsMXBean;
 import com.benhumphreys.jgitcassandra.repo.CassandraRepository;
 import com.benhumphreys.jgitcassandra.store.StoreConnection;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 /**
  * Custom implementation of a RepositoryResolver for Cassandra based
  * repositories.
+ * <p/>
+ * Open repositories are kept in a cache, bounded both in size and in how
+ * long a repository may go unused, with least recently used repositories
+ * evicted first. A repository is closed when it is evicted, releasing its
+ * cached refs and packs once any clients still using it have finished.
+ * Concurrent requests for a repository which is not open wait for a single
+ * instance to be loaded.
+ * <p/>
+ * A reference to the repository is taken before it is used, and only if it
+ * has not been closed by an eviction in the meantime. A repository which
+ * is already open is then checked for ref changes made by other servers
+ * before it is returned, which costs a single row read while its refs are
+ * unchanged.
+ * <p/>
+ * The cache's hit and eviction counts are exposed through JMX once
+ * registered with registerMBean().
  */
 final class CassandraRepositoryResolver implements
-        RepositoryResolver<DaemonClient> {
-    private final StoreConnection storeconn;
+        RepositoryResolver<DaemonClient>, CacheStatsMXBean {
+    /**
+     * Name under which registerMBean() registers the resolver
+     */
+    static final String MBEAN_NAME =
+            "com.benhumphreys.jgitcassandra:type=RepositoryCache";
+
+    /**
+     * Default maximum number of repositories held open
+     */
+    static final long DEFAULT_MAX_REPOSITORIES = 1000;
 
     /**
-     * Maps repository names to repository instances
+     * Default time, in seconds, an unused repository is held open
      */
-    private final static Map<String, CassandraRepository> repositories =
-            new HashMap<String, CassandraRepository>();
+    static final long DEFAULT_IDLE_SECONDS = 600;
+
+    /**
+     * Maps sanitised repository names to repository instances
+     */
+    private final LoadingCache<String, CassandraRepository> repositories;
 
     public CassandraRepositoryResolver(StoreConnection conn) {
-        storeconn = conn;
+        this(conn, DEFAULT_MAX_REPOSITORIES, DEFAULT_IDLE_SECONDS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param conn            connection to the Cassandra data store
+     * @param maxRepositories maximum number of repositories held open
+     * @param idleSeconds     time after which an unused repository is closed
+     */
+    public CassandraRepositoryResolver(final StoreConnection conn,
+                                       long maxRepositories,
+                                       long idleSeconds) {
+        repositories = CacheBuilder.newBuilder()
+                .maximumSize(maxRepositories)
+                .expireAfterAccess(idleSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .removalListener(new RemovalListener<String, CassandraRepository>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String,
+                            CassandraRepository> notification) {
+                        notification.getValue().close();
+                    }
+                })
+                .build(new CacheLoader<String, CassandraRepository>() {
+                    @Override
+                    public CassandraRepository load(String name)
+                            throws Exception {
+                        return new CassandraRepository(
+                                new DfsRepositoryDescription(name), conn);
+                    }
+                });
     }
 
+    /**
+     * Returns the named repository, opening it if it is not already open.
+     * <p/>
+     * The caller must close the repository when done with it. This does not
+     * close the cached instance, which remains open until evicted.
+     */
     @Override
     public Repository open(DaemonClient client, String name)
             throws RepositoryNotFoundException,
             ServiceNotAuthorizedException, ServiceNotEnabledException,
             ServiceMayNotContinueException {
-        CassandraRepository repo = repositories.get(name);
-        if (repo == null) {
-            try {
-                repo = new CassandraRepository(
-                        new DfsRepositoryDescription(sanitiseName(name)),
-                        storeconn);
-            } catch (Exception e) {
-                throw new ServiceMayNotContinueException(e);
-            }
-            repositories.put(name, repo);
+        final String key;
+        try {
+            key = sanitiseName(name);
+        } catch (IllegalArgumentException e) {
+            throw new RepositoryNotFoundException(name, e);
+        }
+        CassandraRepository repo;
+        try {
+            // The instance may be evicted, and closed, between the lookup and
+            // taking a reference to it. It has then been removed from the
+            // cache, so the next lookup loads a new instance.
+            do {
+                repo = repositories.get(key);
+            } while (!repo.tryIncrementOpen());
+        } catch (ExecutionException e) {
+            throw new ServiceMayNotContinueException(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw new ServiceMayNotContinueException(e.getCause());
+        }
+        try {
+            repo.refreshIfChanged();
+        } catch (IOException e) {
+            repo.close();
+            throw new ServiceMayNotContinueException(e);
         }
         return repo;
     }
 
+    /**
+     * Returns statistics for the repository cache, including the number of
+     * hits, misses and evictions.
+     */
+    public CacheStats getCacheStats() {
+        return repositories.stats();
+    }
+
+    /**
+     * @return the number of repositories currently held open
+     */
+    public long size() {
+        return repositories.size();
+    }
+
+    /**
+     * Registers this resolver with the platform MBean server under
+     * MBEAN_NAME, exposing the statistics of its repository cache through
+     * JMX.
+     *
+     * @throws JMException if the resolver could not be registered, e.g.
+     *                     because another is already registered
+     */
+    public void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                new ObjectName(MBEAN_NAME));
+    }
+
+    @Override
+    public long getSize() {
+        return size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return repositories.stats().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return repositories.stats().missCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        return repositories.stats().hitRate();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return repositories.stats().evictionCount();
+    }
+
     /**
      * Trims the ".git" from the end of the name and sanitises.
      * <p/>
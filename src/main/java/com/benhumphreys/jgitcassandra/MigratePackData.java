@@ -0,0 +1,89 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.benhumphreys.jgitcassandra.store.PackDataMigration;
+import com.benhumphreys.jgitcassandra.store.StoreConnection;
+
+/**
+ * Copies pack data stored a file per row to the chunked layout, which the
+ * Server refuses to start without. Servers should be stopped while this
+ * runs.
+ * <p/>
+ * Usage: MigratePackData [--keyspace=NAME] NODE [NODE ...]
+ * <p/>
+ * Every keyspace holding pack data in the old layout is migrated, unless
+ * --keyspace is given. Exits with a non-zero status if any keyspace could
+ * not be migrated.
+ */
+public class MigratePackData {
+
+    public static void main(String[] args) {
+        List<String> nodes = new ArrayList<String>();
+        String keyspace = null;
+        for (String arg : args) {
+            if (arg.startsWith("--keyspace=")) {
+                keyspace = arg.substring(arg.indexOf('=') + 1);
+            } else if (arg.startsWith("--")) {
+                System.err.println("Unknown option: " + arg);
+                System.exit(1);
+            } else {
+                nodes.add(arg);
+            }
+        }
+        if (nodes.isEmpty()) {
+            System.err.println("Must specify one or more Cassandra nodes");
+            System.exit(1);
+        }
+
+        StoreConnection conn = new StoreConnection(nodes);
+        int failures = 0;
+        try {
+            PackDataMigration migration =
+                    new PackDataMigration(conn.getSession());
+            List<String> keyspaces = keyspace != null
+                    ? Collections.singletonList(keyspace)
+                    : migration.findKeyspaces();
+            for (String ks : keyspaces) {
+                try {
+                    long count = migration.migrate(ks);
+                    System.out.printf("Migrated %d files in keyspace %s%n",
+                            count, ks);
+                } catch (IOException e) {
+                    // Carry on with the other keyspaces, as a migration may
+                    // safely be run again
+                    System.err.println("Migration of keyspace " + ks
+                            + " failed: " + e.getMessage());
+                    failures++;
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Migration failed: " + e.getMessage());
+            failures++;
+        } finally {
+            conn.close();
+        }
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+}
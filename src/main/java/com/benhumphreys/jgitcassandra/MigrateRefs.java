@@ -0,0 +1,87 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.benhumphreys.jgitcassandra.store.RefMigration;
+import com.benhumphreys.jgitcassandra.store.StoreConnection;
+
+/**
+ * Copies existing refs to the binary encoding used by the Server's
+ * --binary-ref-ids option. Servers should be stopped while this runs.
+ * <p/>
+ * Usage: MigrateRefs [--keyspace=NAME] NODE [NODE ...]
+ * <p/>
+ * Every keyspace holding a refs table is migrated, whether it holds a single
+ * repository or is shared by all of them, unless --keyspace is given. Exits
+ * with a non-zero status if any keyspace could not be migrated.
+ */
+public class MigrateRefs {
+
+    public static void main(String[] args) {
+        List<String> nodes = new ArrayList<String>();
+        String keyspace = null;
+        for (String arg : args) {
+            if (arg.startsWith("--keyspace=")) {
+                keyspace = arg.substring(arg.indexOf('=') + 1);
+            } else if (arg.startsWith("--")) {
+                System.err.println("Unknown option: " + arg);
+                return;
+            } else {
+                nodes.add(arg);
+            }
+        }
+        if (nodes.isEmpty()) {
+            System.err.println("Must specify one or more Cassandra nodes");
+            return;
+        }
+
+        StoreConnection conn = new StoreConnection(nodes);
+        int failures = 0;
+        try {
+            RefMigration migration = new RefMigration(conn.getSession());
+            List<String> keyspaces = keyspace != null
+                    ? Collections.singletonList(keyspace)
+                    : migration.findKeyspaces();
+            for (String ks : keyspaces) {
+                try {
+                    long count = migration.migrate(ks);
+                    System.out.printf("Migrated %d refs in keyspace %s%n",
+                            count, ks);
+                } catch (IOException e) {
+                    // Carry on with the other keyspaces, as a migration may
+                    // safely be run again
+                    System.err.println("Migration of keyspace " + ks
+                            + " failed: " + e.getMessage());
+                    failures++;
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Migration failed: " + e.getMessage());
+            failures++;
+        } finally {
+            conn.close();
+        }
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -16,38 +16,418 @@
  */
 package com.benhumphreys.jgitcassandra;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.JMException;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsBlockCache;
+import org.eclipse.jgit.internal.storage.dfs.DfsBlockCacheConfig;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.transport.Daemon;
+import org.eclipse.jgit.transport.DaemonClient;
+import org.eclipse.jgit.transport.PostReceiveHook;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.resolver.ReceivePackFactory;
 
+import com.benhumphreys.jgitcassandra.repo.DiskCache;
+import com.benhumphreys.jgitcassandra.repo.GcService;
+import com.benhumphreys.jgitcassandra.repo.PackIndexCache;
+import com.benhumphreys.jgitcassandra.store.ObjStore;
+import com.benhumphreys.jgitcassandra.store.Paging;
 import com.benhumphreys.jgitcassandra.store.StoreConnection;
 
 /**
  * A simple server that provides "git" protocol access to the repositories.
+ * <p/>
+ * Usage: Server [--option=value ...] NODE [NODE ...]
+ * <p/>
+ * Options:
+ * <ul>
+ * <li>--shared-keyspace=NAME: store all repositories in the keyspace NAME,
+ * partitioned by repository name, rather than one keyspace per
+ * repository</li>
+ * <li>--binary-ref-ids=true: store object ids in refs as 20 byte blobs
+ * rather than hex strings. Existing refs must first be copied with
+ * MigrateRefs (default false)</li>
+ * <li>--repository-cache-size=N: maximum number of repositories held open
+ * (default 1000)</li>
+ * <li>--repository-cache-idle=SECONDS: time after which an unused
+ * repository is closed (default 600)</li>
+ * <li>--block-cache-size=BYTES: memory used to cache pack and index data,
+ * shared by all repositories (default 256 MiB)</li>
+ * <li>--block-cache-block-size=BYTES: size of the blocks read into the
+ * cache, a power of two and a multiple of the store's chunk size (default
+ * 64 KiB, the chunk size)</li>
+ * <li>--index-cache-size=BYTES: memory outside the Java heap used to cache
+ * pack index files, shared by all repositories (default 64 MiB, 0 to
+ * disable)</li>
+ * <li>--disk-cache-dir=PATH: keep local copies of pack files in PATH, so
+ * they are read from Cassandra only once (default disabled)</li>
+ * <li>--disk-cache-size=BYTES: maximum total size of the local copies
+ * (default 10 GiB)</li>
+ * <li>--fetch-size-refs=N, --fetch-size-ref-log=N, --fetch-size-packs=N,
+ * --fetch-size-files=N: rows read in the first page of a scan of refs, of
+ * the log of modified refs, of a repository's packs, and of a file's chunks
+ * (defaults 100, 1000, 100 and 100)</li>
+ * <li>--page-bytes=BYTES: after the first page, size pages to hold about
+ * this many bytes of rows, measured as they are read (default 1 MiB, 0 to
+ * always use the fetch sizes)</li>
+ * <li>--gc-threads=N: number of repositories compacted or garbage collected
+ * at once, in the background after a push (default 1, 0 to disable). Runs
+ * are counted in the GcService MBean, and given up to five minutes to
+ * finish when the server exits. The trash is purged whatever the number
+ * of threads</li>
+ * <li>--gc-compact-packs=N: compact a repository once it has this many
+ * small packs (default 10)</li>
+ * <li>--gc-small-pack-size=BYTES: size below which a pack is small (default
+ * 5 MiB)</li>
+ * <li>--gc-packs=N: garbage collect a repository once it has this many packs
+ * (default 50)</li>
+ * <li>--gc-bytes=BYTES: garbage collect a repository once its packs not
+ * written by a previous collection hold this many bytes (default 1 GiB)</li>
+ * <li>--gc-grace-period=SECONDS: time for which the files of packs replaced
+ * or rolled back are kept before being deleted (default 3600)</li>
+ * <li>--gc-purge-interval=SECONDS: time between deletions of the files of
+ * the packs trashed in every repository, whether or not it is garbage
+ * collected (default 3600, 0 to disable)</li>
+ * </ul>
  */
 public class Server {
+    /**
+     * Default size of the block cache, in bytes
+     */
+    private static final long DEFAULT_BLOCK_CACHE_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * Time given to garbage collections in progress to finish on exit, in
+     * milliseconds
+     */
+    private static final long GC_SHUTDOWN_TIMEOUT =
+            TimeUnit.MINUTES.toMillis(5);
 
     public static void main(String[] args) {
+        List<String> nodes = new ArrayList<String>();
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int idx = arg.indexOf('=');
+                if (idx < 0) {
+                    System.err.println("Option must be of the form "
+                            + "--option=value: " + arg);
+                    return;
+                }
+                options.put(arg.substring(2, idx), arg.substring(idx + 1));
+            } else {
+                nodes.add(arg);
+            }
+        }
+
         // Create the Cassandra Store Connection
-        if (args.length < 1) {
+        if (nodes.isEmpty()) {
             System.err.println("Must specify one or more Cassandra nodes");
             return;
         }
-        StoreConnection conn = new StoreConnection(Arrays.asList(args));
+        String sharedKeyspace = options.remove("shared-keyspace");
+        if (sharedKeyspace != null && !sharedKeyspace.matches("^[a-zA-Z0-9_]+$")) {
+            System.err.println("Invalid keyspace name: " + sharedKeyspace);
+            return;
+        }
+        String binaryRefIds = options.remove("binary-ref-ids");
+        if (binaryRefIds != null && !binaryRefIds.equals("true")
+                && !binaryRefIds.equals("false")) {
+            System.err.println("Invalid value for --binary-ref-ids: "
+                    + binaryRefIds);
+            return;
+        }
+        long cacheSize;
+        long cacheIdle;
+        long diskCacheSize;
+        Paging paging = new Paging();
+        long gcThreads;
+        long gcCompactPacks;
+        long gcSmallPackSize;
+        long gcPacks;
+        long gcBytes;
+        long gcGracePeriod;
+        long gcPurgeInterval;
+        String diskCacheDir = options.remove("disk-cache-dir");
+        try {
+            cacheSize = longOption(options, "repository-cache-size",
+                    CassandraRepositoryResolver.DEFAULT_MAX_REPOSITORIES);
+            cacheIdle = longOption(options, "repository-cache-idle",
+                    CassandraRepositoryResolver.DEFAULT_IDLE_SECONDS);
+            configureBlockCache(
+                    longOption(options, "block-cache-size",
+                            DEFAULT_BLOCK_CACHE_SIZE),
+                    longOption(options, "block-cache-block-size",
+                            ObjStore.CHUNK_SIZE));
+            PackIndexCache.reconfigure(longOption(options, "index-cache-size",
+                    PackIndexCache.DEFAULT_LIMIT));
+            diskCacheSize = longOption(options, "disk-cache-size",
+                    DiskCache.DEFAULT_LIMIT);
+            configurePaging(options, paging);
+            gcThreads = longOption(options, "gc-threads", 1);
+            gcCompactPacks = longOption(options, "gc-compact-packs",
+                    GcService.DEFAULT_COMPACT_PACK_COUNT);
+            gcSmallPackSize = longOption(options, "gc-small-pack-size",
+                    GcService.DEFAULT_SMALL_PACK_SIZE);
+            gcPacks = longOption(options, "gc-packs",
+                    GcService.DEFAULT_GC_PACK_COUNT);
+            gcBytes = longOption(options, "gc-bytes",
+                    GcService.DEFAULT_GC_BYTES);
+            gcGracePeriod = longOption(options, "gc-grace-period",
+                    TimeUnit.MILLISECONDS.toSeconds(
+                            GcService.DEFAULT_GRACE_PERIOD));
+            gcPurgeInterval = longOption(options, "gc-purge-interval",
+                    TimeUnit.MILLISECONDS.toSeconds(
+                            GcService.DEFAULT_PURGE_INTERVAL));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        if (!options.isEmpty()) {
+            System.err.println("Unknown options: " + options.keySet());
+            return;
+        }
+        if (diskCacheDir != null) {
+            try {
+                DiskCache.reconfigure(new File(diskCacheDir), diskCacheSize);
+            } catch (IOException e) {
+                System.err.println("Failed to create disk cache: "
+                        + e.getMessage());
+                return;
+            }
+        }
+        StoreConnection conn = new StoreConnection(nodes, sharedKeyspace,
+                Boolean.parseBoolean(binaryRefIds), paging);
+        // Refuse to serve keyspaces which have not yet been migrated, whose
+        // refs would otherwise appear to be missing, or whose packs would
+        // fail to be read
+        try {
+            List<String> unchunked = conn.getSchemaManager()
+                    .findUnchunked(sharedKeyspace);
+            if (!unchunked.isEmpty()) {
+                System.err.println("Pack data must be copied with "
+                        + "MigratePackData, in keyspaces: " + unchunked);
+                conn.close();
+                System.exit(1);
+            }
+            List<String> unmigrated = Boolean.parseBoolean(binaryRefIds)
+                    ? conn.getSchemaManager().findUnmigrated(sharedKeyspace)
+                    : Collections.<String>emptyList();
+            if (!unmigrated.isEmpty()) {
+                System.err.println("Refs must be copied with MigrateRefs "
+                        + "before using --binary-ref-ids, in keyspaces: "
+                        + unmigrated);
+                conn.close();
+                System.exit(1);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to check schema: " + e.getMessage());
+            conn.close();
+            System.exit(1);
+        }
+        if (sharedKeyspace != null) {
+            // Create the shared schema now, rather than on the first request
+            try {
+                conn.getSchemaManager().ensureSchema(sharedKeyspace, true);
+            } catch (IOException e) {
+                System.err.println("Failed to create schema: "
+                        + e.getMessage());
+                conn.close();
+                System.exit(1);
+            }
+        }
 
         // Start the Git server
-        Daemon server = new Daemon(new InetSocketAddress(9418));
+        final Daemon server = new Daemon(new InetSocketAddress(9418));
         boolean uploadsEnabled = true;
         server.getService("git-receive-pack").setEnabled(uploadsEnabled);
         //server.setRepositoryResolver(new InMemoryRepositoryResolver()); // For testing
-        server.setRepositoryResolver(new CassandraRepositoryResolver(conn));
+        CassandraRepositoryResolver resolver =
+                new CassandraRepositoryResolver(conn, cacheSize, cacheIdle);
+        try {
+            resolver.registerMBean();
+        } catch (JMException e) {
+            System.err.println("Failed to register repository cache metrics: "
+                    + e.getMessage());
+        }
+        server.setRepositoryResolver(resolver);
+        try {
+            PackIndexCache.registerMBean();
+        } catch (JMException e) {
+            System.err.println("Failed to register index cache metrics: "
+                    + e.getMessage());
+        }
+        GcService gc = null;
+        if (gcThreads > 0 || gcPurgeInterval > 0) {
+            gc = new GcService(conn,
+                    (int) Math.min(gcThreads, Integer.MAX_VALUE));
+            gc.setCompactPackCount((int) Math.min(gcCompactPacks,
+                    Integer.MAX_VALUE));
+            gc.setSmallPackSize(gcSmallPackSize);
+            gc.setGcPackCount((int) Math.min(gcPacks, Integer.MAX_VALUE));
+            gc.setGcBytes(gcBytes);
+            gc.setGracePeriod(TimeUnit.SECONDS.toMillis(gcGracePeriod));
+            if (gcPurgeInterval > 0) {
+                gc.startPurging(TimeUnit.SECONDS.toMillis(gcPurgeInterval));
+            }
+            try {
+                gc.registerMBean();
+            } catch (JMException e) {
+                System.err.println("Failed to register GC metrics: "
+                        + e.getMessage());
+            }
+            if (gcThreads > 0) {
+                server.setReceivePackFactory(receivePackFactory(server, gc));
+            }
+        }
+        Runtime.getRuntime().addShutdownHook(shutdownHook(server, gc, conn));
         try {
             server.start();
         } catch (IOException e) {
-            System.out.println("Failed to start server: " + e.getMessage());
+            System.err.println("Failed to start server: " + e.getMessage());
             e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Returns a hook which stops the server on exit, and gives any garbage
+     * collections in progress up to GC_SHUTDOWN_TIMEOUT to finish before the
+     * connection is closed.
+     *
+     * @param gc the GC service, or null if there is none
+     */
+    private static Thread shutdownHook(final Daemon server,
+                                       final GcService gc,
+                                       final StoreConnection conn) {
+        return new Thread("shutdown") {
+            @Override
+            public void run() {
+                server.stop();
+                if (gc != null) {
+                    try {
+                        if (!gc.shutdown(GC_SHUTDOWN_TIMEOUT,
+                                TimeUnit.MILLISECONDS)) {
+                            System.err.println("Garbage collection still in "
+                                    + "progress at exit");
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                conn.close();
+            }
+        };
+    }
+
+    /**
+     * Configures JGit's block cache, which holds pack and index data read
+     * from the store and is shared by all repositories.
+     * <p/>
+     * The store keeps files as chunks of ObjStore.CHUNK_SIZE bytes, so the
+     * block size must be a multiple of this in order that each block is read
+     * from whole chunks. JGit also requires it to be a power of two.
+     *
+     * @throws IllegalArgumentException if the configuration is invalid
+     */
+    private static void configureBlockCache(long limit, long blockSize) {
+        if (blockSize == 0 || blockSize % ObjStore.CHUNK_SIZE != 0
+                || Long.bitCount(blockSize) != 1
+                || blockSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Block cache block size must "
+                    + "be a power of two and a multiple of "
+                    + ObjStore.CHUNK_SIZE + ": " + blockSize);
+        }
+        if (limit < blockSize) {
+            throw new IllegalArgumentException("Block cache size must be at "
+                    + "least the block size: " + limit);
+        }
+        DfsBlockCache.reconfigure(new DfsBlockCacheConfig()
+                .setBlockLimit(limit)
+                .setBlockSize((int) blockSize));
+    }
+
+    /**
+     * Returns a factory for the receive-pack service which runs "hook" after
+     * each push, and otherwise configures ReceivePack as the Daemon's own
+     * factory does.
+     */
+    private static ReceivePackFactory<DaemonClient> receivePackFactory(
+            final Daemon server, final PostReceiveHook hook) {
+        return new ReceivePackFactory<DaemonClient>() {
+            @Override
+            public ReceivePack create(DaemonClient req, Repository db) {
+                ReceivePack rp = new ReceivePack(db);
+                InetAddress peer = req.getRemoteAddress();
+                String host = peer.getCanonicalHostName();
+                if (host == null) {
+                    host = peer.getHostAddress();
+                }
+                rp.setRefLogIdent(new PersonIdent("anonymous",
+                        "anonymous@" + host));
+                rp.setTimeout(server.getTimeout());
+                rp.setPostReceiveHook(hook);
+                return rp;
+            }
+        };
+    }
+
+    /**
+     * Configures the fetch sizes of store scans from the --fetch-size-*
+     * and --page-bytes options.
+     *
+     * @throws IllegalArgumentException if an option is invalid
+     */
+    private static void configurePaging(Map<String, String> options,
+                                        Paging paging) {
+        for (Paging.Operation op : Paging.Operation.values()) {
+            String name = "fetch-size-"
+                    + op.name().toLowerCase().replace('_', '-');
+            long size = longOption(options, name, op.getDefaultFetchSize());
+            if (size == 0 || size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Invalid value for --"
+                        + name + ": " + size);
+            }
+            paging.setFetchSize(op, (int) size);
+        }
+        paging.setPageBytes(longOption(options, "page-bytes",
+                Paging.DEFAULT_PAGE_BYTES));
+    }
+
+    /**
+     * Removes the option "name" from "options" and parses its value.
+     *
+     * @param defaultValue the value returned if the option is not present
+     * @throws IllegalArgumentException if the value is not a non-negative
+     *                                  integer
+     */
+    private static long longOption(Map<String, String> options, String name,
+                                   long defaultValue) {
+        String value = options.remove(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long n = Long.parseLong(value);
+            if (n >= 0) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through
         }
+        throw new IllegalArgumentException("Invalid value for --" + name
+                + ": " + value);
     }
 }
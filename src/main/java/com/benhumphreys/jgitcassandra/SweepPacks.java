@@ -0,0 +1,105 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.benhumphreys.jgitcassandra.repo.GcService;
+import com.benhumphreys.jgitcassandra.store.PackSweeper;
+import com.benhumphreys.jgitcassandra.store.StoreConnection;
+
+/**
+ * Moves pack files with no pack description to the trash, then deletes the
+ * files of every pack trashed more than the grace period ago. May be run
+ * while servers are running.
+ * <p/>
+ * Usage: SweepPacks [--shared-keyspace=NAME] [--grace-period=SECONDS] NODE
+ * [NODE ...]
+ * <p/>
+ * Every keyspace holding a single repository is swept, unless
+ * --shared-keyspace is given, in which case only that keyspace is. The grace
+ * period defaults to that of the servers' garbage collection. Packs written
+ * to within the last day are left alone, as they may still be being
+ * written, and the files found by this sweep are kept for a day longer than
+ * the grace period, so are deleted by a later sweep or by the servers'
+ * periodic purge. Exits with a non-zero status if the sweep fails.
+ */
+public class SweepPacks {
+
+    public static void main(String[] args) {
+        List<String> nodes = new ArrayList<String>();
+        String sharedKeyspace = null;
+        long graceSeconds = TimeUnit.MILLISECONDS.toSeconds(
+                GcService.DEFAULT_GRACE_PERIOD);
+        for (String arg : args) {
+            if (arg.startsWith("--shared-keyspace=")) {
+                sharedKeyspace = arg.substring(arg.indexOf('=') + 1);
+            } else if (arg.startsWith("--grace-period=")) {
+                try {
+                    graceSeconds = Long.parseLong(
+                            arg.substring(arg.indexOf('=') + 1));
+                } catch (NumberFormatException e) {
+                    graceSeconds = -1;
+                }
+                if (graceSeconds < 0) {
+                    System.err.println("Invalid grace period: " + arg);
+                    return;
+                }
+            } else if (arg.startsWith("--")) {
+                System.err.println("Unknown option: " + arg);
+                return;
+            } else {
+                nodes.add(arg);
+            }
+        }
+        if (nodes.isEmpty()) {
+            System.err.println("Must specify one or more Cassandra nodes");
+            return;
+        }
+
+        StoreConnection conn = new StoreConnection(nodes, sharedKeyspace);
+        boolean failed = false;
+        try {
+            PackSweeper sweeper = new PackSweeper(conn.getSession());
+            List<String> keyspaces = sharedKeyspace != null
+                    ? Collections.singletonList(sharedKeyspace)
+                    : sweeper.findKeyspaces(false);
+            for (String ks : keyspaces) {
+                long trashed = sweeper.sweep(ks);
+                long purged = sweeper.purge(conn, ks,
+                        TimeUnit.SECONDS.toMillis(graceSeconds));
+                System.out.printf("Keyspace %s: trashed %d packs, deleted "
+                        + "the files of %d packs%n", ks, trashed, purged);
+            }
+        } catch (IOException e) {
+            System.err.println("Sweep failed: " + e.getMessage());
+            failed = true;
+        } catch (RuntimeException e) {
+            System.err.println("Sweep failed: " + e.getMessage());
+            failed = true;
+        } finally {
+            conn.close();
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+}
@@ -16,8 +16,14 @@
  */
 package com.benhumphreys.jgitcassandra;
 
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
 import org.eclipse.jgit.lib.Ref;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
 /**
  * Utility functions shared between multiple classes
  */
@@ -37,4 +43,28 @@ public class Utils {
         }
         return false;
     }
+
+    /**
+     * Waits for a store operation to complete and returns its result.
+     *
+     * @return the result of the future
+     * @throws IOException if the operation failed. An IOException raised by
+     *                     the operation is rethrown as is, any other failure
+     *                     is wrapped.
+     */
+    public static <T> T getUninterruptibly(ListenableFuture<T> future)
+            throws IOException {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            e.printStackTrace();
+            throw new IOException(e.getCause());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+    }
 }
@@ -0,0 +1,109 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.repo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+import org.eclipse.jgit.internal.storage.dfs.ReadableChannel;
+
+import com.benhumphreys.jgitcassandra.store.ObjStore;
+
+/**
+ * A channel that reads a file already held in memory. The buffer is shared,
+ * not copied, and is never modified.
+ */
+class ByteBufferReadableChannel implements ReadableChannel {
+    private final ByteBuffer data;
+
+    private boolean open = true;
+
+    /**
+     * @param data the file contents, from position zero to the limit
+     */
+    ByteBufferReadableChannel(ByteBuffer data) {
+        this.data = data.duplicate();
+    }
+
+    /**
+     * @see org.eclipse.jgit.internal.storage.dfs.ReadableChannel
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (!data.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(dst.remaining(), data.remaining());
+        ByteBuffer src = data.duplicate();
+        src.limit(src.position() + n);
+        dst.put(src);
+        data.position(data.position() + n);
+        return n;
+    }
+
+    /**
+     * @see org.eclipse.jgit.internal.storage.dfs.ReadableChannel
+     */
+    @Override
+    public void close() throws IOException {
+        open = false;
+    }
+
+    /**
+     * @see org.eclipse.jgit.internal.storage.dfs.ReadableChannel
+     */
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * @see org.eclipse.jgit.internal.storage.dfs.ReadableChannel
+     */
+    @Override
+    public int blockSize() {
+        return ObjStore.CHUNK_SIZE;
+    }
+
+    /**
+     * @see org.eclipse.jgit.internal.storage.dfs.ReadableChannel
+     */
+    @Override
+    public long position() throws IOException {
+        return data.position();
+    }
+
+    /**
+     * @see org.eclipse.jgit.internal.storage.dfs.ReadableChannel
+     */
+    @Override
+    public void position(long newPosition) throws IOException {
+        data.position((int) Math.min(newPosition, data.limit()));
+    }
+
+    /**
+     * @see org.eclipse.jgit.internal.storage.dfs.ReadableChannel
+     */
+    @Override
+    public long size() throws IOException {
+        return data.limit();
+    }
+}
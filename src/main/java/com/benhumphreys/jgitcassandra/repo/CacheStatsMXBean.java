@@ -0,0 +1,51 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.repo;
+
+/**
+ * The size and hit statistics of a cache, as exposed through JMX.
+ * <p/>
+ * The counters cover this process only, since the cache was created.
+ */
+public interface CacheStatsMXBean {
+    /**
+     * @return the number of entries in the cache
+     */
+    long getSize();
+
+    /**
+     * @return the number of lookups which found an entry
+     */
+    long getHitCount();
+
+    /**
+     * @return the number of lookups which found no entry
+     */
+    long getMissCount();
+
+    /**
+     * @return the fraction of lookups which found an entry, or 1.0 if there
+     * have been none
+     */
+    double getHitRate();
+
+    /**
+     * @return the number of entries evicted, whether for size or, where the
+     * cache has one, for exceeding its idle time
+     */
+    long getEvictionCount();
+}
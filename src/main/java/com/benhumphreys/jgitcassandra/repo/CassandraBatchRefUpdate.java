@@ -0,0 +1,386 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.repo;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevTag;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+
+import com.benhumphreys.jgitcassandra.Utils;
+import com.benhumphreys.jgitcassandra.store.RefStore;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A BatchRefUpdate which applies its commands to the ref store with as few
+ * round trips as possible.
+ * <p/>
+ * The default implementation performs one RefUpdate per command, each
+ * waiting on its own round trip to the store. Here each command is checked
+ * locally first. The accepted commands are then sent in one of two ways,
+ * depending on the layout of the store:
+ * <ul>
+ * <li>If each ref is in a partition of its own, each command is sent as a
+ * conditional statement without waiting for the previous one, with up to
+ * MAX_IN_FLIGHT outstanding. Each command succeeds or fails on its own.</li>
+ * <li>If all of the refs of the repository are in a single partition,
+ * concurrent conditional statements would contend with each other, so
+ * commands are instead sent BATCH_SIZE at a time as conditional batches,
+ * each applied atomically. If a batch is rejected its commands are retried
+ * one at a time, to find which failed.</li>
+ * </ul>
+ * In both cases the result of each command is reported on the command. The
+ * update as a whole is not atomic.
+ */
+class CassandraBatchRefUpdate extends BatchRefUpdate {
+    /**
+     * Maximum number of ref updates outstanding at once
+     */
+    private static final int MAX_IN_FLIGHT = 256;
+
+    /**
+     * Number of ref updates per conditional batch
+     */
+    private static final int BATCH_SIZE = 100;
+
+    private final CassandraRefDatabase refdb;
+
+    private final RefStore refs;
+
+    /**
+     * A command which has been checked and may be sent to the store
+     */
+    private static class Pending {
+        final ReceiveCommand cmd;
+
+        /**
+         * The expected value of the ref, null if the ref is being created
+         */
+        final Ref oldRef;
+
+        /**
+         * The new value of the ref, null if the ref is being deleted
+         */
+        final Ref newRef;
+
+        /**
+         * Outcome of the update, once sent
+         */
+        ListenableFuture<Boolean> applied;
+
+        Pending(ReceiveCommand cmd, Ref oldRef, Ref newRef) {
+            this.cmd = cmd;
+            this.oldRef = oldRef;
+            this.newRef = newRef;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param refdb the ref database the commands are applied to
+     * @param refs  the store backing "refdb"
+     */
+    CassandraBatchRefUpdate(CassandraRefDatabase refdb, RefStore refs) {
+        super(refdb);
+        this.refdb = refdb;
+        this.refs = refs;
+    }
+
+    /**
+     * Execute this batch update.
+     * <p/>
+     * Commands on symbolic refs are passed to a RefUpdate one at a time, as
+     * they update the ref the symbolic ref points to. All other commands
+     * are sent to the store together.
+     *
+     * @param walk    a RevWalk to parse tags in case the storage system wants
+     *                to store them pre-peeled
+     * @param monitor progress monitor to receive update status on
+     * @throws IOException the database is unable to accept the update
+     */
+    @Override
+    public void execute(RevWalk walk, ProgressMonitor monitor)
+            throws IOException {
+        final List<ReceiveCommand> commands = getCommands();
+        monitor.beginTask(JGitText.get().updatingReferences, commands.size());
+
+        final Map<String, Ref> current = refdb.getRefs(RefDatabase.ALL);
+        final TreeSet<String> taken = new TreeSet<String>(current.keySet());
+        for (ReceiveCommand cmd : commands) {
+            if (cmd.getType() == ReceiveCommand.Type.DELETE) {
+                taken.remove(cmd.getRefName());
+            }
+        }
+
+        final List<ReceiveCommand> symbolic = new ArrayList<ReceiveCommand>();
+        final List<Pending> updates = new ArrayList<Pending>();
+        for (ReceiveCommand cmd : commands) {
+            if (cmd.getResult() != ReceiveCommand.Result.NOT_ATTEMPTED) {
+                monitor.update(1);
+                continue;
+            }
+            Ref cur = current.get(cmd.getRefName());
+            if (cur != null && cur.isSymbolic()) {
+                symbolic.add(cmd);
+                continue;
+            }
+
+            Pending p;
+            try {
+                p = check(cmd, walk, taken);
+            } catch (IOException e) {
+                cmd.setResult(ReceiveCommand.Result.REJECTED_OTHER_REASON,
+                        e.getMessage());
+                p = null;
+            }
+            if (p == null) {
+                monitor.update(1);
+            } else {
+                updates.add(p);
+            }
+        }
+
+        final boolean modified = refs.isSinglePartition()
+                ? applyInBatches(updates, monitor)
+                : applyConcurrently(updates, monitor);
+        if (modified) {
+            // The commands bypassed RefUpdate, so the cached refs are stale
+            refdb.refsChanged();
+        }
+
+        for (ReceiveCommand cmd : symbolic) {
+            RefUpdate ru = newUpdate(cmd);
+            try {
+                if (cmd.getType() == ReceiveCommand.Type.DELETE) {
+                    cmd.setResult(ru.delete(walk));
+                } else {
+                    cmd.setResult(ru.update(walk));
+                }
+            } catch (IOException e) {
+                cmd.setResult(ReceiveCommand.Result.REJECTED_OTHER_REASON,
+                        e.getMessage());
+            }
+            monitor.update(1);
+        }
+        monitor.endTask();
+    }
+
+    /**
+     * Checks whether a command may be applied.
+     * <p/>
+     * The checks made are those RefUpdate would make: that the update is a
+     * fast-forward unless non-fast-forwards are allowed, that the new object
+     * exists, and that a new ref name does not conflict with an existing one.
+     *
+     * @param taken names of refs which exist, or will once this batch has
+     *              been applied. New ref names are added to this.
+     * @return the update to send, or null if the command was rejected, in
+     * which case the result of the command has been set.
+     */
+    private Pending check(ReceiveCommand cmd, RevWalk walk,
+                          TreeSet<String> taken) throws IOException {
+        final String name = cmd.getRefName();
+        boolean fastForward = true;
+        try {
+            cmd.updateType(walk);
+        } catch (MissingObjectException e) {
+            // As with RefUpdate, an old object which cannot be found can
+            // only be replaced by a forced update
+            fastForward = false;
+        }
+        if ((!fastForward
+                || cmd.getType() == ReceiveCommand.Type.UPDATE_NONFASTFORWARD)
+                && !isAllowNonFastForwards()) {
+            cmd.setResult(ReceiveCommand.Result.REJECTED_NONFASTFORWARD);
+            return null;
+        }
+
+        final Ref oldRef = new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK,
+                name, cmd.getOldId());
+        if (cmd.getType() == ReceiveCommand.Type.DELETE) {
+            return new Pending(cmd, oldRef, null);
+        }
+
+        final Ref newRef;
+        try {
+            RevObject obj = walk.parseAny(cmd.getNewId());
+            if (obj instanceof RevTag) {
+                newRef = new ObjectIdRef.PeeledTag(Ref.Storage.PACKED, name,
+                        cmd.getNewId(), walk.peel(obj).copy());
+            } else {
+                newRef = new ObjectIdRef.PeeledNonTag(Ref.Storage.PACKED, name,
+                        cmd.getNewId());
+            }
+        } catch (MissingObjectException e) {
+            cmd.setResult(ReceiveCommand.Result.REJECTED_MISSING_OBJECT);
+            return null;
+        }
+
+        if (cmd.getType() == ReceiveCommand.Type.CREATE) {
+            if (isNameConflicting(name, taken)) {
+                cmd.setResult(ReceiveCommand.Result.LOCK_FAILURE);
+                return null;
+            }
+            taken.add(name);
+            return new Pending(cmd, null, newRef);
+        }
+        return new Pending(cmd, oldRef, newRef);
+    }
+
+    /**
+     * Sends each update as its own conditional statement, without waiting
+     * for earlier ones to complete.
+     *
+     * @return true if any ref was modified
+     */
+    private boolean applyConcurrently(List<Pending> updates,
+                                      ProgressMonitor monitor) {
+        final Deque<Pending> inFlight = new ArrayDeque<Pending>();
+        boolean modified = false;
+        for (Pending p : updates) {
+            if (inFlight.size() >= MAX_IN_FLIGHT) {
+                modified |= complete(inFlight.removeFirst(), monitor);
+            }
+            send(p);
+            inFlight.addLast(p);
+        }
+        while (!inFlight.isEmpty()) {
+            modified |= complete(inFlight.removeFirst(), monitor);
+        }
+        return modified;
+    }
+
+    /**
+     * Sends the updates as a sequence of conditional batches. A batch which
+     * is not applied is retried one update at a time.
+     *
+     * @return true if any ref was modified
+     */
+    private boolean applyInBatches(List<Pending> updates,
+                                   ProgressMonitor monitor) {
+        boolean modified = false;
+        for (int i = 0; i < updates.size(); i += BATCH_SIZE) {
+            final List<Pending> batch = updates.subList(i,
+                    Math.min(updates.size(), i + BATCH_SIZE));
+            final List<Ref> oldRefs = new ArrayList<Ref>(batch.size());
+            final List<Ref> newRefs = new ArrayList<Ref>(batch.size());
+            for (Pending p : batch) {
+                oldRefs.add(p.oldRef);
+                newRefs.add(p.newRef);
+            }
+
+            boolean applied;
+            try {
+                applied = Utils.getUninterruptibly(
+                        refs.compareAndPutAllAsync(oldRefs, newRefs));
+            } catch (IOException e) {
+                // The outcome is unknown, so the commands cannot be retried
+                for (Pending p : batch) {
+                    p.cmd.setResult(ReceiveCommand.Result.REJECTED_OTHER_REASON,
+                            e.getMessage());
+                }
+                monitor.update(batch.size());
+                modified = true;
+                continue;
+            }
+
+            if (applied) {
+                for (Pending p : batch) {
+                    p.cmd.setResult(ReceiveCommand.Result.OK);
+                }
+                monitor.update(batch.size());
+                modified = true;
+            } else {
+                for (Pending p : batch) {
+                    send(p);
+                    modified |= complete(p, monitor);
+                }
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * Sends a single update to the store as a conditional statement.
+     */
+    private void send(Pending p) {
+        final String name = p.cmd.getRefName();
+        if (p.newRef == null) {
+            p.applied = refs.removeAsync(name, p.oldRef);
+        } else if (p.oldRef == null) {
+            p.applied = refs.putIfAbsentAsync(name, p.newRef);
+        } else {
+            p.applied = refs.replaceAsync(name, p.oldRef, p.newRef);
+        }
+    }
+
+    /**
+     * Waits for an update sent to the store to complete, and sets the
+     * result of its command.
+     *
+     * @return true if the ref was modified
+     */
+    private static boolean complete(Pending p, ProgressMonitor monitor) {
+        boolean applied = false;
+        try {
+            applied = Utils.getUninterruptibly(p.applied);
+            p.cmd.setResult(applied ? ReceiveCommand.Result.OK
+                    : ReceiveCommand.Result.LOCK_FAILURE);
+        } catch (IOException e) {
+            p.cmd.setResult(ReceiveCommand.Result.REJECTED_OTHER_REASON,
+                    e.getMessage());
+        }
+        monitor.update(1);
+        return applied;
+    }
+
+    /**
+     * Returns true if "name" cannot be created because it is a directory
+     * containing one of the "taken" names, or a taken name is a directory
+     * containing it. For example "refs/heads/a" and "refs/heads/a/b" cannot
+     * both exist.
+     */
+    static boolean isNameConflicting(String name, TreeSet<String> taken) {
+        int slash = name.indexOf('/');
+        while (slash > 0) {
+            if (taken.contains(name.substring(0, slash))) {
+                return true;
+            }
+            slash = name.indexOf('/', slash + 1);
+        }
+        final String dir = name + "/";
+        final String next = taken.ceiling(dir);
+        return next != null && next.startsWith(dir);
+    }
+}
@@ -18,13 +18,24 @@ package com.benhumphreys.jgitcassandra.repo;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
 
 import org.eclipse.jgit.internal.storage.dfs.DfsObjDatabase;
 import org.eclipse.jgit.internal.storage.dfs.DfsOutputStream;
 import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackFile;
 import org.eclipse.jgit.internal.storage.dfs.DfsReaderOptions;
 import org.eclipse.jgit.internal.storage.dfs.DfsRepository;
 import org.eclipse.jgit.internal.storage.dfs.ReadableChannel;
@@ -32,13 +43,72 @@ import org.eclipse.jgit.internal.storage.pack.PackExt;
 
 import com.benhumphreys.jgitcassandra.store.ObjStore;
 import com.benhumphreys.jgitcassandra.store.StoreConnection;
+import com.google.common.util.concurrent.ListenableFuture;
 
+/**
+ * A Cassandra backed implementation of the DfsObjDatabase
+ * <p/>
+ * The pack list is rescanned by JGit each time the repository's caches are
+ * cleared, which happens whenever its refs change. Every commit of packs
+ * changes the version stored with the pack list, so a rescan first reads
+ * the version, and if it is unchanged returns the previous listing without
+ * reading the pack descriptions. Otherwise only the names of the packs are
+ * scanned, and the descriptions of packs already listed are reused.
+ * <p/>
+ * The files of packs which are replaced or rolled back are not deleted
+ * straight away, as readers may still be using them. The packs are moved
+ * to the store's trash, and their files deleted by purgeTrash() once a
+ * grace period has passed.
+ */
 class CassandraObjDatabase extends DfsObjDatabase {
     /**
      * ObjStore object provides access to the Cassandra database
      */
     private final ObjStore objstore;
 
+    /**
+     * Index files no larger than this are fetched in full when a new pack is
+     * listed, ahead of JGit opening them
+     */
+    private static final int INDEX_PREFETCH_LIMIT = 1024 * 1024;
+
+    /**
+     * Maximum number of packs whose index files are prefetched by a single
+     * listing. Packs are taken in the order JGit searches them, which puts
+     * the newest first.
+     */
+    private static final int INDEX_PREFETCH_PACKS = 16;
+
+    /**
+     * Bytes of index files which may be prefetched but not yet picked up by
+     * openFile(), across every repository in the JVM. Once this is used up
+     * further indexes are read when JGit opens them.
+     */
+    private static final Semaphore PREFETCH_BUDGET =
+            new Semaphore(64 * 1024 * 1024);
+
+    /**
+     * Reads of pack index files issued by listPacks(), waiting to be picked
+     * up by openFile(). Each holds the PREFETCH_BUDGET permits acquired for
+     * it until it is removed with takePrefetch(), whether to be used or
+     * discarded.
+     */
+    private final ConcurrentMap<DfsPackDescription, IndexPrefetch>
+            indexPrefetch =
+            new ConcurrentHashMap<DfsPackDescription, IndexPrefetch>();
+
+    /**
+     * Descriptions of the packs in the most recent listing, keyed by name,
+     * and the version of the pack list read before that listing. Guarded by
+     * "listed".
+     */
+    private final Map<String, DfsPackDescription> listed =
+            new LinkedHashMap<String, DfsPackDescription>();
+
+    private boolean hasListed = false;
+
+    private UUID listedVersion;
+
     /**
      * Constructor
      *
@@ -50,11 +120,15 @@ class CassandraObjDatabase extends DfsObjDatabase {
             throws IOException {
         super(repository, new DfsReaderOptions());
         objstore = new ObjStore(repository.getDescription().getRepositoryName(),
-                conn.getSession(), repository.getDescription());
+                conn, repository.getDescription());
     }
 
     /**
-     * Implementation of pack commit.
+     * Implementation of pack commit. The descriptions are inserted and
+     * removed in batches along with a change to the version of the pack list
+     * (@see ObjStore#commitDesc), so listings never find the packs missing
+     * and other processes rescan the list. Moves the packs replaced to the
+     * trash, unless they could not be removed.
      *
      * @param desc     description of the new packs.
      * @param replaces if not null, list of packs to remove.
@@ -63,15 +137,67 @@ class CassandraObjDatabase extends DfsObjDatabase {
     @Override
     protected void commitPackImpl(Collection<DfsPackDescription> desc,
                                   Collection<DfsPackDescription> replaces) throws IOException {
-        if (replaces != null && !replaces.isEmpty()) {
-            objstore.removeDesc(replaces);
+        final boolean removed = objstore.commitDesc(desc, replaces != null
+                ? replaces : Collections.<DfsPackDescription>emptyList());
+        synchronized (listed) {
+            // Saves reading the new descriptions back on the next listing
+            for (DfsPackDescription pd : desc) {
+                listed.put(pd.toString(), pd);
+            }
+        }
+        if (replaces != null && removed) {
+            try {
+                objstore.trashPacks(replaces);
+            } catch (IOException e) {
+                // The commit has succeeded; the files are left for
+                // SweepPacks to find
+                e.printStackTrace();
+            }
         }
-        objstore.insertDesc(desc);
+    }
+
+    /**
+     * Checks whether the pack list has been modified, by this or any other
+     * process, since it was last listed. This reads a single row.
+     *
+     * @return false if the listed packs may be stale; true if they are
+     * current, or nothing has been listed
+     * @throws IOException if the version cannot be read
+     */
+    boolean isCurrent() throws IOException {
+        synchronized (listed) {
+            if (!hasListed) {
+                return true;
+            }
+        }
+        UUID version = objstore.getVersion();
+        synchronized (listed) {
+            return version == null ? listedVersion == null
+                    : version.equals(listedVersion);
+        }
+    }
+
+    /**
+     * Deletes the files of packs moved to the trash at least "graceMillis"
+     * ago.
+     *
+     * @return the number of packs whose files were deleted
+     * @throws IOException if the store cannot be read or written
+     */
+    int purgeTrash(long graceMillis) throws IOException {
+        return objstore.purgeTrash(graceMillis);
     }
 
     /**
      * List the available pack files.
      * The returned list supports random access and is mutable by the caller.
+     * <p/>
+     * If the version of the pack list is unchanged since the previous
+     * listing, that listing is returned again (@see CassandraObjDatabase).
+     * <p/>
+     * The index files of up to INDEX_PREFETCH_PACKS packs not already open
+     * are requested concurrently, so that JGit loading them one after
+     * another does not cost a round trip per pack.
      *
      * @return available packs. May be empty if there are no packs.
      * @throws java.io.IOException  if a list of packs could not be retrieved
@@ -79,7 +205,111 @@ class CassandraObjDatabase extends DfsObjDatabase {
      */
     @Override
     protected List<DfsPackDescription> listPacks() throws IOException {
-        return objstore.listPacks();
+        List<DfsPackDescription> packs;
+        UUID version = objstore.getVersion();
+        synchronized (listed) {
+            if (hasListed && (version == null ? listedVersion == null
+                    : version.equals(listedVersion))) {
+                packs = new ArrayList<DfsPackDescription>(listed.values());
+            } else {
+                packs = objstore.listPacks(listed);
+                listed.clear();
+                for (DfsPackDescription desc : packs) {
+                    listed.put(desc.toString(), desc);
+                }
+                hasListed = true;
+                listedVersion = version;
+            }
+        }
+        prefetchIndexes(packs);
+        return packs;
+    }
+
+    /**
+     * Issues asynchronous reads for the index files of the newest packs in
+     * "packs" which are not currently open, within the limits set by
+     * INDEX_PREFETCH_PACKS and PREFETCH_BUDGET. Outstanding reads from a
+     * previous listing are discarded.
+     */
+    private void prefetchIndexes(List<DfsPackDescription> packs) {
+        discardPrefetches();
+
+        Set<DfsPackDescription> open = new HashSet<DfsPackDescription>();
+        for (DfsPackFile pack : getCurrentPacks()) {
+            open.add(pack.getPackDescription());
+        }
+        List<DfsPackDescription> newest =
+                new ArrayList<DfsPackDescription>(packs);
+        Collections.sort(newest);
+        PackIndexCache cache = PackIndexCache.getInstance();
+        int issued = 0;
+        for (DfsPackDescription desc : newest) {
+            if (issued == INDEX_PREFETCH_PACKS) {
+                break;
+            }
+            long size = desc.getFileSize(PackExt.INDEX);
+            if (open.contains(desc) || size <= 0
+                    || size > INDEX_PREFETCH_LIMIT
+                    || cache.contains(desc, PackExt.INDEX)) {
+                continue;
+            }
+            if (!PREFETCH_BUDGET.tryAcquire((int) size)) {
+                break;
+            }
+            int count = (int) ((size + ObjStore.CHUNK_SIZE - 1)
+                    / ObjStore.CHUNK_SIZE);
+            ListenableFuture<ByteBuffer> read =
+                    objstore.readChunksAsync(desc, PackExt.INDEX, 0, count);
+            if (indexPrefetch.putIfAbsent(desc,
+                    new IndexPrefetch(read, (int) size)) != null) {
+                // Issued by a concurrent listing
+                read.cancel(false);
+                PREFETCH_BUDGET.release((int) size);
+            }
+            issued++;
+        }
+    }
+
+    /**
+     * Removes the prefetched read of the index of "desc", returning the
+     * permits acquired for it to PREFETCH_BUDGET.
+     *
+     * @return the read, or null if none was issued
+     */
+    private ListenableFuture<ByteBuffer> takePrefetch(DfsPackDescription desc) {
+        IndexPrefetch prefetch = indexPrefetch.remove(desc);
+        if (prefetch == null) {
+            return null;
+        }
+        PREFETCH_BUDGET.release(prefetch.permits);
+        return prefetch.read;
+    }
+
+    /**
+     * @return the number of prefetched index reads not yet picked up
+     */
+    int getPrefetchCount() {
+        return indexPrefetch.size();
+    }
+
+    /**
+     * @return the bytes of index files which may still be prefetched, across
+     * every repository in the JVM
+     */
+    static int getPrefetchBudget() {
+        return PREFETCH_BUDGET.availablePermits();
+    }
+
+    /**
+     * Cancels every prefetched read not yet picked up by openFile()
+     */
+    private void discardPrefetches() {
+        for (DfsPackDescription desc : indexPrefetch.keySet()) {
+            ListenableFuture<ByteBuffer> read = takePrefetch(desc);
+            if (read != null) {
+                read.cancel(false);
+            }
+        }
     }
 
     /**
@@ -95,22 +325,36 @@ class CassandraObjDatabase extends DfsObjDatabase {
         DfsPackDescription desc = new DfsPackDescription(
                 getRepository().getDescription(),
                 UUID.randomUUID() + "-" + source.name());
+        // Orders packs newest first when JGit sorts them
+        desc.setLastModified(System.currentTimeMillis());
         return desc.setPackSource(source);
     }
 
     /**
-     * Rollback a pack creation.
+     * Rollback a pack creation. Files already written for the packs are
+     * moved to the trash, to be deleted by purgeTrash().
      *
      * @param desc pack to delete
      */
     @Override
     protected void rollbackPack(Collection<DfsPackDescription> desc) {
-        // Since new packs are not persisted until they are committed, no need
-        // to do anything here
+        try {
+            objstore.trashPacks(desc);
+        } catch (IOException e) {
+            // Nothing can be thrown; the files are left for SweepPacks to
+            // find
+            e.printStackTrace();
+        }
     }
 
     /**
      * Open a pack, pack index, or other related file for reading.
+     * <p/>
+     * Pack and bitmap indexes are read through the PackIndexCache, so an
+     * index that has been loaded before is not fetched from the store
+     * again. If the DiskCache is enabled files are also copied to local disk
+     * in the background on first use, and read from there once the copy is
+     * complete.
      *
      * @param desc description of pack related to the data that will be read.
      *             This is an instance previously obtained from listPacks(),
@@ -123,7 +367,36 @@ class CassandraObjDatabase extends DfsObjDatabase {
     @Override
     protected ReadableChannel openFile(DfsPackDescription desc, PackExt ext)
             throws IOException {
-        return new CassandraReadableChannel(objstore.readFile(desc, ext));
+        long size = desc.getFileSize(ext);
+        if (size <= 0) {
+            size = objstore.fileSize(desc, ext);
+        }
+        ListenableFuture<ByteBuffer> prefetch = null;
+        if (ext == PackExt.INDEX) {
+            prefetch = takePrefetch(desc);
+        }
+        PackIndexCache indexCache = PackIndexCache.getInstance();
+        boolean indexCacheable = indexCache.isCacheable(ext, size);
+        DiskCache diskCache = DiskCache.getInstance();
+        ReadableChannel rc = null;
+        if (diskCache.isCacheable(size)
+                && !(indexCacheable && indexCache.contains(desc, ext))) {
+            rc = diskCache.openIfCached(desc, ext, size);
+            if (rc == null) {
+                diskCache.copy(desc, ext, new CassandraReadableChannel(
+                        objstore, desc, ext, size), size);
+            } else if (prefetch != null) {
+                prefetch.cancel(false);
+            }
+        }
+        if (rc == null) {
+            rc = new CassandraReadableChannel(objstore, desc, ext, size,
+                    prefetch);
+        }
+        if (indexCacheable) {
+            return indexCache.open(desc, ext, rc, size);
+        }
+        return rc;
     }
 
     /**
@@ -141,4 +414,41 @@ class CassandraObjDatabase extends DfsObjDatabase {
             throws IOException {
         return new CassandraOutputStream(objstore, desc, ext);
     }
+
+    /**
+     * Forgets the open packs, and discards any index reads prefetched for
+     * them, as the next listing prefetches afresh.
+     */
+    @Override
+    protected void clearCache() {
+        discardPrefetches();
+        super.clearCache();
+    }
+
+    /**
+     * Closes the open packs, and discards any index reads prefetched but not
+     * yet used, so their budget is available to other repositories.
+     */
+    @Override
+    public void close() {
+        discardPrefetches();
+        super.close();
+    }
+
+    /**
+     * A prefetched index read, and the PREFETCH_BUDGET permits acquired for
+     * it. The permits are kept here rather than recomputed from a pack
+     * description, which may be a different instance by the time the read
+     * is taken.
+     */
+    private static class IndexPrefetch {
+        final ListenableFuture<ByteBuffer> read;
+
+        final int permits;
+
+        IndexPrefetch(ListenableFuture<ByteBuffer> read, int permits) {
+            this.read = read;
+            this.permits = permits;
+        }
+    }
 }
@@ -16,20 +16,32 @@
  */
 package com.benhumphreys.jgitcassandra.repo;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 import org.eclipse.jgit.internal.storage.dfs.DfsOutputStream;
 import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
 import org.eclipse.jgit.internal.storage.pack.PackExt;
 
 import com.benhumphreys.jgitcassandra.store.ObjStore;
+import com.datastax.driver.core.ResultSetFuture;
 
 /**
  * Output stream is used to write data into a file in the Cassandra store.
+ * <p/>
+ * Data is buffered one chunk at a time. Each chunk is written to the store
+ * as soon as it fills, without waiting for the previous writes to complete,
+ * so the file is streamed into the store while it is still being produced.
+ * At most MAX_IN_FLIGHT chunk writes are outstanding at any time, which
+ * bounds the memory used regardless of the size of the file.
  */
 public class CassandraOutputStream extends DfsOutputStream {
+    /**
+     * Maximum number of chunk writes awaiting completion
+     */
+    private static final int MAX_IN_FLIGHT = 8;
 
     private final ObjStore store;
 
@@ -37,10 +49,35 @@ public class CassandraOutputStream extends DfsOutputStream {
 
     private final PackExt ext;
 
-    private final ByteArrayOutputStream dst = new ByteArrayOutputStream();
+    /**
+     * Chunk writes which have been sent but not yet acknowledged
+     */
+    private final Deque<ResultSetFuture> inFlight =
+            new ArrayDeque<ResultSetFuture>();
 
-    private byte[] data;
+    /**
+     * The chunk currently being filled, and the number of bytes in it
+     */
+    private byte[] buf = new byte[ObjStore.CHUNK_SIZE];
 
+    private int bufLen;
+
+    /**
+     * Number of bytes handed to the store, i.e. the file offset of "buf"
+     */
+    private long sent;
+
+    private boolean closed;
+
+    /**
+     * Constructor. The file must not already exist: nothing is removed
+     * before writing, as the packs written through a DfsObjDatabase are
+     * always given a new name by newPack().
+     *
+     * @param store the store to write to
+     * @param desc  description of the pack the file belongs to
+     * @param ext   the extension of the file
+     */
     public CassandraOutputStream(ObjStore store, DfsPackDescription desc,
                                  PackExt ext) {
         this.store = store;
@@ -49,37 +86,115 @@ public class CassandraOutputStream extends DfsOutputStream {
     }
 
     @Override
-    public void write(byte[] buf, int off, int len) throws IOException {
-        data = null;
-        dst.write(buf, off, len);
+    public int blockSize() {
+        return ObjStore.CHUNK_SIZE;
+    }
+
+    @Override
+    public void write(byte[] src, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed: " + desc.getFileName(ext));
+        }
+        while (len > 0) {
+            int n = Math.min(len, buf.length - bufLen);
+            System.arraycopy(src, off, buf, bufLen, n);
+            bufLen += n;
+            off += n;
+            len -= n;
+            if (bufLen == buf.length) {
+                sendChunk();
+            }
+        }
     }
 
+    /**
+     * Reads back data already written to the stream. Data which has been
+     * sent to the store is read from there once the outstanding writes have
+     * completed; the remainder is served from the current chunk.
+     */
     @Override
-    public int read(long position, ByteBuffer buf) {
-        byte[] d = getData();
-        int n = Math.min(buf.remaining(), d.length - (int) position);
-        if (n == 0) {
-            return -1;
+    public int read(long position, ByteBuffer dst) throws IOException {
+        final int start = dst.position();
+        if (position < sent) {
+            waitForWrites(0);
+            long off = (position / ObjStore.CHUNK_SIZE) * ObjStore.CHUNK_SIZE;
+            long end = Math.min(sent, position + dst.remaining());
+            int count = (int) ((end - off + ObjStore.CHUNK_SIZE - 1)
+                    / ObjStore.CHUNK_SIZE);
+            ByteBuffer data = store.readChunks(desc, ext, off, count);
+            data.position((int) (position - off));
+            data.limit((int) (end - off));
+            dst.put(data);
+            position = end;
+        }
+        if (position >= sent && dst.hasRemaining()) {
+            int p = (int) (position - sent);
+            int n = Math.min(dst.remaining(), bufLen - p);
+            if (n > 0) {
+                dst.put(buf, p, n);
+            }
         }
-        buf.put(d, (int) position, n);
-        return n;
+        int n = dst.position() - start;
+        return n > 0 ? n : -1;
     }
 
+    /**
+     * Waits for all chunks sent so far to be written. The partially filled
+     * current chunk is not written until the stream is closed.
+     */
     @Override
     public void flush() throws IOException {
-        getData();
-        store.writeFile(desc, ext, ByteBuffer.wrap(data));
+        waitForWrites(0);
     }
 
+    /**
+     * Writes the final chunk and the file size, and waits for all writes to
+     * complete.
+     */
     @Override
     public void close() throws IOException {
-        flush();
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (bufLen > 0) {
+            sendChunk();
+        }
+        waitForWrites(0);
+        store.writeFileSize(desc, ext, sent);
+        buf = null;
+    }
+
+    /**
+     * Sends the current chunk to the store and starts a new one. The chunk
+     * array is handed over to the pending write, not copied.
+     */
+    private void sendChunk() throws IOException {
+        waitForWrites(MAX_IN_FLIGHT - 1);
+        try {
+            inFlight.addLast(store.writeChunkAsync(desc, ext, sent,
+                    ByteBuffer.wrap(buf, 0, bufLen)));
+        } catch (RuntimeException e) {
+            throw new IOException(e);
+        }
+        sent += bufLen;
+        buf = new byte[ObjStore.CHUNK_SIZE];
+        bufLen = 0;
     }
 
-    private byte[] getData() {
-        if (data == null) {
-            data = dst.toByteArray();
+    /**
+     * Blocks until no more than "limit" chunk writes are outstanding.
+     *
+     * @throws IOException if any of the completed writes failed
+     */
+    private void waitForWrites(int limit) throws IOException {
+        while (inFlight.size() > limit) {
+            try {
+                inFlight.removeFirst().getUninterruptibly();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                throw new IOException(e);
+            }
         }
-        return data;
     }
 }
@@ -18,22 +18,109 @@ package com.benhumphreys.jgitcassandra.repo;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
 import org.eclipse.jgit.internal.storage.dfs.ReadableChannel;
-
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+
+import com.benhumphreys.jgitcassandra.Utils;
+import com.benhumphreys.jgitcassandra.store.ObjStore;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A channel that reads a file from the Cassandra store on demand, one or
+ * more chunks at a time.
+ * <p/>
+ * Only the chunks covering the current position are fetched. When reads are
+ * sequential the number of chunks fetched per query is doubled on each
+ * fetch, up to the read-ahead limit, so streaming a whole file does not cost
+ * one round trip per chunk. The next window is requested asynchronously as
+ * soon as the current one arrives, so the store is read while the caller is
+ * still consuming the previous data.
+ */
 public class CassandraReadableChannel implements ReadableChannel {
-    private final byte[] data;
+    /**
+     * Default upper bound on the number of bytes fetched by a single query
+     */
+    private static final int DEFAULT_READ_AHEAD = 1024 * 1024;
+
+    private final ObjStore store;
+
+    private final DfsPackDescription desc;
+
+    private final PackExt ext;
 
-    private int position = 0;
+    private final long size;
+
+    private long position = 0;
 
     private boolean open = true;
 
     /**
-     * @see org.eclipse.jgit.internal.storage.dfs.ReadableChannel
+     * The chunks most recently fetched, and the file offset of the first
+     */
+    private ByteBuffer chunks;
+
+    private long chunksOffset = -1;
+
+    /**
+     * Number of chunks to fetch on the next sequential read
      */
-    public CassandraReadableChannel(ByteBuffer bytes) {
-        data = new byte[bytes.remaining()];
-        bytes.get(data);
+    private int window = 1;
+
+    private int maxWindow = DEFAULT_READ_AHEAD / ObjStore.CHUNK_SIZE;
+
+    /**
+     * An outstanding read-ahead request, and the offset it starts at
+     */
+    private ListenableFuture<ByteBuffer> pending;
+
+    private long pendingOffset = -1;
+
+    /**
+     * @param store the store the file is read from
+     * @param desc  description of the pack the file belongs to
+     * @param ext   extension of the file to read
+     * @param size  size of the file in bytes
+     */
+    public CassandraReadableChannel(ObjStore store, DfsPackDescription desc,
+                                    PackExt ext, long size) {
+        this(store, desc, ext, size, null);
+    }
+
+    /**
+     * @param store    the store the file is read from
+     * @param desc     description of the pack the file belongs to
+     * @param ext      extension of the file to read
+     * @param size     size of the file in bytes
+     * @param prefetch if not null, a read already issued for the chunks at
+     *                 the start of the file, which is used for the first
+     *                 read from offset zero
+     */
+    public CassandraReadableChannel(ObjStore store, DfsPackDescription desc,
+                                    PackExt ext, long size,
+                                    ListenableFuture<ByteBuffer> prefetch) {
+        this.store = store;
+        this.desc = desc;
+        this.ext = ext;
+        this.size = size;
+        if (prefetch != null) {
+            pending = prefetch;
+            pendingOffset = 0;
+        }
+    }
+
+    /**
+     * Sets the maximum number of bytes fetched from the store by a single
+     * query when the file is being read sequentially.
+     *
+     * @param bytes read-ahead limit; values smaller than the block size
+     *              disable read-ahead
+     */
+    public void setReadAheadBytes(int bytes) {
+        maxWindow = Math.max(1, bytes / ObjStore.CHUNK_SIZE);
+        window = Math.min(window, maxWindow);
     }
 
     /**
@@ -41,25 +128,34 @@ public class CassandraReadableChannel implements ReadableChannel {
      */
     @Override
     public int read(ByteBuffer dst) throws IOException {
-        int n = Math.min(dst.remaining(), data.length - position);
-        if (n == 0) {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (position >= size) {
             return -1;
         }
-        dst.put(data, position, n);
+        if (!isBuffered(position)) {
+            fetch(position);
+        }
+        ByteBuffer src = chunks.duplicate();
+        src.position((int) (position - chunksOffset));
+        int n = Math.min(dst.remaining(), src.remaining());
+        src.limit(src.position() + n);
+        dst.put(src);
         position += n;
         return n;
     }
 
-
     /**
      * @see org.eclipse.jgit.internal.storage.dfs.ReadableChannel
      */
     @Override
     public void close() throws IOException {
         open = false;
+        chunks = null;
+        cancelPending();
     }
 
-
     /**
      * @see org.eclipse.jgit.internal.storage.dfs.ReadableChannel
      */
@@ -68,16 +164,14 @@ public class CassandraReadableChannel implements ReadableChannel {
         return open;
     }
 
-
     /**
      * @see org.eclipse.jgit.internal.storage.dfs.ReadableChannel
      */
     @Override
     public int blockSize() {
-        return 0;
+        return ObjStore.CHUNK_SIZE;
     }
 
-
     /**
      * @see org.eclipse.jgit.internal.storage.dfs.ReadableChannel
      */
@@ -86,13 +180,12 @@ public class CassandraReadableChannel implements ReadableChannel {
         return position;
     }
 
-
     /**
      * @see org.eclipse.jgit.internal.storage.dfs.ReadableChannel
      */
     @Override
     public void position(long newPosition) throws IOException {
-        position = (int)newPosition;
+        position = newPosition;
     }
 
     /**
@@ -100,6 +193,53 @@ public class CassandraReadableChannel implements ReadableChannel {
      */
     @Override
     public long size() throws IOException {
-        return data.length;
+        return size;
+    }
+
+    private boolean isBuffered(long pos) {
+        return chunks != null && chunksOffset <= pos
+                && pos < chunksOffset + chunks.limit();
+    }
+
+    /**
+     * Fetches the chunk containing "pos". If the read continues directly on
+     * from the previous fetch the read-ahead window is grown, and the
+     * following window is requested in the background. Otherwise the window
+     * is reset to a single chunk.
+     */
+    private void fetch(long pos) throws IOException {
+        long offset = (pos / ObjStore.CHUNK_SIZE) * ObjStore.CHUNK_SIZE;
+        boolean sequential = chunks != null
+                && offset == chunksOffset + chunks.limit();
+        ByteBuffer data;
+        if (pending != null && pendingOffset == offset) {
+            data = Utils.getUninterruptibly(pending);
+            pending = null;
+            sequential = true;
+        } else {
+            cancelPending();
+            window = sequential ? Math.min(window * 2, maxWindow) : 1;
+            data = store.readChunks(desc, ext, offset, window);
+        }
+        if (data.limit() <= pos - offset) {
+            throw new IOException("Short read of " + desc.getFileName(ext)
+                    + " at offset " + pos + " of " + size);
+        }
+        chunks = data;
+        chunksOffset = offset;
+
+        long next = offset + data.limit();
+        if (sequential && next < size) {
+            window = Math.min(window * 2, maxWindow);
+            pending = store.readChunksAsync(desc, ext, next, window);
+            pendingOffset = next;
+        }
+    }
+
+    private void cancelPending() {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
     }
 }
@@ -17,25 +17,60 @@
 package com.benhumphreys.jgitcassandra.repo;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
 
 import org.eclipse.jgit.internal.storage.dfs.DfsRefDatabase;
 import org.eclipse.jgit.internal.storage.dfs.DfsRepository;
+import org.eclipse.jgit.lib.BatchRefUpdate;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.util.RefList;
+import org.eclipse.jgit.util.RefMap;
 
-import com.benhumphreys.jgitcassandra.Utils;
 import com.benhumphreys.jgitcassandra.store.RefStore;
 import com.benhumphreys.jgitcassandra.store.StoreConnection;
 
 /**
  * A Cassandra backed implementation of the DfsRefDatabase
+ * <p/>
+ * The refs are cached by DfsRefDatabase once scanned. Every modification
+ * also changes the version stored with the refs, so isCurrent() can tell
+ * whether the cached refs are stale, due to changes made by this or any
+ * other process, without scanning them again.
+ * <p/>
+ * The version is changed both before and after each modification. The
+ * change made before means a lost change afterwards can only affect a
+ * process which scanned the refs while the modification was in progress,
+ * and cached refs older than MAX_CACHE_AGE are scanned again regardless, so
+ * even then they are not stale for long. A modification which has been
+ * applied is never reported as failed because the version could not be
+ * changed afterwards.
+ * <p/>
+ * Until the refs have been scanned, getRefs() for a prefix reads only the
+ * refs under that prefix where the store supports it.
  */
 class CassandraRefDatabase extends DfsRefDatabase {
+    /**
+     * Time, in milliseconds, after which scanned refs are considered stale
+     * whatever their version
+     */
+    static final long MAX_CACHE_AGE = 60 * 1000;
+
     /**
      * RefStore object provides access to the Cassandra database
      */
     private final RefStore refs;
 
+    /**
+     * True while DfsRefDatabase holds the refs from the most recent scan,
+     * and the version of the refs read before that scan
+     */
+    private volatile boolean cached = false;
+
+    private volatile UUID scannedVersion;
+
+    private volatile long scannedAt;
+
     /**
      * Constructor
      *
@@ -46,7 +81,112 @@ class CassandraRefDatabase extends DfsRefDatabase {
             throws IOException {
         super(repository);
         refs = new RefStore(repository.getDescription().getRepositoryName(),
-                conn.getSession());
+                conn);
+    }
+
+    /**
+     * Creates a batch update which sends its commands to the store
+     * concurrently, rather than one at a time.
+     *
+     * @return a new batch update object
+     */
+    @Override
+    public BatchRefUpdate newBatchUpdate() {
+        return new CassandraBatchRefUpdate(this, refs);
+    }
+
+    /**
+     * Changes the version of the refs again once a modification has been
+     * applied, for processes which scanned the refs while it was in
+     * progress; the store already changed it when logging the modification,
+     * which processes that cached the refs before it notice. The
+     * modification has been made whether or not this succeeds, so it is not
+     * waited for, and a failure is not reported; such processes scan the
+     * refs again once their scan is older than MAX_CACHE_AGE.
+     */
+    void afterChange() {
+        try {
+            refs.bumpVersionAsync();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Called after refs have been modified other than through compareAndPut()
+     * or compareAndRemove(). Records the change in the store's version, and
+     * discards the cached refs so they are read from the store again on
+     * next use.
+     *
+     * @throws IOException if the repository cannot be rescanned
+     */
+    void refsChanged() throws IOException {
+        afterChange();
+        getRepository().scanForRepoChanges();
+    }
+
+    /**
+     * Called when DfsRefDatabase's cached refs have been discarded, so that
+     * they are scanned again on next use.
+     */
+    void cacheCleared() {
+        cached = false;
+    }
+
+    /**
+     * Checks whether the refs have been modified, by this or any other
+     * process, since they were last scanned. This reads a single row.
+     *
+     * @return false if the cached refs may be stale, or were scanned more
+     * than MAX_CACHE_AGE ago; true if they are current, or nothing is cached
+     * @throws IOException if the version cannot be read
+     */
+    boolean isCurrent() throws IOException {
+        if (!cached) {
+            return true;
+        }
+        if (System.currentTimeMillis() - scannedAt > MAX_CACHE_AGE) {
+            return false;
+        }
+        UUID version = refs.getVersion();
+        return version == null ? scannedVersion == null
+                : version.equals(scannedVersion);
+    }
+
+    /**
+     * Get a section of the reference namespace.
+     * <p/>
+     * If the refs are not cached, and the store holds them in a single
+     * partition, only the refs under "prefix" are read, in a single range
+     * scan, and they are not cached. Otherwise all refs are scanned and
+     * cached as usual, and the section is taken from the cache.
+     *
+     * @param prefix prefix to search the namespace with; must end with /.
+     * @return modifiable map that is a complete snapshot of the current
+     * reference namespace, with prefix removed from the start of each key.
+     * @throws IOException the reference space cannot be accessed.
+     */
+    @Override
+    public Map<String, Ref> getRefs(String prefix) throws IOException {
+        if (cached || prefix.equals(ALL) || !refs.isSinglePartition()) {
+            return super.getRefs(prefix);
+        }
+        RefList.Builder<Ref> ids = new RefList.Builder<Ref>();
+        RefList.Builder<Ref> sym = new RefList.Builder<Ref>();
+        for (Ref ref : refs.values(prefix)) {
+            if (ref.isSymbolic()) {
+                // As DfsRefDatabase, omit symbolic refs which do not resolve
+                if (ref.getObjectId() == null) {
+                    continue;
+                }
+                sym.add(ref);
+            }
+            ids.add(ref);
+        }
+        ids.sort();
+        sym.sort();
+        return new RefMap(prefix, ids.toRefList(), RefList.emptyList(),
+                sym.toRefList());
     }
 
     /**
@@ -62,14 +202,16 @@ class CassandraRefDatabase extends DfsRefDatabase {
     @Override
     protected boolean compareAndPut(Ref oldRef, Ref newRef) throws IOException {
         String name = newRef.getName();
-        if (oldRef == null || oldRef.getStorage() == Ref.Storage.NEW)
-            return refs.putIfAbsent(name, newRef) == null;
-        Ref cur = refs.get(name);
-        if (cur != null && Utils.refsHaveEqualObjectId(cur, oldRef)) {
-            return refs.replace(name, cur, newRef);
+        boolean applied;
+        if (oldRef == null || oldRef.getStorage() == Ref.Storage.NEW) {
+            applied = refs.putIfAbsent(name, newRef) == null;
         } else {
-            return false;
+            applied = refs.replace(name, oldRef, newRef);
         }
+        if (applied) {
+            afterChange();
+        }
+        return applied;
     }
 
     /**
@@ -82,23 +224,26 @@ class CassandraRefDatabase extends DfsRefDatabase {
      */
     @Override
     protected boolean compareAndRemove(Ref oldRef) throws IOException {
-        String name = oldRef.getName();
-        Ref cur = refs.get(name);
-        if (cur != null && Utils.refsHaveEqualObjectId(cur, oldRef)) {
-            return refs.remove(name, cur);
-        } else {
-            return false;
+        if (refs.remove(oldRef.getName(), oldRef)) {
+            afterChange();
+            return true;
         }
+        return false;
     }
 
     /**
      * Read all known references in the repository.
+     * <p/>
+     * The version is read before the refs, so a modification made during
+     * the scan is detected by the next call to isCurrent().
      *
      * @return all current references of the repository.
      * @throws IOException references cannot be accessed.
      */
     @Override
     protected RefCache scanAllRefs() throws IOException {
+        long now = System.currentTimeMillis();
+        UUID version = refs.getVersion();
         RefList.Builder<Ref> ids = new RefList.Builder<Ref>();
         RefList.Builder<Ref> sym = new RefList.Builder<Ref>();
         for (Ref ref : refs.values()) {
@@ -109,6 +254,9 @@ class CassandraRefDatabase extends DfsRefDatabase {
         }
         ids.sort();
         sym.sort();
+        scannedVersion = version;
+        scannedAt = now;
+        cached = true;
         return new RefCache(ids.toRefList(), sym.toRefList());
     }
 }
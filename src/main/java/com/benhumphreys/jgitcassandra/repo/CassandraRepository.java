@@ -17,6 +17,7 @@
 package com.benhumphreys.jgitcassandra.repo;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jgit.internal.storage.dfs.DfsObjDatabase;
 import org.eclipse.jgit.internal.storage.dfs.DfsRefDatabase;
@@ -30,9 +31,15 @@ import com.benhumphreys.jgitcassandra.store.StoreConnection;
  * A DfsRepository implemented with a Cassandra database store.
  */
 public class CassandraRepository extends DfsRepository {
-    private final DfsObjDatabase objdb;
+    private final CassandraObjDatabase objdb;
 
-    private final DfsRefDatabase refdb;
+    private final CassandraRefDatabase refdb;
+
+    /**
+     * Number of users of this instance, starting with its creator. The
+     * instance is closed when this reaches zero, and may not be reopened.
+     */
+    private final AtomicInteger openCount = new AtomicInteger(1);
 
     /**
      * Creating a new repository object may result in creating a new repository
@@ -56,6 +63,64 @@ public class CassandraRepository extends DfsRepository {
         refdb = new CassandraRefDatabase(this, conn);
     }
 
+    /**
+     * Adds a user of this instance, unless it has already been closed.
+     *
+     * @return true if the caller may use the instance, and must close it
+     * when done; false if it has been closed
+     */
+    public boolean tryIncrementOpen() {
+        for (;;) {
+            int count = openCount.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (openCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public void incrementOpen() {
+        openCount.incrementAndGet();
+    }
+
+    /**
+     * Removes a user of this instance, closing it once there are none left.
+     */
+    @Override
+    public void close() {
+        if (openCount.decrementAndGet() == 0) {
+            super.close();
+        }
+    }
+
+    /**
+     * Discards the cached refs and pack list if the refs or packs have been
+     * modified, by this or any other process, since they were read.
+     * Otherwise the cached refs and packs continue to be used, without
+     * scanning the store. Checking the packs ensures that packs replaced
+     * elsewhere stop being read well before their files are deleted.
+     *
+     * @throws IOException if the store cannot be read
+     */
+    public void refreshIfChanged() throws IOException {
+        if (!refdb.isCurrent() || !objdb.isCurrent()) {
+            scanForRepoChanges();
+        }
+    }
+
+    /**
+     * Discards the cached refs and pack list, so they are read from the store
+     * again on next use.
+     */
+    @Override
+    public void scanForRepoChanges() throws IOException {
+        super.scanForRepoChanges();
+        refdb.cacheCleared();
+    }
+
     @Override
     public DfsObjDatabase getObjectDatabase() {
         return objdb;
@@ -0,0 +1,518 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.repo;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.ReadableChannel;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+/**
+ * An optional cache of pack files, and their indexes, on local disk.
+ * <p/>
+ * When a file is opened and is not on disk, reads are served from the store
+ * while a background thread copies the file to disk. Once the copy is
+ * complete later opens read it with positional reads, so repeated clones of
+ * a repository do not read its packs from Cassandra again, and no reader
+ * ever waits for a whole file to be copied. Pack files are never modified
+ * once committed, so a local copy never needs to be refreshed; the least
+ * recently used copies are deleted when the total size exceeds the limit.
+ * <p/>
+ * Files are kept in a directory per repository, named by encodeName() so
+ * that any repository name is a single path component within the cache
+ * directory. Each copy has a unique suffix, so deleting an evicted copy can
+ * never remove a newer copy of the same file. Copies left by a previous run
+ * are reused, and anything else found in the cache directory is deleted.
+ * <p/>
+ * There is a single instance, which is disabled unless configured at
+ * startup with reconfigure().
+ */
+public final class DiskCache {
+    /**
+     * Default limit on the total size of the cached files, in bytes
+     */
+    public static final long DEFAULT_LIMIT = 10L * 1024 * 1024 * 1024;
+
+    /**
+     * Number of independently locked segments. Each holds at most this
+     * fraction of the limit, which also bounds the size of a single file.
+     */
+    private static final int CONCURRENCY = 4;
+
+    /**
+     * Size of the buffer used when copying a file from the store
+     */
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Number of threads copying files from the store
+     */
+    private static final int COPY_THREADS = 2;
+
+    /**
+     * Names of cached copies: the pack file name and a unique suffix
+     */
+    private static final Pattern COPY_NAME = Pattern.compile("^(.+)\\.(\\d+)$");
+
+    /**
+     * Characters of a repository name kept as they are in its directory
+     * name; all others are escaped by encodeName()
+     */
+    private static final Pattern PLAIN_NAME = Pattern.compile("[a-z0-9_-]");
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static volatile DiskCache instance = new DiskCache(null, 0);
+
+    /**
+     * @return the cache shared by all repositories
+     */
+    public static DiskCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Replaces the shared cache with one keeping files in "dir". Any copies
+     * already in "dir" are added to the cache. Should be called before any
+     * repository is opened.
+     *
+     * @param dir   the directory to keep files in, or null to disable the
+     *              cache
+     * @param limit the maximum total size of the cached files, in bytes
+     * @throws IOException if "dir" could not be created
+     */
+    public static void reconfigure(File dir, long limit) throws IOException {
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        DiskCache cache = new DiskCache(dir, limit);
+        if (dir != null) {
+            cache.scan();
+        }
+        DiskCache previous = instance;
+        instance = cache;
+        if (previous.executor != null) {
+            previous.executor.shutdownNow();
+        }
+    }
+
+    private final File dir;
+
+    private final long maxFileSize;
+
+    private final AtomicLong nextSuffix =
+            new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * Local copies, keyed by repository and file name
+     */
+    private final Cache<String, File> files;
+
+    /**
+     * Keys of the files being copied
+     */
+    private final ConcurrentMap<String, Boolean> copying =
+            new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Runs the copies, or null if the cache is disabled
+     */
+    private final ExecutorService executor;
+
+    private DiskCache(File dir, long limit) {
+        this.dir = dir;
+        maxFileSize = dir == null ? 0 : limit / CONCURRENCY;
+        executor = dir == null ? null : Executors.newFixedThreadPool(
+                COPY_THREADS, new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r,
+                                "disk-cache-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        t.setPriority(Thread.MIN_PRIORITY);
+                        return t;
+                    }
+                });
+        files = CacheBuilder.newBuilder()
+                .maximumWeight(limit)
+                .concurrencyLevel(CONCURRENCY)
+                .weigher(new Weigher<String, File>() {
+                    @Override
+                    public int weigh(String key, File value) {
+                        return (int) Math.min(value.length(), Integer.MAX_VALUE);
+                    }
+                })
+                .removalListener(new RemovalListener<String, File>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, File> n) {
+                        // Readers with the file open can still read it
+                        n.getValue().delete();
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return true if a file of "size" bytes would be kept in the cache
+     */
+    public boolean isCacheable(long size) {
+        return size > 0 && size <= maxFileSize && size <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns a channel reading the local copy of the file given by the pair
+     * "desc" and "ext", if one has been made.
+     *
+     * @param size size of the file in bytes
+     * @return the channel, or null if there is no complete local copy, in
+     * which case the file should be read from the store and copied with
+     * copy()
+     */
+    public ReadableChannel openIfCached(DfsPackDescription desc, PackExt ext,
+                                        long size) {
+        String key = key(desc, ext);
+        File file = files.getIfPresent(key);
+        if (file == null) {
+            return null;
+        }
+        if (file.length() != size) {
+            // Truncated or removed behind our back
+            files.invalidate(key);
+            return null;
+        }
+        try {
+            return new FileReadableChannel(
+                    new RandomAccessFile(file, "r").getChannel());
+        } catch (FileNotFoundException e) {
+            // Evicted since the lookup
+            return null;
+        }
+    }
+
+    /**
+     * Copies the file given by the pair "desc" and "ext" to local disk in the
+     * background, unless it is already on disk or being copied. Returns
+     * without waiting for the copy.
+     *
+     * @param source a channel reading the file from the store, which is
+     *               closed once the copy is finished or skipped
+     * @param size   size of the file in bytes, which must be cacheable
+     */
+    public void copy(DfsPackDescription desc, PackExt ext,
+                     final ReadableChannel source, final long size) {
+        final String key = key(desc, ext);
+        if (files.asMap().containsKey(key)
+                || copying.putIfAbsent(key, Boolean.TRUE) != null) {
+            closeQuietly(source);
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        File file;
+                        try {
+                            file = copyFile(key, source, size);
+                        } finally {
+                            closeQuietly(source);
+                        }
+                        files.put(key, file);
+                    } catch (IOException e) {
+                        // Read from the store until a later copy succeeds
+                        e.printStackTrace();
+                    } finally {
+                        copying.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Replaced by reconfigure()
+            copying.remove(key);
+            closeQuietly(source);
+        }
+    }
+
+    /**
+     * @return statistics of hits, misses and evictions
+     */
+    public CacheStats getStats() {
+        return files.stats();
+    }
+
+    /**
+     * @return the number of cached files
+     */
+    public long size() {
+        return files.size();
+    }
+
+    private static String key(DfsPackDescription desc, PackExt ext) {
+        return encodeName(desc.getRepositoryDescription().getRepositoryName())
+                + File.separator + desc.getFileName(ext);
+    }
+
+    /**
+     * Encodes a repository name as a directory name. Each byte of the UTF-8
+     * form of "name" other than a lower case letter, digit, '_' or '-' is
+     * written as '%' followed by two hex digits, so names holding '/' or
+     * '..' cannot reach outside the directory, and names differing only in
+     * case do not share one on a case-insensitive file system.
+     */
+    static String encodeName(String name) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : name.getBytes(UTF_8)) {
+            char c = (char) (b & 0xff);
+            if (PLAIN_NAME.matcher(String.valueOf(c)).matches()) {
+                sb.append(c);
+            } else {
+                sb.append(String.format("%%%02x", b & 0xff));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reverses encodeName().
+     *
+     * @return the repository name, or null if "encoded" is not the output of
+     * encodeName()
+     */
+    static String decodeName(String encoded) {
+        byte[] bytes = new byte[encoded.length()];
+        int n = 0;
+        for (int i = 0; i < encoded.length(); i++) {
+            char c = encoded.charAt(i);
+            if (c == '%' && i + 2 < encoded.length()) {
+                try {
+                    bytes[n++] = (byte) Integer.parseInt(
+                            encoded.substring(i + 1, i + 3), 16);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                i += 2;
+            } else if (PLAIN_NAME.matcher(String.valueOf(c)).matches()) {
+                bytes[n++] = (byte) c;
+            } else {
+                return null;
+            }
+        }
+        // Malformed UTF-8, or escapes of plain characters, do not survive
+        // the round trip
+        String name = new String(bytes, 0, n, UTF_8);
+        return encodeName(name).equals(encoded) ? name : null;
+    }
+
+    private static void closeQuietly(ReadableChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing was written through it
+        }
+    }
+
+    /**
+     * Copies "size" bytes from "source" to a new local file for "key",
+     * written under a temporary name and renamed once complete.
+     */
+    private File copyFile(String key, ReadableChannel source, long size)
+            throws IOException {
+        File target = new File(dir, key + "." + nextSuffix.incrementAndGet());
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent);
+        }
+        File tmp = File.createTempFile("copy", ".tmp", parent);
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                FileChannel fc = out.getChannel();
+                ByteBuffer buf = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+                long copied = 0;
+                while (copied < size) {
+                    buf.clear();
+                    if (source.read(buf) < 0) {
+                        throw new EOFException("Short read: " + copied
+                                + " of " + size + " bytes");
+                    }
+                    buf.flip();
+                    copied += buf.remaining();
+                    while (buf.hasRemaining()) {
+                        fc.write(buf);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(target)) {
+                throw new IOException("Cannot rename " + tmp + " to "
+                        + target);
+            }
+        } finally {
+            tmp.delete();
+        }
+        return target;
+    }
+
+    /**
+     * Adds the copies in the cache directory to the cache, least recently
+     * modified first, and deletes any partial copies along with directories
+     * not named by encodeName(), which older versions left behind.
+     */
+    private void scan() {
+        List<File> found = new ArrayList<File>();
+        File[] repos = dir.listFiles();
+        if (repos == null) {
+            return;
+        }
+        for (File repo : repos) {
+            if (!repo.isDirectory()) {
+                continue;
+            }
+            if (decodeName(repo.getName()) == null) {
+                deleteTree(repo);
+                continue;
+            }
+            File[] copies = repo.listFiles();
+            if (copies == null) {
+                continue;
+            }
+            for (File copy : copies) {
+                if (copy.isFile()
+                        && COPY_NAME.matcher(copy.getName()).matches()) {
+                    found.add(copy);
+                } else {
+                    deleteTree(copy);
+                }
+            }
+        }
+        Collections.sort(found, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.valueOf(a.lastModified())
+                        .compareTo(b.lastModified());
+            }
+        });
+        for (File copy : found) {
+            Matcher m = COPY_NAME.matcher(copy.getName());
+            m.matches();
+            String key = copy.getParentFile().getName() + File.separator
+                    + m.group(1);
+            if (files.getIfPresent(key) != null) {
+                // An older copy of the same file; keep the newest
+                files.invalidate(key);
+            }
+            files.put(key, copy);
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * A channel reading a local file with positional reads.
+     */
+    private static class FileReadableChannel implements ReadableChannel {
+        private final FileChannel fc;
+
+        private long position = 0;
+
+        FileReadableChannel(FileChannel fc) {
+            this.fc = fc;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int n = fc.read(dst, position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            fc.close();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return fc.isOpen();
+        }
+
+        @Override
+        public int blockSize() {
+            return 0;
+        }
+
+        @Override
+        public long position() throws IOException {
+            return position;
+        }
+
+        @Override
+        public void position(long newPosition) throws IOException {
+            position = newPosition;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return fc.size();
+        }
+    }
+}
@@ -0,0 +1,628 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.repo;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsGarbageCollector;
+import org.eclipse.jgit.internal.storage.dfs.DfsObjDatabase;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackCompactor;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackFile;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepository;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.eclipse.jgit.internal.storage.pack.PackWriter;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.eclipse.jgit.transport.PostReceiveHook;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.ReceivePack;
+
+import com.benhumphreys.jgitcassandra.store.PackSweeper;
+import com.benhumphreys.jgitcassandra.store.StoreConnection;
+
+/**
+ * Compacts and garbage collects the packs of repositories in the
+ * background, so that repeated pushes do not leave a repository with many
+ * small packs, each of which must be searched when looking up an object.
+ * <p/>
+ * After each push the repository's packs are checked against two sets of
+ * thresholds. If it has at least getGcPackCount() packs other than packs
+ * of unreachable garbage, or its packs not written by a previous
+ * collection hold at least getGcBytes() bytes, DfsGarbageCollector
+ * rewrites the reachable objects into a single pack and the rest into a
+ * pack of garbage. The reachable pack always carries a bitmap index, which
+ * lets clones and fetches skip walking the history it covers. Otherwise,
+ * if at least getCompactPackCount() packs are smaller than
+ * getSmallPackSize(), DfsPackCompactor merges those packs into one,
+ * copying their objects without checking reachability. Packs written by a
+ * collection are left out of compactions, as the compactor would drop
+ * their bitmap indexes and mix garbage back in with reachable objects.
+ * <p/>
+ * Runs are made on a fixed number of low priority threads, with at most one
+ * run queued or in progress per repository in this process. Each uses a
+ * repository instance of its own, with single threaded delta compression,
+ * so that serving traffic is not starved.
+ * <p/>
+ * The packs replaced are moved to the trash. Each run first deletes the
+ * files of packs trashed more than getGracePeriod() milliseconds before,
+ * which gives readers that listed the old packs time to finish with them.
+ * Once startPurging() has been called the trash of every repository is also
+ * purged periodically, whether or not it reaches a threshold, so packs
+ * rolled back in repositories which are rarely pushed to are deleted too.
+ * <p/>
+ * The number of runs made, skipped and failed, and the packs and bytes
+ * they processed, are counted, and may be exposed through JMX with
+ * registerMBean().
+ */
+public final class GcService implements PostReceiveHook, GcServiceMXBean {
+    /**
+     * Name under which registerMBean() registers the service
+     */
+    public static final String MBEAN_NAME =
+            "com.benhumphreys.jgitcassandra:type=GcService";
+
+    /**
+     * Default number of small packs which triggers a compaction
+     */
+    public static final int DEFAULT_COMPACT_PACK_COUNT = 10;
+
+    /**
+     * Default size, in bytes, below which a pack is small. This matches the
+     * limit used by DfsPackCompactor.autoAdd().
+     */
+    public static final long DEFAULT_SMALL_PACK_SIZE = 5 * 1024 * 1024;
+
+    /**
+     * Default number of packs which triggers a garbage collection
+     */
+    public static final int DEFAULT_GC_PACK_COUNT = 50;
+
+    /**
+     * Default size, in bytes, of the packs not written by a previous
+     * collection which triggers a garbage collection
+     */
+    public static final long DEFAULT_GC_BYTES = 1024L * 1024 * 1024;
+
+    /**
+     * Default time, in milliseconds, for which the files of trashed packs
+     * are kept
+     */
+    public static final long DEFAULT_GRACE_PERIOD = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Default time, in milliseconds, between purges of the trash of every
+     * repository
+     */
+    public static final long DEFAULT_PURGE_INTERVAL =
+            TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * The kinds of run
+     */
+    enum Kind {
+        /**
+         * Merge small packs with DfsPackCompactor
+         */
+        COMPACT,
+
+        /**
+         * Rewrite all packs with DfsGarbageCollector
+         */
+        GC
+    }
+
+    private final StoreConnection conn;
+
+    /**
+     * Runs compactions and collections, or null if there are no threads for
+     * them
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Runs the periodic purges of the trash
+     */
+    private final ScheduledExecutorService purger;
+
+    /**
+     * Names of the repositories with a run queued or in progress
+     */
+    private final ConcurrentMap<String, Kind> scheduled =
+            new ConcurrentHashMap<String, Kind>();
+
+    private volatile int compactPackCount = DEFAULT_COMPACT_PACK_COUNT;
+
+    private volatile long smallPackSize = DEFAULT_SMALL_PACK_SIZE;
+
+    private volatile int gcPackCount = DEFAULT_GC_PACK_COUNT;
+
+    private volatile long gcBytes = DEFAULT_GC_BYTES;
+
+    private volatile long gracePeriod = DEFAULT_GRACE_PERIOD;
+
+    /**
+     * Set once shutdown() has been called, after which queued runs are not
+     * started
+     */
+    private volatile boolean stopping;
+
+    private final AtomicLong compactions = new AtomicLong();
+
+    private final AtomicLong collections = new AtomicLong();
+
+    private final AtomicLong skips = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong packsMerged = new AtomicLong();
+
+    private final AtomicLong bytesRewritten = new AtomicLong();
+
+    private final AtomicLong packsPurged = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param conn    connection to the Cassandra data store
+     * @param threads the maximum number of runs in progress at once, or 0
+     *                if no runs are made, and the service only purges the
+     *                trash
+     * @throws IllegalArgumentException if "threads" is negative
+     */
+    public GcService(StoreConnection conn, int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("Invalid thread count: "
+                    + threads);
+        }
+        this.conn = conn;
+        this.executor = threads > 0 ? Executors.newFixedThreadPool(threads,
+                threadFactory("gc-")) : null;
+        this.purger = Executors.newSingleThreadScheduledExecutor(
+                threadFactory("gc-purge-"));
+    }
+
+    /**
+     * @return a factory of low priority daemon threads, named "prefix"
+     * followed by a number
+     */
+    private static ThreadFactory threadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + count.incrementAndGet());
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Starts purging the trash of every repository every "intervalMillis"
+     * milliseconds, in the background, the first time after one interval.
+     *
+     * @throws IllegalArgumentException if "intervalMillis" is not positive
+     */
+    public void startPurging(long intervalMillis) {
+        purger.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                purgeAll();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Deletes the files of packs trashed before the grace period, in every
+     * repository: those in the shared keyspace, or in every keyspace holding
+     * a single repository. A keyspace which cannot be purged is skipped.
+     *
+     * @return the number of packs whose files were deleted
+     */
+    long purgeAll() {
+        PackSweeper sweeper = new PackSweeper(conn.getSession());
+        List<String> keyspaces = conn.getSharedKeyspace() != null
+                ? Collections.singletonList(conn.getSharedKeyspace())
+                : sweeper.findKeyspaces(false);
+        long purged = 0;
+        for (String keyspace : keyspaces) {
+            if (stopping) {
+                break;
+            }
+            try {
+                purged += sweeper.purge(conn, keyspace, gracePeriod);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        packsPurged.addAndGet(purged);
+        return purged;
+    }
+
+    /**
+     * Checks the packs of the repository pushed to, once the push has
+     * completed.
+     */
+    @Override
+    public void onPostReceive(ReceivePack rp,
+                              Collection<ReceiveCommand> commands) {
+        Repository db = rp.getRepository();
+        if (db instanceof DfsRepository) {
+            try {
+                schedule((DfsRepository) db);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Schedules a run for "repo" if its packs exceed the thresholds, unless
+     * a run is already queued or in progress, or the service has no threads
+     * for runs. The packs are taken from the repository's current pack list,
+     * which is normally already loaded.
+     *
+     * @return true if a run was scheduled
+     * @throws IOException if the pack list could not be read
+     */
+    public boolean schedule(DfsRepository repo) throws IOException {
+        if (executor == null) {
+            return false;
+        }
+        List<DfsPackDescription> packs = new ArrayList<DfsPackDescription>();
+        for (DfsPackFile pack : repo.getObjectDatabase().getPacks()) {
+            packs.add(pack.getPackDescription());
+        }
+        final Kind kind = check(packs);
+        final String name = repo.getDescription().getRepositoryName();
+        if (kind == null || scheduled.putIfAbsent(name, kind) != null) {
+            return false;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (stopping) {
+                        return;
+                    }
+                    collect(name, kind);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    scheduled.remove(name);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return the kind of run needed by a repository with the given packs,
+     * or null if none is needed
+     */
+    Kind check(List<DfsPackDescription> packs) {
+        long ungarbagedBytes = 0;
+        int count = 0;
+        int small = 0;
+        for (DfsPackDescription desc : packs) {
+            if (desc.getPackSource()
+                    == DfsObjDatabase.PackSource.UNREACHABLE_GARBAGE) {
+                // Counted towards neither threshold, nor compacted
+                continue;
+            }
+            count++;
+            if (desc.getPackSource() != DfsObjDatabase.PackSource.GC) {
+                ungarbagedBytes += desc.getFileSize(PackExt.PACK);
+            }
+            if (isCompactable(desc)) {
+                small++;
+            }
+        }
+        if (count >= gcPackCount || ungarbagedBytes >= gcBytes) {
+            return Kind.GC;
+        }
+        if (small >= compactPackCount && small > 1) {
+            return Kind.COMPACT;
+        }
+        return null;
+    }
+
+    /**
+     * Compacts or garbage collects the named repository now, in the
+     * calling thread, whether or not its packs exceed the thresholds. The
+     * files of packs trashed before the grace period are deleted first.
+     *
+     * @param name the repository name
+     * @param kind the kind of run
+     * @throws IOException if the run fails; no packs are replaced
+     */
+    void collect(String name, Kind kind) throws IOException {
+        CassandraRepository repo = new CassandraRepository(
+                new DfsRepositoryDescription(name), conn);
+        try {
+            packsPurged.addAndGet(((CassandraObjDatabase) repo
+                    .getObjectDatabase()).purgeTrash(gracePeriod));
+            repo.getConfig().setInt(ConfigConstants.CONFIG_PACK_SECTION,
+                    null, "threads", 1);
+            List<DfsPackDescription> sources;
+            List<PackWriter.Statistics> stats;
+            if (kind == Kind.COMPACT) {
+                DfsPackCompactor compactor = new DfsPackCompactor(repo);
+                int added = 0;
+                for (DfsPackFile pack : repo.getObjectDatabase().getPacks()) {
+                    if (isCompactable(pack.getPackDescription())) {
+                        compactor.add(pack);
+                        added++;
+                    }
+                }
+                if (added < 2) {
+                    skips.incrementAndGet();
+                    return;
+                }
+                compactor.compact(NullProgressMonitor.INSTANCE);
+                sources = compactor.getSourcePacks();
+                stats = compactor.getNewPackStatistics();
+                compactions.incrementAndGet();
+            } else {
+                DfsGarbageCollector gc = new DfsGarbageCollector(repo);
+                // Always written, whatever the repository's configuration,
+                // so clones and fetches are counted from the bitmaps
+                PackConfig packConfig = new PackConfig(repo);
+                packConfig.setBuildBitmaps(true);
+                gc.setPackConfig(packConfig);
+                if (!gc.pack(NullProgressMonitor.INSTANCE)) {
+                    // The refs changed while packing, so nothing was
+                    // committed. The next push checks the packs again.
+                    skips.incrementAndGet();
+                    return;
+                }
+                sources = gc.getSourcePacks();
+                stats = gc.getNewPackStatistics();
+                collections.incrementAndGet();
+            }
+            packsMerged.addAndGet(sources.size());
+            for (PackWriter.Statistics s : stats) {
+                bytesRewritten.addAndGet(s.getTotalBytes());
+            }
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            throw e;
+        } catch (RuntimeException e) {
+            failures.incrementAndGet();
+            throw e;
+        } finally {
+            repo.close();
+        }
+    }
+
+    /**
+     * @return true if "desc" is small, and may be merged by a compaction:
+     * it was not written by a collection, and has no bitmap index
+     */
+    private boolean isCompactable(DfsPackDescription desc) {
+        DfsObjDatabase.PackSource source = desc.getPackSource();
+        return source != DfsObjDatabase.PackSource.GC
+                && source != DfsObjDatabase.PackSource.UNREACHABLE_GARBAGE
+                && !desc.hasFileExt(PackExt.BITMAP_INDEX)
+                && desc.getFileSize(PackExt.PACK) < smallPackSize;
+    }
+
+    /**
+     * Stops accepting runs and purges, and waits up to "timeout" for those
+     * in progress to finish. They are not interrupted, and runs still
+     * queued are not started.
+     *
+     * @return true if all runs finished
+     */
+    public boolean shutdown(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        stopping = true;
+        purger.shutdown();
+        if (executor != null) {
+            executor.shutdown();
+            if (!executor.awaitTermination(timeout, unit)) {
+                return false;
+            }
+        }
+        return purger.awaitTermination(deadline - System.nanoTime(),
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Registers the service with the platform MBean server under
+     * MBEAN_NAME, exposing its counters and settings through JMX.
+     *
+     * @throws JMException if the service could not be registered, e.g.
+     *                     because another is already registered
+     */
+    public void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                new ObjectName(MBEAN_NAME));
+    }
+
+    /**
+     * @return the number of small packs which triggers a compaction
+     */
+    @Override
+    public int getCompactPackCount() {
+        return compactPackCount;
+    }
+
+    /**
+     * Sets the number of small packs which triggers a compaction.
+     */
+    public void setCompactPackCount(int count) {
+        compactPackCount = count;
+    }
+
+    /**
+     * @return the size, in bytes, below which a pack is small
+     */
+    @Override
+    public long getSmallPackSize() {
+        return smallPackSize;
+    }
+
+    /**
+     * Sets the size, in bytes, below which a pack is small, and may be
+     * merged by a compaction.
+     */
+    public void setSmallPackSize(long size) {
+        smallPackSize = size;
+    }
+
+    /**
+     * @return the number of packs, other than packs of unreachable garbage,
+     * which triggers a garbage collection
+     */
+    @Override
+    public int getGcPackCount() {
+        return gcPackCount;
+    }
+
+    /**
+     * Sets the number of packs, other than packs of unreachable garbage,
+     * which triggers a garbage collection.
+     */
+    public void setGcPackCount(int count) {
+        gcPackCount = count;
+    }
+
+    /**
+     * @return the size, in bytes, of the packs not written by a previous
+     * collection which triggers a garbage collection
+     */
+    @Override
+    public long getGcBytes() {
+        return gcBytes;
+    }
+
+    /**
+     * Sets the size, in bytes, of the packs not written by a previous
+     * collection which triggers a garbage collection.
+     */
+    public void setGcBytes(long bytes) {
+        gcBytes = bytes;
+    }
+
+    /**
+     * @return the time, in milliseconds, for which the files of trashed
+     * packs are kept
+     */
+    @Override
+    public long getGracePeriod() {
+        return gracePeriod;
+    }
+
+    /**
+     * Sets the time, in milliseconds, for which the files of trashed packs
+     * are kept. This must be longer than any read of a pack may take.
+     */
+    public void setGracePeriod(long millis) {
+        gracePeriod = millis;
+    }
+
+    /**
+     * @return the number of compactions completed
+     */
+    @Override
+    public long getCompactionCount() {
+        return compactions.get();
+    }
+
+    /**
+     * @return the number of garbage collections completed
+     */
+    @Override
+    public long getCollectionCount() {
+        return collections.get();
+    }
+
+    /**
+     * @return the number of runs which completed without replacing any
+     * packs
+     */
+    @Override
+    public long getSkipCount() {
+        return skips.get();
+    }
+
+    /**
+     * @return the number of runs which failed
+     */
+    @Override
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return the total number of packs replaced by completed runs
+     */
+    @Override
+    public long getPacksMerged() {
+        return packsMerged.get();
+    }
+
+    /**
+     * @return the total size, in bytes, of the packs written by completed
+     * runs
+     */
+    @Override
+    public long getBytesRewritten() {
+        return bytesRewritten.get();
+    }
+
+    /**
+     * @return the total number of trashed packs whose files were deleted
+     */
+    @Override
+    public long getPacksPurged() {
+        return packsPurged.get();
+    }
+
+    /**
+     * @return the number of repositories with a run queued or in progress
+     */
+    @Override
+    public int getScheduledCount() {
+        return scheduled.size();
+    }
+}
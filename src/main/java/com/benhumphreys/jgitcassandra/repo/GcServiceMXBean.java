@@ -0,0 +1,94 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.repo;
+
+/**
+ * The counters and settings of a GcService, as exposed through JMX.
+ * <p/>
+ * The counters cover this process only, since it was started.
+ */
+public interface GcServiceMXBean {
+    /**
+     * @return the number of compactions completed
+     */
+    long getCompactionCount();
+
+    /**
+     * @return the number of garbage collections completed
+     */
+    long getCollectionCount();
+
+    /**
+     * @return the number of runs which completed without replacing any
+     * packs
+     */
+    long getSkipCount();
+
+    /**
+     * @return the number of runs which failed
+     */
+    long getFailureCount();
+
+    /**
+     * @return the total number of packs replaced by completed runs
+     */
+    long getPacksMerged();
+
+    /**
+     * @return the total size, in bytes, of the packs written by completed
+     * runs
+     */
+    long getBytesRewritten();
+
+    /**
+     * @return the total number of trashed packs whose files were deleted
+     */
+    long getPacksPurged();
+
+    /**
+     * @return the number of repositories with a run queued or in progress
+     */
+    int getScheduledCount();
+
+    /**
+     * @return the number of small packs which triggers a compaction
+     */
+    int getCompactPackCount();
+
+    /**
+     * @return the size, in bytes, below which a pack is small
+     */
+    long getSmallPackSize();
+
+    /**
+     * @return the number of packs, other than packs of unreachable garbage,
+     * which triggers a garbage collection
+     */
+    int getGcPackCount();
+
+    /**
+     * @return the size, in bytes, of the packs not written by a previous
+     * collection which triggers a garbage collection
+     */
+    long getGcBytes();
+
+    /**
+     * @return the time, in milliseconds, for which the files of trashed
+     * packs are kept
+     */
+    long getGracePeriod();
+}
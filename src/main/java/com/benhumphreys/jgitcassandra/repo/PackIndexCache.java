@@ -0,0 +1,237 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.repo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.ReadableChannel;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * A cache of pack index and bitmap index files, held outside the Java heap
+ * in direct ByteBuffers and shared by every repository in the JVM.
+ * <p/>
+ * JGit parses an index, or the bitmaps used to count objects for a clone or
+ * fetch, into heap structures held in the DfsBlockCache. When that copy is
+ * dropped, because the cache is full or the repository was closed,
+ * loading the index again is served from here rather than from Cassandra.
+ * Pack files are never modified once committed, so entries need no
+ * invalidation; the least recently used are evicted when the total size
+ * exceeds the limit.
+ * <p/>
+ * Like the DfsBlockCache there is a single instance, configured once at
+ * startup with reconfigure(). Its hit and eviction counts are exposed
+ * through JMX once registered with registerMBean().
+ */
+public final class PackIndexCache {
+    /**
+     * Default limit on the total size of the cached files, in bytes
+     */
+    public static final long DEFAULT_LIMIT = 64 * 1024 * 1024;
+
+    /**
+     * Name under which registerMBean() registers the cache
+     */
+    public static final String MBEAN_NAME =
+            "com.benhumphreys.jgitcassandra:type=PackIndexCache";
+
+    /**
+     * Number of independently locked segments. Each holds at most this
+     * fraction of the limit, which also bounds the size of a single entry.
+     */
+    private static final int CONCURRENCY = 4;
+
+    private static volatile PackIndexCache instance =
+            new PackIndexCache(DEFAULT_LIMIT);
+
+    /**
+     * @return the cache shared by all repositories
+     */
+    public static PackIndexCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Replaces the shared cache with an empty one of the given size. Should
+     * be called before any repository is opened.
+     *
+     * @param limit the maximum total size of the cached files, in bytes;
+     *              zero disables the cache
+     */
+    public static void reconfigure(long limit) {
+        instance = new PackIndexCache(limit);
+    }
+
+    /**
+     * Registers the shared cache with the platform MBean server under
+     * MBEAN_NAME. The statistics reported are those of the current
+     * instance, so remain valid after reconfigure().
+     *
+     * @throws JMException if the cache could not be registered, e.g.
+     *                     because it is already registered
+     */
+    public static void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new Metrics(), new ObjectName(MBEAN_NAME));
+    }
+
+    private final long maxFileSize;
+
+    /**
+     * File contents, keyed by repository and file name
+     */
+    private final Cache<String, ByteBuffer> files;
+
+    private PackIndexCache(long limit) {
+        maxFileSize = Math.min(limit / CONCURRENCY, Integer.MAX_VALUE);
+        files = CacheBuilder.newBuilder()
+                .maximumWeight(limit)
+                .concurrencyLevel(CONCURRENCY)
+                .weigher(new Weigher<String, ByteBuffer>() {
+                    @Override
+                    public int weigh(String key, ByteBuffer value) {
+                        return value.capacity();
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return true if a file of "size" bytes would be kept in the cache
+     */
+    public boolean isCacheable(PackExt ext, long size) {
+        return (ext == PackExt.INDEX || ext == PackExt.BITMAP_INDEX)
+                && size > 0 && size <= maxFileSize;
+    }
+
+    /**
+     * @return true if the file given by the pair "desc" and "ext" is cached
+     */
+    public boolean contains(DfsPackDescription desc, PackExt ext) {
+        return files.asMap().containsKey(key(desc, ext));
+    }
+
+    /**
+     * Returns a channel reading the file given by the pair "desc" and "ext"
+     * from the cache. If it is not cached the file is read in full from
+     * "source" first. Concurrent requests for the same file wait for a
+     * single read.
+     *
+     * @param source a channel reading the file from the store, which is
+     *               closed by this method
+     * @param size   size of the file in bytes, which must be cacheable
+     * @throws IOException if the file could not be read from "source"
+     */
+    public ReadableChannel open(DfsPackDescription desc, PackExt ext,
+                                final ReadableChannel source, final long size)
+            throws IOException {
+        ByteBuffer data;
+        try {
+            data = files.get(key(desc, ext), new Callable<ByteBuffer>() {
+                @Override
+                public ByteBuffer call() throws IOException {
+                    return readFully(source, (int) size);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            source.close();
+        }
+        return new ByteBufferReadableChannel(data);
+    }
+
+    /**
+     * @return statistics of hits, misses and evictions
+     */
+    public CacheStats getStats() {
+        return files.stats();
+    }
+
+    /**
+     * @return the number of cached files
+     */
+    public long size() {
+        return files.size();
+    }
+
+    /**
+     * Exposes the statistics of the shared instance through JMX.
+     */
+    private static class Metrics implements CacheStatsMXBean {
+        @Override
+        public long getSize() {
+            return getInstance().size();
+        }
+
+        @Override
+        public long getHitCount() {
+            return getInstance().getStats().hitCount();
+        }
+
+        @Override
+        public long getMissCount() {
+            return getInstance().getStats().missCount();
+        }
+
+        @Override
+        public double getHitRate() {
+            return getInstance().getStats().hitRate();
+        }
+
+        @Override
+        public long getEvictionCount() {
+            return getInstance().getStats().evictionCount();
+        }
+    }
+
+    private static String key(DfsPackDescription desc, PackExt ext) {
+        return desc.getRepositoryDescription().getRepositoryName() + "/"
+                + desc.getFileName(ext);
+    }
+
+    private static ByteBuffer readFully(ReadableChannel source, int size)
+            throws IOException {
+        ByteBuffer data = ByteBuffer.allocateDirect(size);
+        while (data.hasRemaining()) {
+            if (source.read(data) < 0) {
+                throw new EOFException("Short read: " + data.position()
+                        + " of " + size + " bytes");
+            }
+        }
+        data.flip();
+        return data;
+    }
+}
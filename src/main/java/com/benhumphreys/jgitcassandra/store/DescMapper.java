@@ -21,12 +21,19 @@ import org.eclipse.jgit.internal.storage.pack.PackExt;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Provides utility functions for mapping between the DfsPackDescrption
  * object and the data storage layer.
  */
 public class DescMapper {
+    /**
+     * Known PackExt instances, keyed by extension string
+     */
+    private static final ConcurrentMap<String, PackExt> EXTS =
+            new ConcurrentHashMap<String, PackExt>();
 
     /**
      * Extracts a file size map from the pack description.
@@ -97,18 +104,31 @@ public class DescMapper {
     }
 
     /**
-     * The PackExt class defines a number of static instances
+     * Returns the PackExt for the extension string "extStr".
+     * <p/>
+     * The PackExt class defines a number of static instances, and more may
+     * be registered at runtime. Lookups go through a map of the extensions
+     * seen so far, so converting a size map does not search PackExt.values()
+     * for every entry.
      */
-    private static PackExt lookupExt(String extStr) {
-        for (PackExt ext : PackExt.values()) {
-            if (ext.getExtension().equals(extStr)) {
-                return ext;
+    static PackExt lookupExt(String extStr) {
+        PackExt ext = EXTS.get(extStr);
+        if (ext != null) {
+            return ext;
+        }
+        synchronized (EXTS) {
+            for (PackExt e : PackExt.values()) {
+                EXTS.putIfAbsent(e.getExtension(), e);
+            }
+            ext = EXTS.get(extStr);
+            if (ext == null) {
+                // The extension does not exist so create it. It gets added
+                // to the list of known extensions in PackExt, as well as to
+                // the map
+                ext = PackExt.newPackExt(extStr);
+                EXTS.put(extStr, ext);
             }
+            return ext;
         }
-
-        // If we get here, the extension does not exist so create it. It gets
-        // added to the list of known extensions in PackExt, so next time the
-        // lookup will be successful
-        return PackExt.newPackExt(extStr);
     }
 }
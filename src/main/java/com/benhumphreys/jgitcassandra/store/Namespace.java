@@ -0,0 +1,149 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.querybuilder.Delete;
+import com.datastax.driver.core.querybuilder.Insert;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+import com.datastax.driver.core.querybuilder.Select;
+import com.datastax.driver.core.querybuilder.Update;
+
+/**
+ * Identifies where the rows belonging to one repository are kept.
+ * <p/>
+ * By default each repository has a keyspace of its own, named after the
+ * repository. When the connection is configured with a shared keyspace all
+ * repositories use the same keyspace and tables instead, and the repository
+ * name is stored in a "repo" column which leads the partition key of every
+ * table. Opening a new repository then requires no schema change.
+ * <p/>
+ * The methods here build and bind statements so that the "repo" column is
+ * restricted in shared mode, and absent otherwise.
+ */
+final class Namespace {
+    /**
+     * Name of the repository column in shared mode
+     */
+    static final String REPO_COLUMN = "repo";
+
+    private final String keyspace;
+
+    /**
+     * The repository name, or null if the keyspace is not shared
+     */
+    private final String repo;
+
+    /**
+     * Constructor
+     *
+     * @param repoName the name of the repository
+     * @param conn     connection to the Cassandra data store, which
+     *                 determines whether the keyspace is shared
+     */
+    Namespace(String repoName, StoreConnection conn) {
+        if (conn.getSharedKeyspace() != null) {
+            keyspace = conn.getSharedKeyspace();
+            repo = repoName;
+        } else {
+            keyspace = repoName;
+            repo = null;
+        }
+    }
+
+    /**
+     * @return the keyspace holding the repository's tables
+     */
+    String getKeyspace() {
+        return keyspace;
+    }
+
+    /**
+     * @return true if the keyspace is shared with other repositories, and
+     * the tables have a "repo" column
+     */
+    boolean isShared() {
+        return repo != null;
+    }
+
+    /**
+     * @return the where clause of "select", restricted to this repository
+     */
+    Select.Where where(Select select) {
+        Select.Where where = select.where();
+        if (isShared()) {
+            where.and(QueryBuilder.eq(REPO_COLUMN, QueryBuilder.bindMarker()));
+        }
+        return where;
+    }
+
+    /**
+     * @return the where clause of "delete", restricted to this repository
+     */
+    Delete.Where where(Delete delete) {
+        Delete.Where where = delete.where();
+        if (isShared()) {
+            where.and(QueryBuilder.eq(REPO_COLUMN, QueryBuilder.bindMarker()));
+        }
+        return where;
+    }
+
+    /**
+     * @return the where clause of "update", restricted to this repository
+     */
+    Update.Where where(Update update) {
+        Update.Where where = update.where();
+        if (isShared()) {
+            where.and(QueryBuilder.eq(REPO_COLUMN, QueryBuilder.bindMarker()));
+        }
+        return where;
+    }
+
+    /**
+     * @return an insert into "table" of this repository's keyspace, with
+     * the repository column set in shared mode
+     */
+    Insert insertInto(String table) {
+        Insert insert = QueryBuilder.insertInto(keyspace, table);
+        if (isShared()) {
+            insert.value(REPO_COLUMN, QueryBuilder.bindMarker());
+        }
+        return insert;
+    }
+
+    /**
+     * Binds "values" to a statement built with the methods above, along
+     * with the repository name wherever the statement expects it.
+     *
+     * @param stmt   the prepared statement
+     * @param values values for every variable of the statement except the
+     *               repository column, in order
+     * @return the bound statement
+     */
+    BoundStatement bind(PreparedStatement stmt, Object... values) {
+        if (!isShared()) {
+            return stmt.bind(values);
+        }
+        final int idx = stmt.getVariables().getIndexOf(REPO_COLUMN);
+        Object[] all = new Object[values.length + 1];
+        System.arraycopy(values, 0, all, 0, idx);
+        all[idx] = repo;
+        System.arraycopy(values, idx, all, idx + 1, values.length - idx);
+        return stmt.bind(all);
+    }
+}
@@ -16,76 +16,178 @@
  */
 package com.benhumphreys.jgitcassandra.store;
 
+import com.benhumphreys.jgitcassandra.Utils;
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
-import com.datastax.driver.core.utils.Bytes;
+import com.datastax.driver.core.querybuilder.Update;
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.eclipse.jgit.internal.storage.dfs.DfsObjDatabase;
 import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
 import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
 import org.eclipse.jgit.internal.storage.pack.PackExt;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 public class ObjStore {
     /**
-     * Cassandra fetch size. This won't limit the size of a query result set, but
-     * a large result set will be broken up into multiple fetches if the result set
-     * size exceeds FETCH_SIZE
+     * Pack description table name
      */
-    private static final int FETCH_SIZE = 100;
+    static final String DESC_TABLE_NAME = "pack_desc";
 
     /**
-     * Pack description table name
+     * Pack data table name
      */
-    private static final String DESC_TABLE_NAME = "pack_desc";
+    static final String DATA_TABLE_NAME = "pack_data";
 
     /**
-     * Pack data table name
+     * Pack version table name. This holds a single row per repository, keyed
+     * by repository name in both layouts.
+     */
+    static final String VERSION_TABLE_NAME = "pack_version";
+
+    /**
+     * Pack trash table name. This holds the packs whose files are due to be
+     * deleted, in a single partition per repository, keyed by repository
+     * name in both layouts.
      */
-    private static final String DATA_TABLE_NAME = "pack_data";
+    static final String TRASH_TABLE_NAME = "pack_trash";
 
     /**
-     * The keyspace acts as a namespace
+     * Files are stored in the pack data table as a sequence of chunks of at
+     * most CHUNK_SIZE bytes, one row per chunk, so no single mutation or cell
+     * grows with the size of the file. This matches the default DfsBlockCache
+     * block size.
      */
-    private final String keyspace;
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Maximum number of new pack descriptions read a row at a time by
+     * listPacks(Map). If more packs are new the descriptions are scanned
+     * instead.
+     */
+    private static final int MAX_DESC_READS = 32;
+
+    /**
+     * The name of the repository
+     */
+    private final String repoName;
+
+    /**
+     * The keyspace, and partitions in shared mode, holding the packs
+     */
+    private final Namespace ns;
 
     /**
      * A Cassandra session instance
      */
     private final Session session;
 
+    /**
+     * Fetch sizes for queries returning many rows
+     */
+    private final Paging paging;
+
     /**
      * DfsRepositoryDescription is needed to instantiate new
      * DfsRepositoryDescription objects
      */
     private final DfsRepositoryDescription repoDesc;
 
+    /**
+     * Prepared statements, obtained from the connection's statement cache.
+     * File contents are bound as native blob values rather than embedded in
+     * the query string.
+     */
+    private PreparedStatement insertDescStmt;
+
+    private PreparedStatement deleteDescStmt;
+
+    private PreparedStatement selectDescsStmt;
+
+    private PreparedStatement selectDescNamesStmt;
+
+    private PreparedStatement selectDescStmt;
+
+    private PreparedStatement selectVersionStmt;
+
+    private PreparedStatement updateVersionStmt;
+
+    private PreparedStatement insertTrashStmt;
+
+    private PreparedStatement selectTrashStmt;
+
+    private PreparedStatement deleteTrashStmt;
+
+    private PreparedStatement selectFileStmt;
+
+    private PreparedStatement selectChunksStmt;
+
+    private PreparedStatement selectFileSizeStmt;
+
+    private PreparedStatement deleteFileStmt;
+
+    private PreparedStatement insertChunkStmt;
+
+    private PreparedStatement updateFileSizeStmt;
+
     /**
      * Constructor
      *
-     * @param keyspace the Cassandra keyspace
-     * @param session  a Cassandra session instance
+     * @param repoName the name of the repository
+     * @param conn     connection to the Cassandra data store
+     * @param repoDesc description of the repository the packs belong to
      * @throws NullPointerException if either of the parameters are null
      * @throws IOException          if an exception occurs when communicating to the
      *                              database
      */
-    public ObjStore(String keyspace, Session session,
+    public ObjStore(String repoName, StoreConnection conn,
                     DfsRepositoryDescription repoDesc) throws IOException {
-        if (keyspace == null || session == null) {
+        this(repoName, conn, repoDesc, true);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param createSchema false if the keyspace and tables must already
+     *                     exist, rather than being created, for tools which
+     *                     must not change the schema
+     * @see #ObjStore(String, StoreConnection, DfsRepositoryDescription)
+     */
+    ObjStore(String repoName, StoreConnection conn,
+             DfsRepositoryDescription repoDesc, boolean createSchema)
+            throws IOException {
+        if (repoName == null || conn == null) {
             throw new NullPointerException();
         }
-        this.keyspace = keyspace;
-        this.session = session;
+        this.repoName = repoName;
+        this.ns = new Namespace(repoName, conn);
+        this.session = conn.getSession();
+        this.paging = conn.getPaging();
         this.repoDesc = repoDesc;
-        createSchemaIfNotExist();
+        if (createSchema) {
+            conn.getSchemaManager().ensureSchema(ns.getKeyspace(),
+                    ns.isShared());
+        }
+        prepareStatements(conn.getStatementCache());
     }
 
     /**
@@ -98,24 +200,7 @@ public class ObjStore {
      */
     public void insertDesc(Collection<DfsPackDescription> desc)
             throws IOException {
-
-        try {
-            for (DfsPackDescription pd : desc) {
-                Statement stmt = QueryBuilder.insertInto(keyspace, DESC_TABLE_NAME)
-                        .value("name", pd.toString())
-                        .value("source", pd.getPackSource().ordinal())
-                        .value("last_modified", pd.getLastModified())
-                        .value("size_map", DescMapper.getFileSizeMap(pd))
-                        .value("object_count", pd.getObjectCount())
-                        .value("delta_count", pd.getDeltaCount())
-                        .value("extensions", DescMapper.getExtBits(pd))
-                        .value("index_version", pd.getIndexVersion());
-                session.execute(stmt);
-            }
-        } catch (RuntimeException e) {
-            e.printStackTrace();
-            throw new IOException(e);
-        }
+        commitDesc(desc, Collections.<DfsPackDescription>emptyList());
     }
 
     /**
@@ -132,17 +217,84 @@ public class ObjStore {
      */
     public void removeDesc(Collection<DfsPackDescription> desc)
             throws IOException {
-        for (DfsPackDescription pd : desc) {
+        commitDesc(Collections.<DfsPackDescription>emptyList(), desc);
+    }
+
+    /**
+     * Inserts the pack descriptions "desc" and removes those in "replaces",
+     * so that a listing never finds neither the new packs nor the packs they
+     * replace, and changes the version of the pack list so that other
+     * processes rescan it.
+     * <p/>
+     * The version is changed in the same logged batch as the descriptions,
+     * so a pack is never committed without the version changing. In shared
+     * mode a repository's descriptions are in a single partition, so all of
+     * the changes are made in one batch, and a listing sees either the old
+     * packs or the new ones. Otherwise each description is a partition of
+     * its own, so the inserts are made in one batch and then the removals
+     * in another, each changing the version, and a listing made in between
+     * may see both the old and the new packs. Either way this takes at most
+     * two round trips, however many packs there are.
+     * <p/>
+     * Once the new packs have been inserted they are committed, so a
+     * failure to remove the packs they replace is not reported as an
+     * exception. The old packs remain listed alongside the new ones, which
+     * hold the same objects, until a later commit replaces them.
+     *
+     * @param desc     the pack descriptions to insert
+     * @param replaces the pack descriptions to remove
+     * @return true if the packs in "replaces" were removed, or false if they
+     * are still listed
+     * @throws IOException  if the new packs could not be inserted, due to an
+     *                      exception communicating to the database
+     */
+    public boolean commitDesc(Collection<DfsPackDescription> desc,
+                              Collection<DfsPackDescription> replaces)
+            throws IOException {
+        BatchStatement inserts =
+                new BatchStatement(BatchStatement.Type.LOGGED);
+        BatchStatement removals = ns.isShared() ? inserts
+                : new BatchStatement(BatchStatement.Type.LOGGED);
+        try {
+            for (DfsPackDescription pd : desc) {
+                inserts.add(ns.bind(insertDescStmt,
+                        pd.toString(),
+                        pd.getPackSource().ordinal(),
+                        pd.getLastModified(),
+                        DescMapper.getFileSizeMap(pd),
+                        pd.getObjectCount(),
+                        pd.getDeltaCount(),
+                        DescMapper.getExtBits(pd),
+                        pd.getIndexVersion()));
+            }
+            for (DfsPackDescription pd : replaces) {
+                removals.add(ns.bind(deleteDescStmt, pd.toString()));
+            }
+            if (inserts.size() > 0) {
+                inserts.add(updateVersionStmt.bind(UUIDs.timeBased(),
+                        repoName));
+                session.execute(inserts);
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+        if (removals != inserts && removals.size() > 0) {
             try {
-                Statement stmt = QueryBuilder.delete()
-                        .from(keyspace, DESC_TABLE_NAME)
-                        .where(QueryBuilder.eq("name", pd.toString()));
-                session.execute(stmt);
+                removals.add(updateVersionStmt.bind(UUIDs.timeBased(),
+                        repoName));
+                session.execute(removals);
             } catch (RuntimeException e) {
+                if (inserts.size() == 0) {
+                    e.printStackTrace();
+                    throw new IOException(e);
+                }
+                // The new packs have been committed
                 e.printStackTrace();
-                throw new IOException(e);
+                return false;
             }
         }
+        return true;
     }
 
     /**
@@ -151,41 +303,210 @@ public class ObjStore {
      *                      database
      */
     public List<DfsPackDescription> listPacks() throws IOException {
-        Statement stmt = QueryBuilder
-                .select()
-                .all()
-                .from(keyspace, DESC_TABLE_NAME);
-        stmt.setFetchSize(FETCH_SIZE);
-        ResultSet results = session.execute(stmt);
+        return listPacks(Collections.<String, DfsPackDescription>emptyMap());
+    }
+
+    /**
+     * Returns a list of all pack descriptions in the store, reusing those in
+     * "known" rather than converting their rows again. Descriptions are never
+     * modified once inserted, so a pack's description can be reused for as
+     * long as the pack exists.
+     * <p/>
+     * If any descriptions are known, only the names of the packs are
+     * scanned, and the descriptions of up to MAX_DESC_READS new packs are
+     * then read concurrently, a single row each. Otherwise every description
+     * is scanned.
+     *
+     * @param known previously listed descriptions, keyed by name
+     * @return the descriptions, including any reused from "known"
+     * @throws IOException  if an exception occurs when communicating to the
+     *                      database
+     */
+    public List<DfsPackDescription> listPacks(
+            Map<String, DfsPackDescription> known) throws IOException {
         List<DfsPackDescription> packs = new ArrayList<DfsPackDescription>();
-        for (Row row : results) {
-            packs.add(rowToPackDescription(row));
+        try {
+            if (!known.isEmpty()) {
+                List<String> added = new ArrayList<String>();
+                for (Row row : new PagedRows(session,
+                        ns.bind(selectDescNamesStmt), paging,
+                        Paging.Operation.PACKS)) {
+                    String name = row.getString("name");
+                    DfsPackDescription desc = known.get(name);
+                    if (desc != null) {
+                        packs.add(desc);
+                    } else {
+                        added.add(name);
+                    }
+                }
+                if (added.size() <= MAX_DESC_READS) {
+                    List<ResultSetFuture> reads =
+                            new ArrayList<ResultSetFuture>(added.size());
+                    for (String name : added) {
+                        reads.add(session.executeAsync(
+                                ns.bind(selectDescStmt, name)));
+                    }
+                    for (ResultSetFuture read : reads) {
+                        Row row = read.getUninterruptibly().one();
+                        // Absent if the pack was removed after its name was
+                        // read
+                        if (row != null) {
+                            packs.add(rowToPackDescription(row));
+                        }
+                    }
+                    return packs;
+                }
+                packs.clear();
+            }
+            for (Row row : new PagedRows(session, ns.bind(selectDescsStmt),
+                    paging, Paging.Operation.PACKS)) {
+                DfsPackDescription desc = known.get(row.getString("name"));
+                packs.add(desc != null ? desc : rowToPackDescription(row));
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            throw new IOException(e);
         }
         return packs;
     }
 
+    /**
+     * Returns the current version of the pack list. The version changes each
+     * time commitDesc() is called, so comparing it with the version read
+     * before a previous listing shows whether the packs may have changed
+     * since, at the cost of reading a single row.
+     *
+     * @return the version, or null if the packs have never been modified
+     * since versions were introduced
+     * @throws IOException if an exception occurs when communicating to the
+     *                     database
+     */
+    public UUID getVersion() throws IOException {
+        try {
+            Row row = session.execute(selectVersionStmt.bind(repoName)).one();
+            return row != null ? row.getUUID("version") : null;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Records the packs "desc" as due to have their files deleted, once they
+     * have been replaced or rolled back. The files are left in place for
+     * readers which may still be using them, and deleted by a later call to
+     * purgeTrash().
+     *
+     * @throws IOException if an exception occurs when communicating to the
+     *                     database
+     */
+    public void trashPacks(Collection<DfsPackDescription> desc)
+            throws IOException {
+        if (desc.isEmpty()) {
+            return;
+        }
+        try {
+            final UUID trashed = UUIDs.timeBased();
+            BatchStatement batch =
+                    new BatchStatement(BatchStatement.Type.UNLOGGED);
+            for (DfsPackDescription pd : desc) {
+                batch.add(insertTrashStmt.bind(repoName, trashed,
+                        pd.toString()));
+            }
+            session.execute(batch);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Deletes the files of packs trashed at least "graceMillis" ago, for
+     * every known extension. A pack which has a description again, so is in
+     * use, is removed from the trash without deleting its files. The
+     * description is looked up immediately before each pack's files are
+     * deleted, so a pack committed while the trash is purged is kept.
+     *
+     * @param graceMillis the time, in milliseconds, for which the files of a
+     *                    trashed pack are kept
+     * @return the number of packs whose files were deleted
+     * @throws IOException if an exception occurs when communicating to the
+     *                     database
+     */
+    public int purgeTrash(long graceMillis) throws IOException {
+        try {
+            List<Row> trashed = new ArrayList<Row>();
+            for (Row row : new PagedRows(session, selectTrashStmt.bind(
+                    repoName, UUIDs.endOf(System.currentTimeMillis()
+                            - graceMillis)), paging, Paging.Operation.PACKS)) {
+                trashed.add(row);
+            }
+            int purged = 0;
+            for (Row row : trashed) {
+                final String name = row.getString("name");
+                if (session.execute(ns.bind(selectDescStmt, name)).one()
+                        == null) {
+                    DfsPackDescription pd = new DfsPackDescription(repoDesc,
+                            name);
+                    List<ResultSetFuture> deletes =
+                            new ArrayList<ResultSetFuture>();
+                    for (PackExt ext : PackExt.values()) {
+                        deletes.add(session.executeAsync(ns.bind(
+                                deleteFileStmt, pd.getFileName(ext))));
+                    }
+                    for (ResultSetFuture delete : deletes) {
+                        delete.getUninterruptibly();
+                    }
+                    purged++;
+                }
+                // Only once the files are gone, so a failure is retried
+                session.execute(deleteTrashStmt.bind(repoName,
+                        row.getUUID("trashed"), name));
+            }
+            return purged;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+    }
+
     /**
      * Returns a ByteBuffer with the contents of the file given by the pair
      * "desc" and "ext".
+     * <p/>
+     * The chunks are fetched in order of their offset, a page at a time
+     * (@see Paging), and reassembled into a single buffer.
      *
+     * @throws FileNotFoundException if the file does not exist in the store
      * @throws IOException  if an exception occurs when communicating to the
      *                      database
      */
     public ByteBuffer readFile(DfsPackDescription desc, PackExt ext)
             throws IOException {
         try {
-            Statement stmt = QueryBuilder
-                    .select()
-                    .all()
-                    .from(keyspace, DATA_TABLE_NAME)
-                    .where(QueryBuilder.eq("name", desc.getFileName(ext)));
-            ResultSet results = session.execute(stmt);
-            Row r = results.one();
-            if (!results.isExhausted()) {
-                throw new IllegalStateException("Multiple rows for a single file: "
-                        + desc.getFileName(ext));
+            Iterator<Row> rows = new PagedRows(session,
+                    ns.bind(selectFileStmt, desc.getFileName(ext)), paging,
+                    Paging.Operation.FILES).iterator();
+            if (!rows.hasNext()) {
+                throw new FileNotFoundException(desc.getFileName(ext));
+            }
+            Row first = rows.next();
+            final long size = first.getLong("file_size");
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalStateException("File too large to read into "
+                        + "a single buffer: " + desc.getFileName(ext));
+            }
+            ByteBuffer data = ByteBuffer.allocate((int) size);
+            for (Row row = first; row != null;
+                 row = rows.hasNext() ? rows.next() : null) {
+                ByteBuffer chunk = row.getBytes("data");
+                if (chunk != null) {
+                    data.position((int) row.getLong("chunk_offset"));
+                    data.put(chunk);
+                }
             }
-            return r.getBytes("data");
+            data.rewind();
+            return data;
         } catch (RuntimeException e) {
             e.printStackTrace();
             throw new IOException(e);
@@ -193,18 +514,190 @@ public class ObjStore {
     }
 
     /**
-     * Overwrites the file given by the pair "desc" and "ext" witht the data in
-     * the "data" ByteArray.
+     * Returns the contents of up to "count" consecutive chunks of the file
+     * given by the pair "desc" and "ext", starting with the chunk at
+     * "offset". Fewer chunks are returned if the end of the file is reached.
+     *
+     * @param offset the offset of the first chunk, must be a multiple of
+     *               CHUNK_SIZE
+     * @param count  the maximum number of chunks to read
+     * @return a buffer holding the chunk data, starting at "offset". The
+     * buffer is empty if "offset" is at or beyond the end of the file.
+     * @throws IllegalArgumentException if "offset" is not chunk aligned
+     * @throws IOException  if an exception occurs when communicating to the
+     *                      database
+     */
+    public ByteBuffer readChunks(DfsPackDescription desc, PackExt ext,
+                                 long offset, int count) throws IOException {
+        return Utils.getUninterruptibly(
+                readChunksAsync(desc, ext, offset, count));
+    }
+
+    /**
+     * Asynchronous form of readChunks().
+     *
+     * @throws IllegalArgumentException if "offset" is not chunk aligned
+     * @see #readChunks(DfsPackDescription, PackExt, long, int)
+     */
+    public ListenableFuture<ByteBuffer> readChunksAsync(DfsPackDescription desc,
+                                                        PackExt ext,
+                                                        final long offset,
+                                                        int count) {
+        if (offset % CHUNK_SIZE != 0) {
+            throw new IllegalArgumentException("Unaligned chunk offset: "
+                    + offset);
+        }
+        Statement stmt = ns.bind(selectChunksStmt, desc.getFileName(ext),
+                offset, offset + (long) count * CHUNK_SIZE);
+        return Futures.transform(session.executeAsync(stmt),
+                new Function<ResultSet, ByteBuffer>() {
+                    @Override
+                    public ByteBuffer apply(ResultSet results) {
+                        List<Row> rows = results.all();
+                        int len = 0;
+                        for (Row row : rows) {
+                            len += row.getBytes("data").remaining();
+                        }
+                        ByteBuffer data = ByteBuffer.allocate(len);
+                        for (Row row : rows) {
+                            data.position((int) (row.getLong("chunk_offset")
+                                    - offset));
+                            data.put(row.getBytes("data"));
+                        }
+                        data.rewind();
+                        return data;
+                    }
+                });
+    }
+
+    /**
+     * Returns the size in bytes of the file given by the pair "desc" and
+     * "ext".
+     *
+     * @throws FileNotFoundException if the file does not exist in the store
+     * @throws IOException  if an exception occurs when communicating to the
+     *                      database
+     */
+    public long fileSize(DfsPackDescription desc, PackExt ext)
+            throws IOException {
+        return Utils.getUninterruptibly(fileSizeAsync(desc, ext));
+    }
+
+    /**
+     * Asynchronous form of fileSize(). The future fails with a
+     * FileNotFoundException if the file does not exist in the store.
+     *
+     * @see #fileSize(DfsPackDescription, PackExt)
+     */
+    public ListenableFuture<Long> fileSizeAsync(DfsPackDescription desc,
+                                                PackExt ext) {
+        final String name = desc.getFileName(ext);
+        Statement stmt = ns.bind(selectFileSizeStmt, name);
+        return Futures.transform(session.executeAsync(stmt),
+                new AsyncFunction<ResultSet, Long>() {
+                    @Override
+                    public ListenableFuture<Long> apply(ResultSet results)
+                            throws FileNotFoundException {
+                        Row row = results.one();
+                        if (row == null || row.isNull("file_size")) {
+                            throw new FileNotFoundException(name);
+                        }
+                        return Futures.immediateFuture(row.getLong("file_size"));
+                    }
+                });
+    }
+
+    /**
+     * Overwrites the file given by the pair "desc" and "ext" with the data in
+     * the "data" ByteBuffer.
+     * <p/>
+     * Any existing chunks for the file are removed first, so a shorter file
+     * leaves none of the old chunks behind. The partition is only deleted if
+     * it holds a row, as a delete leaves a tombstone which every later read
+     * of the file must skip. The data is then split into chunks of
+     * CHUNK_SIZE bytes, each written as its own row, followed by the total
+     * file size.
      *
      * @throws IOException if an exception occurs when communicating to the
      *                     database
      */
     public void writeFile(DfsPackDescription desc, PackExt ext,
                           ByteBuffer data) throws IOException {
+        final int size = data.remaining();
         try {
-            Statement stmt = QueryBuilder.insertInto(keyspace, DATA_TABLE_NAME)
-                    .value("name", desc.getFileName(ext))
-                    .value("data", Bytes.toHexString(data));
+            if (session.execute(ns.bind(selectFileSizeStmt,
+                    desc.getFileName(ext))).one() != null) {
+                clearFile(desc, ext);
+            }
+            long off = 0;
+            for (ByteBuffer chunk : splitChunks(data)) {
+                final int len = chunk.remaining();
+                writeChunkAsync(desc, ext, off, chunk).getUninterruptibly();
+                off += len;
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+        writeFileSize(desc, ext, size);
+    }
+
+    /**
+     * Removes all chunks, and the size, of the file given by the pair "desc"
+     * and "ext". If the file does not exist this has no effect.
+     *
+     * @throws IOException if an exception occurs when communicating to the
+     *                     database
+     */
+    public void clearFile(DfsPackDescription desc, PackExt ext)
+            throws IOException {
+        try {
+            Statement stmt = ns.bind(deleteFileStmt, desc.getFileName(ext));
+            session.execute(stmt);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Asynchronously writes a single chunk of the file given by the pair
+     * "desc" and "ext".
+     * <p/>
+     * The caller must wait on the returned future to learn whether the write
+     * succeeded. The file is not complete until writeFileSize() is called.
+     *
+     * @param offset offset of the chunk within the file, must be a multiple
+     *               of CHUNK_SIZE
+     * @param data   the chunk contents, at most CHUNK_SIZE bytes. The buffer
+     *               must not be modified until the write has completed.
+     * @return a future that completes when the chunk has been written
+     */
+    public ResultSetFuture writeChunkAsync(DfsPackDescription desc,
+                                           PackExt ext, long offset,
+                                           ByteBuffer data) {
+        if (offset % CHUNK_SIZE != 0 || data.remaining() > CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk at offset "
+                    + offset + " of length " + data.remaining());
+        }
+        Statement stmt = ns.bind(insertChunkStmt, desc.getFileName(ext), offset,
+                data);
+        return session.executeAsync(stmt);
+    }
+
+    /**
+     * Records the total size of the file given by the pair "desc" and "ext".
+     * This is stored once per file, as a static column of the file's
+     * partition, and is written after all of the file's chunks.
+     *
+     * @throws IOException if an exception occurs when communicating to the
+     *                     database
+     */
+    public void writeFileSize(DfsPackDescription desc, PackExt ext, long size)
+            throws IOException {
+        try {
+            Statement stmt = ns.bind(updateFileSizeStmt, size,
+                    desc.getFileName(ext));
             session.execute(stmt);
         } catch (RuntimeException e) {
             e.printStackTrace();
@@ -213,35 +706,133 @@ public class ObjStore {
     }
 
     /**
-     * Creates the Cassandra keyspace and pack tables if it does
-     * not already exist.
+     * Looks up the statements used by this store in the statement cache,
+     * preparing any not yet prepared. Must be called after the schema has
+     * been created.
      *
      * @throws IOException if an exception occurs when communicating to the
      *                     database
      */
-    private void createSchemaIfNotExist() throws IOException {
+    private void prepareStatements(StatementCache cache) throws IOException {
+        final String keyspace = ns.getKeyspace();
         try {
-            session.execute("CREATE KEYSPACE IF NOT EXISTS " + keyspace
-                    + " WITH replication = {'class':'SimpleStrategy',"
-                    + " 'replication_factor':1};");
+            insertDescStmt = cache.prepare(ns.insertInto(DESC_TABLE_NAME)
+                    .value("name", QueryBuilder.bindMarker())
+                    .value("source", QueryBuilder.bindMarker())
+                    .value("last_modified", QueryBuilder.bindMarker())
+                    .value("size_map", QueryBuilder.bindMarker())
+                    .value("object_count", QueryBuilder.bindMarker())
+                    .value("delta_count", QueryBuilder.bindMarker())
+                    .value("extensions", QueryBuilder.bindMarker())
+                    .value("index_version", QueryBuilder.bindMarker()));
+
+            deleteDescStmt = cache.prepare(ns.where(QueryBuilder.delete()
+                    .from(keyspace, DESC_TABLE_NAME))
+                    .and(QueryBuilder.eq("name", QueryBuilder.bindMarker())));
+
+            selectDescsStmt = cache.prepare(ns.where(QueryBuilder
+                    .select()
+                    .all()
+                    .from(keyspace, DESC_TABLE_NAME)));
+
+            selectDescNamesStmt = cache.prepare(ns.where(QueryBuilder
+                    .select("name")
+                    .from(keyspace, DESC_TABLE_NAME)));
+
+            selectDescStmt = cache.prepare(ns.where(QueryBuilder
+                    .select()
+                    .all()
+                    .from(keyspace, DESC_TABLE_NAME))
+                    .and(QueryBuilder.eq("name", QueryBuilder.bindMarker())));
+
+            selectVersionStmt = cache.prepare(QueryBuilder
+                    .select("version")
+                    .from(keyspace, VERSION_TABLE_NAME)
+                    .where(QueryBuilder.eq(Namespace.REPO_COLUMN,
+                            QueryBuilder.bindMarker())));
 
-            session.execute("CREATE TABLE IF NOT EXISTS "
-                    + keyspace + "." + DESC_TABLE_NAME
-                    + " (name varchar PRIMARY KEY, source int, "
-                    + "last_modified bigint, size_map map<text, bigint>, "
-                    + "object_count bigint, delta_count bigint, "
-                    + "extensions int, index_version int);");
+            updateVersionStmt = cache.prepare(QueryBuilder
+                    .update(keyspace, VERSION_TABLE_NAME)
+                    .with(QueryBuilder.set("version", QueryBuilder.bindMarker()))
+                    .where(QueryBuilder.eq(Namespace.REPO_COLUMN,
+                            QueryBuilder.bindMarker())));
 
+            insertTrashStmt = cache.prepare(QueryBuilder
+                    .insertInto(keyspace, TRASH_TABLE_NAME)
+                    .value(Namespace.REPO_COLUMN, QueryBuilder.bindMarker())
+                    .value("trashed", QueryBuilder.bindMarker())
+                    .value("name", QueryBuilder.bindMarker()));
 
-            session.execute("CREATE TABLE IF NOT EXISTS "
-                    + keyspace + "." + DATA_TABLE_NAME
-                    + " (name varchar PRIMARY KEY, data blob);");
+            selectTrashStmt = cache.prepare(QueryBuilder
+                    .select("trashed", "name")
+                    .from(keyspace, TRASH_TABLE_NAME)
+                    .where(QueryBuilder.eq(Namespace.REPO_COLUMN,
+                            QueryBuilder.bindMarker()))
+                    .and(QueryBuilder.lte("trashed", QueryBuilder.bindMarker())));
+
+            deleteTrashStmt = cache.prepare(QueryBuilder.delete()
+                    .from(keyspace, TRASH_TABLE_NAME)
+                    .where(QueryBuilder.eq(Namespace.REPO_COLUMN,
+                            QueryBuilder.bindMarker()))
+                    .and(QueryBuilder.eq("trashed", QueryBuilder.bindMarker()))
+                    .and(QueryBuilder.eq("name", QueryBuilder.bindMarker())));
+
+            selectFileStmt = cache.prepare(ns.where(QueryBuilder
+                    .select("chunk_offset", "data", "file_size")
+                    .from(keyspace, DATA_TABLE_NAME))
+                    .and(QueryBuilder.eq("name", QueryBuilder.bindMarker()))
+                    .orderBy(QueryBuilder.asc("chunk_offset")));
+
+            selectChunksStmt = cache.prepare(ns.where(QueryBuilder
+                    .select("chunk_offset", "data")
+                    .from(keyspace, DATA_TABLE_NAME))
+                    .and(QueryBuilder.eq("name", QueryBuilder.bindMarker()))
+                    .and(QueryBuilder.gte("chunk_offset", QueryBuilder.bindMarker()))
+                    .and(QueryBuilder.lt("chunk_offset", QueryBuilder.bindMarker())));
+
+            selectFileSizeStmt = cache.prepare(ns.where(QueryBuilder
+                    .select("file_size")
+                    .from(keyspace, DATA_TABLE_NAME))
+                    .and(QueryBuilder.eq("name", QueryBuilder.bindMarker()))
+                    .limit(1));
+
+            deleteFileStmt = cache.prepare(ns.where(QueryBuilder.delete()
+                    .from(keyspace, DATA_TABLE_NAME))
+                    .and(QueryBuilder.eq("name", QueryBuilder.bindMarker())));
+
+            insertChunkStmt = cache.prepare(ns.insertInto(DATA_TABLE_NAME)
+                    .value("name", QueryBuilder.bindMarker())
+                    .value("chunk_offset", QueryBuilder.bindMarker())
+                    .value("data", QueryBuilder.bindMarker()));
+
+            Update update = QueryBuilder.update(keyspace, DATA_TABLE_NAME);
+            update.with(QueryBuilder.set("file_size", QueryBuilder.bindMarker()));
+            updateFileSizeStmt = cache.prepare(ns.where(update)
+                    .and(QueryBuilder.eq("name", QueryBuilder.bindMarker())));
         } catch (RuntimeException e) {
             e.printStackTrace();
             throw new IOException(e);
         }
     }
 
+    /**
+     * Splits "data" into views of at most CHUNK_SIZE bytes each. The views
+     * share the content of "data"; nothing is copied.
+     *
+     * @param data the buffer to split, from its position to its limit
+     * @return the chunks, in order
+     */
+    static List<ByteBuffer> splitChunks(ByteBuffer data) {
+        List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        for (int off = data.position(); off < data.limit(); off += CHUNK_SIZE) {
+            ByteBuffer chunk = data.duplicate();
+            chunk.position(off);
+            chunk.limit(Math.min(data.limit(), off + CHUNK_SIZE));
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
     /**
      * Converts a row to a DfsPackDescription
      */
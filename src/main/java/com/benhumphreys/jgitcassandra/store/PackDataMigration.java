@@ -0,0 +1,211 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+
+/**
+ * Copies pack data stored a file per row, as it was before files were split
+ * into chunks, to the chunked layout of the "pack_data" table.
+ * <p/>
+ * Cassandra can neither change the primary key of a table nor rename one, so
+ * the files are first moved aside to the "pack_data_blobs" table, and
+ * "pack_data" is dropped and created again with the new layout. The files
+ * are then written back a chunk at a time, and "pack_data_blobs" is dropped.
+ * A migration which fails part way may safely be run again, and resumes
+ * from the files moved aside.
+ * <p/>
+ * Servers must be stopped while migrating, as packs are unreadable until the
+ * migration completes. The file per row layout predates the shared keyspace,
+ * so only keyspaces holding a single repository are migrated.
+ */
+public class PackDataMigration {
+    /**
+     * Table holding the files moved aside while migrating
+     */
+    static final String OLD_TABLE_NAME = "pack_data_blobs";
+
+    /**
+     * Maximum number of writes outstanding at once
+     */
+    private static final int MAX_IN_FLIGHT = 64;
+
+    /**
+     * Number of rows read per page. Each row is a whole file.
+     */
+    private static final int FETCH_SIZE = 10;
+
+    private final Session session;
+
+    /**
+     * Constructor
+     *
+     * @param session the session used to read and write pack data
+     */
+    public PackDataMigration(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * @return the keyspaces holding pack data which must be migrated,
+     * excluding Cassandra's own keyspaces
+     */
+    public List<String> findKeyspaces() {
+        List<String> keyspaces = new ArrayList<String>();
+        for (KeyspaceMetadata ksm
+                : session.getCluster().getMetadata().getKeyspaces()) {
+            if (!ksm.getName().startsWith("system")
+                    && SchemaManager.isUnchunked(ksm)) {
+                keyspaces.add(ksm.getName());
+            }
+        }
+        return keyspaces;
+    }
+
+    /**
+     * Copies every file in "keyspace" to the chunked layout. If the pack
+     * data table already has the chunked layout, and no files were left
+     * moved aside by an earlier attempt, nothing is copied.
+     *
+     * @param keyspace the keyspace
+     * @return the number of files copied
+     * @throws IOException if the keyspace does not exist, or an exception
+     *                     occurs when communicating to the database
+     */
+    public long migrate(String keyspace) throws IOException {
+        try {
+            KeyspaceMetadata ksm = session.getCluster().getMetadata()
+                    .getKeyspace(keyspace);
+            if (ksm == null) {
+                throw new IOException("No keyspace " + keyspace);
+            }
+            if (ksm.getTable(ObjStore.DATA_TABLE_NAME) != null
+                    && !SchemaManager.isChunked(
+                    ksm.getTable(ObjStore.DATA_TABLE_NAME))) {
+                moveAside(keyspace);
+            } else if (ksm.getTable(OLD_TABLE_NAME) == null) {
+                return 0;
+            }
+            session.execute(SchemaManager.dataTable(keyspace, false));
+            long count = writeChunks(keyspace);
+            session.execute("DROP TABLE " + keyspace + "." + OLD_TABLE_NAME);
+            return count;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Copies the files in the unchunked pack data table to OLD_TABLE_NAME,
+     * and drops the pack data table.
+     */
+    private void moveAside(String keyspace) {
+        session.execute("CREATE TABLE IF NOT EXISTS " + keyspace + "."
+                + OLD_TABLE_NAME + " (name varchar PRIMARY KEY, data blob);");
+        PreparedStatement insertStmt = session.prepare(QueryBuilder
+                .insertInto(keyspace, OLD_TABLE_NAME)
+                .value("name", QueryBuilder.bindMarker())
+                .value("data", QueryBuilder.bindMarker()));
+        Statement select = QueryBuilder.select("name", "data")
+                .from(keyspace, ObjStore.DATA_TABLE_NAME);
+        select.setFetchSize(FETCH_SIZE);
+        Deque<ResultSetFuture> inFlight = new ArrayDeque<ResultSetFuture>();
+        for (Row row : session.execute(select)) {
+            execute(inFlight, insertStmt.bind(row.getString("name"),
+                    row.getBytes("data")));
+        }
+        drain(inFlight);
+        session.execute("DROP TABLE " + keyspace + "."
+                + ObjStore.DATA_TABLE_NAME);
+    }
+
+    /**
+     * Writes each file in OLD_TABLE_NAME to the chunked pack data table,
+     * each chunk as a row followed by the file size, as ObjStore.writeFile()
+     * does.
+     *
+     * @return the number of files written
+     */
+    private long writeChunks(String keyspace) {
+        PreparedStatement insertChunkStmt = session.prepare(QueryBuilder
+                .insertInto(keyspace, ObjStore.DATA_TABLE_NAME)
+                .value("name", QueryBuilder.bindMarker())
+                .value("chunk_offset", QueryBuilder.bindMarker())
+                .value("data", QueryBuilder.bindMarker()));
+        PreparedStatement updateFileSizeStmt = session.prepare(QueryBuilder
+                .update(keyspace, ObjStore.DATA_TABLE_NAME)
+                .with(QueryBuilder.set("file_size", QueryBuilder.bindMarker()))
+                .where(QueryBuilder.eq("name", QueryBuilder.bindMarker())));
+        Statement select = QueryBuilder.select("name", "data")
+                .from(keyspace, OLD_TABLE_NAME);
+        select.setFetchSize(FETCH_SIZE);
+        Deque<ResultSetFuture> inFlight = new ArrayDeque<ResultSetFuture>();
+        long count = 0;
+        for (Row row : session.execute(select)) {
+            String name = row.getString("name");
+            ByteBuffer data = row.getBytes("data");
+            int size = data == null ? 0 : data.remaining();
+            if (data != null) {
+                long off = 0;
+                for (ByteBuffer chunk : ObjStore.splitChunks(data)) {
+                    int len = chunk.remaining();
+                    execute(inFlight, insertChunkStmt.bind(name, off, chunk));
+                    off += len;
+                }
+            }
+            // The size marks the file complete, so is written last
+            drain(inFlight);
+            session.execute(updateFileSizeStmt.bind((long) size, name));
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Sends "stmt", first waiting for the oldest write if MAX_IN_FLIGHT are
+     * outstanding.
+     */
+    private void execute(Deque<ResultSetFuture> inFlight, Statement stmt) {
+        if (inFlight.size() >= MAX_IN_FLIGHT) {
+            inFlight.removeFirst().getUninterruptibly();
+        }
+        inFlight.addLast(session.executeAsync(stmt));
+    }
+
+    /**
+     * Waits for every outstanding write.
+     */
+    private static void drain(Deque<ResultSetFuture> inFlight) {
+        while (!inFlight.isEmpty()) {
+            inFlight.removeFirst().getUninterruptibly();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+import com.datastax.driver.core.querybuilder.Select;
+import com.datastax.driver.core.utils.UUIDs;
+
+/**
+ * Finds pack files with no pack description, such as those left by packs
+ * replaced or rolled back before files were trashed, or by a server which
+ * failed part way through writing a pack, and moves them to the trash.
+ * <p/>
+ * Files are found in bulk, with a scan of the distinct partitions of the
+ * pack data table rather than of every chunk. A pack still being written
+ * also has no description, so nothing is deleted here, and a pack with any
+ * file written to within the last getMinIdle() milliseconds is skipped.
+ * The packs found are trashed as of getOrphanDelay() milliseconds in the
+ * future, so ObjStore.purgeTrash() keeps their files for that much longer
+ * than those of packs replaced or rolled back, and deletes them only if
+ * the pack has not been committed in the meantime.
+ */
+public class PackSweeper {
+    /**
+     * Default time, in milliseconds, since the last write to any of a
+     * pack's files after which the pack may be trashed
+     */
+    public static final long DEFAULT_MIN_IDLE = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * Default time, in milliseconds, added to the grace period of the packs
+     * trashed by a sweep
+     */
+    public static final long DEFAULT_ORPHAN_DELAY = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * Maximum number of inserts outstanding at once
+     */
+    private static final int MAX_IN_FLIGHT = 256;
+
+    /**
+     * Number of rows read per page
+     */
+    private static final int FETCH_SIZE = 1000;
+
+    private final Session session;
+
+    private volatile long minIdle = DEFAULT_MIN_IDLE;
+
+    private volatile long orphanDelay = DEFAULT_ORPHAN_DELAY;
+
+    /**
+     * Constructor
+     *
+     * @param session the session used to read and write the tables
+     */
+    public PackSweeper(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * @return the keyspaces holding a pack data table in the given layout,
+     * excluding Cassandra's own keyspaces
+     */
+    public List<String> findKeyspaces(boolean shared) {
+        List<String> keyspaces = new ArrayList<String>();
+        for (KeyspaceMetadata ksm
+                : session.getCluster().getMetadata().getKeyspaces()) {
+            TableMetadata table = ksm.getTable(ObjStore.DATA_TABLE_NAME);
+            if (!ksm.getName().startsWith("system") && table != null
+                    && (table.getColumn(Namespace.REPO_COLUMN) != null)
+                    == shared) {
+                keyspaces.add(ksm.getName());
+            }
+        }
+        return keyspaces;
+    }
+
+    /**
+     * Moves every pack in "keyspace" which has files but no description to
+     * the trash, unless it is there already or was written to recently,
+     * creating the trash table if it does not exist.
+     *
+     * @param keyspace the keyspace
+     * @return the number of packs moved to the trash
+     * @throws IOException if the keyspace has no pack data table, or an
+     *                     exception occurs when communicating to the
+     *                     database
+     */
+    public long sweep(String keyspace) throws IOException {
+        long count = 0;
+        Deque<ResultSetFuture> inFlight = new ArrayDeque<ResultSetFuture>();
+        try {
+            KeyspaceMetadata ksm = session.getCluster().getMetadata()
+                    .getKeyspace(keyspace);
+            TableMetadata table = ksm != null
+                    ? ksm.getTable(ObjStore.DATA_TABLE_NAME) : null;
+            if (table == null) {
+                throw new IOException("No pack data table in keyspace "
+                        + keyspace);
+            }
+            final boolean shared =
+                    table.getColumn(Namespace.REPO_COLUMN) != null;
+            session.execute(SchemaManager.trashTable(keyspace));
+
+            Set<String> known = new HashSet<String>();
+            for (Row row : scan(select(shared, "name")
+                    .from(keyspace, ObjStore.DESC_TABLE_NAME))) {
+                known.add(key(keyspace, shared, row));
+            }
+            for (Row row : scan(QueryBuilder.select(Namespace.REPO_COLUMN,
+                    "name").from(keyspace, ObjStore.TRASH_TABLE_NAME))) {
+                known.add(key(keyspace, true, row));
+            }
+
+            // The files of each pack not known, keyed by pack
+            Map<DfsPackDescription, List<String>> orphans =
+                    new LinkedHashMap<DfsPackDescription, List<String>>();
+            for (Row row : scan(select(shared, "name").distinct()
+                    .from(keyspace, ObjStore.DATA_TABLE_NAME))) {
+                final String repo = shared
+                        ? row.getString(Namespace.REPO_COLUMN) : keyspace;
+                // The name of a pack's description is that of its pack file
+                final DfsPackDescription pd = new DfsPackDescription(
+                        new DfsRepositoryDescription(repo),
+                        row.getString("name"));
+                if (known.contains(repo + '/' + pd.toString())) {
+                    continue;
+                }
+                List<String> files = orphans.get(pd);
+                if (files == null) {
+                    files = new ArrayList<String>();
+                    orphans.put(pd, files);
+                }
+                files.add(row.getString("name"));
+            }
+
+            Select.Where lastWrite = QueryBuilder.select()
+                    .writeTime("data").writeTime("file_size")
+                    .from(keyspace, ObjStore.DATA_TABLE_NAME)
+                    .where(QueryBuilder.eq("name", QueryBuilder.bindMarker()));
+            if (shared) {
+                lastWrite.and(QueryBuilder.eq(Namespace.REPO_COLUMN,
+                        QueryBuilder.bindMarker()));
+            }
+            PreparedStatement lastWriteStmt = session.prepare(lastWrite
+                    .orderBy(QueryBuilder.desc("chunk_offset")).limit(1));
+            PreparedStatement insertStmt = session.prepare(QueryBuilder
+                    .insertInto(keyspace, ObjStore.TRASH_TABLE_NAME)
+                    .value(Namespace.REPO_COLUMN, QueryBuilder.bindMarker())
+                    .value("trashed", QueryBuilder.bindMarker())
+                    .value("name", QueryBuilder.bindMarker()));
+            final long now = System.currentTimeMillis();
+            final UUID trashed = UUIDs.startOf(now + orphanDelay);
+            for (Map.Entry<DfsPackDescription, List<String>> orphan
+                    : orphans.entrySet()) {
+                final String repo = orphan.getKey().getRepositoryDescription()
+                        .getRepositoryName();
+                long last = 0;
+                for (String file : orphan.getValue()) {
+                    last = Math.max(last, lastWrite(shared
+                            ? lastWriteStmt.bind(file, repo)
+                            : lastWriteStmt.bind(file)));
+                }
+                if (now - last < minIdle) {
+                    // May still be being written
+                    continue;
+                }
+                if (inFlight.size() >= MAX_IN_FLIGHT) {
+                    inFlight.removeFirst().getUninterruptibly();
+                }
+                inFlight.addLast(session.executeAsync(insertStmt.bind(repo,
+                        trashed, orphan.getKey().toString())));
+                count++;
+            }
+            while (!inFlight.isEmpty()) {
+                inFlight.removeFirst().getUninterruptibly();
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+        return count;
+    }
+
+    /**
+     * Deletes the files of the packs in "keyspace" trashed at least
+     * "graceMillis" ago, for every repository with packs in the trash
+     * (@see ObjStore#purgeTrash). No tables are created.
+     *
+     * @param conn        a connection using the layout of "keyspace"
+     * @param keyspace    the keyspace
+     * @param graceMillis the time, in milliseconds, for which the files of a
+     *                    trashed pack are kept
+     * @return the number of packs whose files were deleted
+     * @throws IOException if an exception occurs when communicating to the
+     *                     database
+     */
+    public long purge(StoreConnection conn, String keyspace,
+                      long graceMillis) throws IOException {
+        long purged = 0;
+        for (String repo : findTrashedRepositories(keyspace)) {
+            purged += new ObjStore(repo, conn,
+                    new DfsRepositoryDescription(repo), false)
+                    .purgeTrash(graceMillis);
+        }
+        return purged;
+    }
+
+    /**
+     * @return the repositories in "keyspace" with packs in the trash
+     * @throws IOException if an exception occurs when communicating to the
+     *                     database
+     */
+    public List<String> findTrashedRepositories(String keyspace)
+            throws IOException {
+        List<String> repos = new ArrayList<String>();
+        try {
+            KeyspaceMetadata ksm = session.getCluster().getMetadata()
+                    .getKeyspace(keyspace);
+            if (ksm == null
+                    || ksm.getTable(ObjStore.TRASH_TABLE_NAME) == null) {
+                return repos;
+            }
+            for (Row row : scan(QueryBuilder.select().distinct()
+                    .column(Namespace.REPO_COLUMN)
+                    .from(keyspace, ObjStore.TRASH_TABLE_NAME))) {
+                repos.add(row.getString(Namespace.REPO_COLUMN));
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+        return repos;
+    }
+
+    /**
+     * @return the time, in milliseconds, for which none of a pack's files
+     * must have been written before the pack is trashed
+     */
+    public long getMinIdle() {
+        return minIdle;
+    }
+
+    /**
+     * Sets the time, in milliseconds, for which none of a pack's files must
+     * have been written before the pack is trashed. This must be longer than
+     * any pause in writing a pack may take.
+     */
+    public void setMinIdle(long millis) {
+        minIdle = millis;
+    }
+
+    /**
+     * @return the time, in milliseconds, added to the grace period of the
+     * packs trashed by a sweep
+     */
+    public long getOrphanDelay() {
+        return orphanDelay;
+    }
+
+    /**
+     * Sets the time, in milliseconds, added to the grace period of the packs
+     * trashed by a sweep.
+     */
+    public void setOrphanDelay(long millis) {
+        orphanDelay = millis;
+    }
+
+    /**
+     * Returns the time, in milliseconds, of the last write to the file read
+     * by "stmt", as far as can be told from its last chunk and its size, or
+     * 0 if it no longer exists.
+     */
+    private long lastWrite(Statement stmt) {
+        Row row = session.execute(stmt).one();
+        long last = 0;
+        if (row != null) {
+            for (int i = 0; i < 2; i++) {
+                if (!row.isNull(i)) {
+                    last = Math.max(last, row.getLong(i) / 1000);
+                }
+            }
+        }
+        return last;
+    }
+
+    /**
+     * @return a selection of "column", preceded by the repository column in
+     * the shared layout
+     */
+    private static Select.Selection select(boolean shared, String column) {
+        Select.Selection selection = QueryBuilder.select();
+        if (shared) {
+            selection.column(Namespace.REPO_COLUMN);
+        }
+        return selection.column(column);
+    }
+
+    /**
+     * @return the repository and pack name held in "row"
+     */
+    private static String key(String keyspace, boolean shared, Row row) {
+        return (shared ? row.getString(Namespace.REPO_COLUMN) : keyspace)
+                + '/' + row.getString("name");
+    }
+
+    private Iterable<Row> scan(Statement stmt) {
+        stmt.setFetchSize(FETCH_SIZE);
+        return session.execute(stmt);
+    }
+}
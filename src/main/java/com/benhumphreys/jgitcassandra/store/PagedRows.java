@@ -0,0 +1,118 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * The rows returned by a query which may return many, read a page at a time
+ * with page sizes given by Paging.
+ * <p/>
+ * The next page is requested once half of the current page has been
+ * consumed, so it is usually fetched while the caller is still converting
+ * the current page's rows, rather than once the page has run out. The
+ * rows may be iterated only once.
+ */
+final class PagedRows implements Iterable<Row> {
+    /**
+     * Allowance for the size of each value's length in the protocol, added
+     * to the size of each value measured
+     */
+    private static final int VALUE_OVERHEAD = 4;
+
+    private final Statement stmt;
+
+    private final Paging paging;
+
+    private final Paging.Operation op;
+
+    private final ResultSet results;
+
+    /**
+     * Executes "stmt", fetching its first page.
+     *
+     * @param paging the fetch sizes to use
+     * @param op     the operation "stmt" is executed for
+     */
+    PagedRows(Session session, Statement stmt, Paging paging,
+              Paging.Operation op) {
+        this.stmt = stmt;
+        this.paging = paging;
+        this.op = op;
+        stmt.setFetchSize(paging.initialFetchSize(op));
+        results = session.execute(stmt);
+    }
+
+    @Override
+    public Iterator<Row> iterator() {
+        return new Iterator<Row>() {
+            private final boolean measure = paging.isAdaptive();
+
+            private long rows;
+
+            private long bytes;
+
+            private ListenableFuture<Void> fetching;
+
+            @Override
+            public boolean hasNext() {
+                return !results.isExhausted();
+            }
+
+            @Override
+            public Row next() {
+                final Row row = results.one();
+                if (row == null) {
+                    throw new NoSuchElementException();
+                }
+                if (measure) {
+                    rows++;
+                    for (int i = 0; i < row.getColumnDefinitions().size();
+                         i++) {
+                        ByteBuffer value = row.getBytesUnsafe(i);
+                        bytes += VALUE_OVERHEAD
+                                + (value != null ? value.remaining() : 0);
+                    }
+                }
+                if (!results.isFullyFetched()
+                        && (fetching == null || fetching.isDone())
+                        && results.getAvailableWithoutFetching()
+                        <= stmt.getFetchSize() / 2) {
+                    if (measure) {
+                        stmt.setFetchSize(paging.nextFetchSize(op,
+                                bytes / rows));
+                    }
+                    fetching = results.fetchMoreResults();
+                }
+                return row;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fetch sizes for the queries which read many rows, by operation.
+ * <p/>
+ * Each page of a query's results is a round trip to the database, so the
+ * time taken to read many small rows is dominated by latency unless pages
+ * are large. The fetch size configured for an operation is used for the
+ * first page it reads. Unless disabled with setPageBytes(0), the size of the
+ * rows read is then measured, and later pages, and the first page of later
+ * reads by the same operation, are sized to hold about getPageBytes() bytes.
+ * So listings of small rows such as refs are read in a few large pages,
+ * while reads of large rows such as file chunks are not.
+ * <p/>
+ * Options may be changed at any time; reads in progress are not affected.
+ */
+public final class Paging {
+    /**
+     * The operations which read many rows
+     */
+    public enum Operation {
+        /**
+         * Scans of the refs table
+         */
+        REFS(100),
+
+        /**
+         * Reads of the log of modified refs
+         */
+        REF_LOG(1000),
+
+        /**
+         * Listings of the packs in a repository
+         */
+        PACKS(100),
+
+        /**
+         * Reads of whole files, a chunk per row
+         */
+        FILES(100);
+
+        private final int defaultFetchSize;
+
+        Operation(int defaultFetchSize) {
+            this.defaultFetchSize = defaultFetchSize;
+        }
+
+        /**
+         * @return the fetch size used unless another is configured
+         */
+        public int getDefaultFetchSize() {
+            return defaultFetchSize;
+        }
+    }
+
+    /**
+     * Default size of a page, in bytes, when sizing pages by row size
+     */
+    public static final long DEFAULT_PAGE_BYTES = 1024 * 1024;
+
+    /**
+     * Maximum number of rows in a page when sizing pages by row size, which
+     * bounds the work done by the database for a single page
+     */
+    static final int MAX_FETCH_SIZE = 10000;
+
+    private final AtomicIntegerArray fetchSizes =
+            new AtomicIntegerArray(Operation.values().length);
+
+    /**
+     * Average size of the rows read by each operation, or 0 if not yet
+     * measured
+     */
+    private final AtomicLongArray rowBytes =
+            new AtomicLongArray(Operation.values().length);
+
+    private volatile long pageBytes = DEFAULT_PAGE_BYTES;
+
+    /**
+     * Constructor. Each operation uses its default fetch size, and pages are
+     * sized by row size.
+     */
+    public Paging() {
+        for (Operation op : Operation.values()) {
+            fetchSizes.set(op.ordinal(), op.getDefaultFetchSize());
+        }
+    }
+
+    /**
+     * @return the size of the first page read by "op", before the size of
+     * its rows is known
+     */
+    public int getFetchSize(Operation op) {
+        return fetchSizes.get(op.ordinal());
+    }
+
+    /**
+     * Sets the size of the first page read by "op", before the size of its
+     * rows is known, or of every page if pages are not sized by row size.
+     *
+     * @throws IllegalArgumentException if "size" is not positive
+     */
+    public void setFetchSize(Operation op, int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Invalid fetch size: " + size);
+        }
+        fetchSizes.set(op.ordinal(), size);
+    }
+
+    /**
+     * @return the size of a page, in bytes, when sizing pages by row size,
+     * or 0 if pages are not sized by row size
+     */
+    public long getPageBytes() {
+        return pageBytes;
+    }
+
+    /**
+     * Sets the size of a page, in bytes, when sizing pages by row size.
+     *
+     * @param bytes the page size, or 0 to always use the configured fetch
+     *              sizes
+     * @throws IllegalArgumentException if "bytes" is negative
+     */
+    public void setPageBytes(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Invalid page size: " + bytes);
+        }
+        pageBytes = bytes;
+    }
+
+    /**
+     * @return the fetch size for the first page of a read by "op"
+     */
+    int initialFetchSize(Operation op) {
+        return fetchSize(op, rowBytes.get(op.ordinal()));
+    }
+
+    /**
+     * Records the average size of the rows read by "op", and returns the
+     * fetch size for its next page.
+     *
+     * @param averageRowBytes the average size of the rows read, in bytes
+     */
+    int nextFetchSize(Operation op, long averageRowBytes) {
+        rowBytes.set(op.ordinal(), averageRowBytes);
+        return fetchSize(op, averageRowBytes);
+    }
+
+    /**
+     * @return true if the size of the rows read should be measured
+     */
+    boolean isAdaptive() {
+        return pageBytes > 0;
+    }
+
+    private int fetchSize(Operation op, long averageRowBytes) {
+        final long bytes = pageBytes;
+        if (bytes == 0 || averageRowBytes <= 0) {
+            return getFetchSize(op);
+        }
+        return (int) Math.max(1, Math.min(MAX_FETCH_SIZE,
+                bytes / averageRowBytes));
+    }
+}
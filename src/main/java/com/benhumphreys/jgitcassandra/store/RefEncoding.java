@@ -0,0 +1,153 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+import com.datastax.driver.core.Row;
+
+/**
+ * How the "value" and "aux_value" columns of a refs table are encoded.
+ * <p/>
+ * TEXT, the original encoding, stores object ids as 40 character hex
+ * strings in the "refs" table. BINARY stores them as 20 byte blobs in the
+ * "refs_bin" table, halving their size and replacing a hex decode per ref
+ * with a copy. In both, a symbolic ref's value is the name of its target;
+ * in BINARY this is encoded as UTF-8.
+ */
+enum RefEncoding {
+    TEXT(RefStore.TABLE_NAME, "varchar") {
+        @Override
+        Object encodeId(ObjectId id) {
+            return id.name();
+        }
+
+        @Override
+        ObjectId decodeId(Row row, String column) {
+            return ObjectId.fromString(row.getString(column));
+        }
+
+        @Override
+        Object encodeTarget(String name) {
+            return name;
+        }
+
+        @Override
+        String decodeTarget(Row row) {
+            return row.getString("value");
+        }
+
+        @Override
+        Object empty() {
+            return "";
+        }
+    },
+
+    BINARY(RefStore.BINARY_TABLE_NAME, "blob") {
+        @Override
+        Object encodeId(ObjectId id) {
+            byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+            id.copyRawTo(raw, 0);
+            return ByteBuffer.wrap(raw);
+        }
+
+        @Override
+        ObjectId decodeId(Row row, String column) {
+            ByteBuffer buf = row.getBytes(column);
+            if (buf.hasArray()) {
+                return ObjectId.fromRaw(buf.array(),
+                        buf.arrayOffset() + buf.position());
+            }
+            byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+            buf.duplicate().get(raw);
+            return ObjectId.fromRaw(raw);
+        }
+
+        @Override
+        Object encodeTarget(String name) {
+            return ByteBuffer.wrap(name.getBytes(UTF_8));
+        }
+
+        @Override
+        String decodeTarget(Row row) {
+            ByteBuffer buf = row.getBytes("value");
+            byte[] bytes = new byte[buf.remaining()];
+            buf.duplicate().get(bytes);
+            return new String(bytes, UTF_8);
+        }
+
+        @Override
+        Object empty() {
+            return ByteBuffer.allocate(0);
+        }
+    };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String tableName;
+
+    private final String columnType;
+
+    RefEncoding(String tableName, String columnType) {
+        this.tableName = tableName;
+        this.columnType = columnType;
+    }
+
+    /**
+     * @return the name of the table holding refs in this encoding
+     */
+    String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * @return the CQL type of the "value" and "aux_value" columns
+     */
+    String getColumnType() {
+        return columnType;
+    }
+
+    /**
+     * @return the value bound for an object id
+     */
+    abstract Object encodeId(ObjectId id);
+
+    /**
+     * @return the object id held in "column" of "row"
+     */
+    abstract ObjectId decodeId(Row row, String column);
+
+    /**
+     * @return the value bound for the target of a symbolic ref
+     */
+    abstract Object encodeTarget(String name);
+
+    /**
+     * @return the target name held in the "value" column of "row"
+     */
+    abstract String decodeTarget(Row row);
+
+    /**
+     * @return the value bound for an "aux_value" column with nothing to
+     * hold
+     */
+    abstract Object empty();
+}
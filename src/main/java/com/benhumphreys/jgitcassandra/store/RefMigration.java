@@ -0,0 +1,173 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.querybuilder.Insert;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+
+/**
+ * Copies refs stored with text object ids (the "refs" table) to the binary
+ * encoding (the "refs_bin" table), for use with StoreConnection's
+ * binaryRefIds option.
+ * <p/>
+ * Refs modified while a copy is in progress may be copied with their old
+ * value, so servers should be stopped while migrating. The "refs" table is
+ * left in place, and may be dropped once servers have been restarted with
+ * binary ref ids.
+ */
+public class RefMigration {
+    /**
+     * Maximum number of inserts outstanding at once
+     */
+    private static final int MAX_IN_FLIGHT = 256;
+
+    /**
+     * Number of rows read per page
+     */
+    private static final int FETCH_SIZE = 1000;
+
+    private final Session session;
+
+    /**
+     * Constructor
+     *
+     * @param session the session used to read and write refs
+     */
+    public RefMigration(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * @return the keyspaces holding a text refs table, excluding Cassandra's
+     * own keyspaces
+     */
+    public List<String> findKeyspaces() {
+        List<String> keyspaces = new ArrayList<String>();
+        for (KeyspaceMetadata ksm
+                : session.getCluster().getMetadata().getKeyspaces()) {
+            if (!ksm.getName().startsWith("system")
+                    && ksm.getTable(RefStore.TABLE_NAME) != null) {
+                keyspaces.add(ksm.getName());
+            }
+        }
+        return keyspaces;
+    }
+
+    /**
+     * Copies every ref in "keyspace" to the binary refs table, creating the
+     * table if it does not exist. Refs already in the binary table are
+     * overwritten, so a migration may safely be run again.
+     * <p/>
+     * Whether the keyspace is shared by all repositories is determined from
+     * the columns of its refs table.
+     *
+     * @param keyspace the keyspace
+     * @return the number of refs copied
+     * @throws IOException if the keyspace has no refs table, or an exception
+     *                     occurs when communicating to the database
+     */
+    public long migrate(String keyspace) throws IOException {
+        long count = 0;
+        Deque<ResultSetFuture> inFlight = new ArrayDeque<ResultSetFuture>();
+        try {
+            KeyspaceMetadata ksm = session.getCluster().getMetadata()
+                    .getKeyspace(keyspace);
+            TableMetadata table = ksm != null
+                    ? ksm.getTable(RefStore.TABLE_NAME) : null;
+            if (table == null) {
+                throw new IOException("No refs table in keyspace " + keyspace);
+            }
+            final boolean shared =
+                    table.getColumn(Namespace.REPO_COLUMN) != null;
+            session.execute(SchemaManager.refsTable(keyspace, shared,
+                    RefEncoding.BINARY));
+            Insert insert = QueryBuilder.insertInto(keyspace,
+                    RefStore.BINARY_TABLE_NAME);
+            if (shared) {
+                insert.value(Namespace.REPO_COLUMN, QueryBuilder.bindMarker());
+            }
+            PreparedStatement insertStmt = session.prepare(insert
+                    .value("name", QueryBuilder.bindMarker())
+                    .value("type", QueryBuilder.bindMarker())
+                    .value("value", QueryBuilder.bindMarker())
+                    .value("aux_value", QueryBuilder.bindMarker()));
+
+            Statement select = QueryBuilder.select().all()
+                    .from(keyspace, RefStore.TABLE_NAME);
+            select.setFetchSize(FETCH_SIZE);
+            for (Row row : session.execute(select)) {
+                List<Object> values = new ArrayList<Object>(5);
+                if (shared) {
+                    values.add(row.getString(Namespace.REPO_COLUMN));
+                }
+                values.add(row.getString("name"));
+                values.add(row.getInt("type"));
+                values.add(convertValue(row));
+                values.add(convertAuxValue(row));
+                if (inFlight.size() >= MAX_IN_FLIGHT) {
+                    inFlight.removeFirst().getUninterruptibly();
+                }
+                inFlight.addLast(session.executeAsync(
+                        insertStmt.bind(values.toArray())));
+                count++;
+            }
+            while (!inFlight.isEmpty()) {
+                inFlight.removeFirst().getUninterruptibly();
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+        return count;
+    }
+
+    /**
+     * @return the binary form of the "value" column of a text refs row
+     */
+    private static Object convertValue(Row row) {
+        if (row.getInt("type") == RefType.SYMBOLIC.getValue()) {
+            return RefEncoding.BINARY.encodeTarget(
+                    RefEncoding.TEXT.decodeTarget(row));
+        }
+        return RefEncoding.BINARY.encodeId(
+                RefEncoding.TEXT.decodeId(row, "value"));
+    }
+
+    /**
+     * @return the binary form of the "aux_value" column of a text refs row
+     */
+    private static Object convertAuxValue(Row row) {
+        if (row.getInt("type") == RefType.PEELED_TAG.getValue()) {
+            return RefEncoding.BINARY.encodeId(
+                    RefEncoding.TEXT.decodeId(row, "aux_value"));
+        }
+        return RefEncoding.BINARY.empty();
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+
+/**
+ * Encodes every ref of a repository as a single compressed blob, in the
+ * manner of a packed-refs file, so the refs can be read back in a few
+ * large reads rather than one small read per page of refs.
+ * <p/>
+ * Refs are written sorted by name, each name stored as the length of the
+ * prefix it shares with the previous name followed by the rest of the name.
+ * Object ids are stored in binary. The whole is deflated and then split
+ * into chunks of at most CHUNK_SIZE bytes, each stored in its own row.
+ * <p/>
+ * Symbolic refs are stored unresolved, by the name of their target, and are
+ * resolved when read in the same way as rows of the refs table.
+ */
+final class RefSnapshot {
+    /**
+     * Maximum size of a single chunk
+     */
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Identifies the encoding, so it may be changed later
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    private RefSnapshot() {
+    }
+
+    /**
+     * Encodes refs as a list of chunks.
+     *
+     * @param ids      non-symbolic refs, keyed by name
+     * @param symbolic the target of every symbolic ref, keyed by name
+     * @return the chunks of the snapshot, of which there is at least one
+     */
+    static List<ByteBuffer> encode(Map<String, Ref> ids,
+                                   Map<String, String> symbolic) {
+        Map<String, Object> sorted = new TreeMap<String, Object>(ids);
+        sorted.putAll(symbolic);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new DeflaterOutputStream(bytes));
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(sorted.size());
+            String prev = "";
+            for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+                final String name = entry.getKey();
+                final int shared = sharedPrefix(prev, name);
+                out.writeShort(shared);
+                out.writeUTF(name.substring(shared));
+                prev = name;
+
+                if (entry.getValue() instanceof String) {
+                    out.writeByte(RefType.SYMBOLIC.getValue());
+                    out.writeUTF((String) entry.getValue());
+                    continue;
+                }
+                Ref ref = (Ref) entry.getValue();
+                if (ref instanceof ObjectIdRef.PeeledTag) {
+                    out.writeByte(RefType.PEELED_TAG.getValue());
+                    writeId(out, ref.getObjectId());
+                    writeId(out, ref.getPeeledObjectId());
+                } else if (ref instanceof ObjectIdRef.PeeledNonTag) {
+                    out.writeByte(RefType.PEELED_NONTAG.getValue());
+                    writeId(out, ref.getObjectId());
+                } else {
+                    out.writeByte(RefType.UNPEELED.getValue());
+                    writeId(out, ref.getObjectId());
+                }
+            }
+            out.close();
+        } catch (IOException e) {
+            // Not thrown when writing to memory
+            throw new IllegalStateException(e);
+        }
+
+        final byte[] data = bytes.toByteArray();
+        List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        int off = 0;
+        do {
+            final int len = Math.min(CHUNK_SIZE, data.length - off);
+            chunks.add(ByteBuffer.wrap(data, off, len).slice());
+            off += len;
+        } while (off < data.length);
+        return chunks;
+    }
+
+    /**
+     * Decodes a snapshot written by encode(), adding its refs to "ids" and
+     * "symbolic".
+     *
+     * @param chunks   the chunks of the snapshot, in order
+     * @param ids      receives the non-symbolic refs, keyed by name
+     * @param symbolic receives the target of every symbolic ref, keyed by
+     *                 name
+     * @throws IOException if the snapshot is truncated or corrupt
+     */
+    static void decode(List<ByteBuffer> chunks, Map<String, Ref> ids,
+                       Map<String, String> symbolic) throws IOException {
+        int size = 0;
+        for (ByteBuffer chunk : chunks) {
+            size += chunk.remaining();
+        }
+        byte[] data = new byte[size];
+        int off = 0;
+        for (ByteBuffer chunk : chunks) {
+            final int len = chunk.remaining();
+            chunk.duplicate().get(data, off, len);
+            off += len;
+        }
+
+        DataInputStream in = new DataInputStream(new InflaterInputStream(
+                new ByteArrayInputStream(data)));
+        try {
+            final int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unknown ref snapshot version: "
+                        + version);
+            }
+            final int count = in.readInt();
+            String prev = "";
+            for (int i = 0; i < count; i++) {
+                final int shared = in.readUnsignedShort();
+                final String name = prev.substring(0, shared) + in.readUTF();
+                prev = name;
+
+                final int type = in.readUnsignedByte();
+                if (type == RefType.SYMBOLIC.getValue()) {
+                    symbolic.put(name, in.readUTF());
+                } else if (type == RefType.PEELED_TAG.getValue()) {
+                    ids.put(name, new ObjectIdRef.PeeledTag(
+                            Ref.Storage.NETWORK, name, readId(in),
+                            readId(in)));
+                } else if (type == RefType.PEELED_NONTAG.getValue()) {
+                    ids.put(name, new ObjectIdRef.PeeledNonTag(
+                            Ref.Storage.NETWORK, name, readId(in)));
+                } else if (type == RefType.UNPEELED.getValue()) {
+                    ids.put(name, new ObjectIdRef.Unpeeled(
+                            Ref.Storage.NETWORK, name, readId(in)));
+                } else {
+                    throw new IOException("Unhandled ref type: " + type);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int sharedPrefix(String a, String b) {
+        final int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static void writeId(DataOutputStream out, ObjectId id)
+            throws IOException {
+        byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        id.copyRawTo(raw, 0);
+        out.write(raw);
+    }
+
+    private static ObjectId readId(DataInputStream in) throws IOException {
+        byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        in.readFully(raw);
+        return ObjectId.fromRaw(raw);
+    }
+}
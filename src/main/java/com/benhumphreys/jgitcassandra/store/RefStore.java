@@ -17,9 +17,19 @@
 package com.benhumphreys.jgitcassandra.store;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectIdRef;
@@ -27,58 +37,220 @@ import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.SymbolicRef;
 
 import com.benhumphreys.jgitcassandra.Utils;
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
+import com.datastax.driver.core.querybuilder.Update;
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * Provides access to the Ref store.
  * <p/>
  * This class provides map (i.e. key/value) semantics, mapping a "name" to
- * a Ref. The map exists within a namespace identified by the "keyspace".
- * Key/value pairs are distinct within a keyspace.
+ * a Ref. The map exists within a namespace identified by the repository
+ * name: either a keyspace of its own, or a partition of a shared keyspace
+ * (@see Namespace). Key/value pairs are distinct within a repository.
+ * <p/>
+ * Besides the refs table, which holds a row per ref and is the authority
+ * on each ref's value, all refs are kept as a compressed snapshot (@see
+ * RefSnapshot), along with a log of the names of refs modified, ordered by
+ * time. values() reads the snapshot and the part of the log written since
+ * the snapshot was taken, and looks up only the logged refs, rather than
+ * scanning the refs table a page at a time. Once LOG_LIMIT refs have been
+ * logged since the snapshot was taken, or it is older than
+ * SNAPSHOT_MAX_AGE, the snapshot is rebuilt from a scan of the refs table.
+ * Only the caller holding the rebuild lease, a short-lived column claimed
+ * with a conditional update, rebuilds the snapshot; the others carry on
+ * reading the old snapshot and the whole of the log meanwhile, so a
+ * snapshot falling due does not make every server scan the refs at once.
+ * <p/>
+ * Log entries are never deleted, so reading the log does not pass over
+ * tombstones; they expire after LOG_TTL instead, which is longer than any
+ * snapshot is used for.
+ * <p/>
+ * A ref is logged before it is modified, so a modification which is applied
+ * is always seen by values(), even if the process making it fails before
+ * learning the outcome. A modification which is logged but not applied only
+ * costs values() an extra lookup. Refs must only be modified through this
+ * class, so that every modification is logged.
  */
 public class RefStore {
     /**
-     * Cassandra fetch size. This won't limit the size of a query result set, but
-     * a large result set will be broken up into multiple fetches if the result set
-     * size exceeds FETCH_SIZE
+     * Refs table name
      */
-    private static final int FETCH_SIZE = 100;
+    static final String TABLE_NAME = "refs";
 
     /**
-     * Refs table name
+     * Refs table name when object ids are stored in binary
+     * (@see RefEncoding)
+     */
+    static final String BINARY_TABLE_NAME = "refs_bin";
+
+    /**
+     * Ref version table name. This holds a single row per repository, keyed
+     * by repository name in both layouts.
+     */
+    static final String VERSION_TABLE_NAME = "ref_version";
+
+    /**
+     * Ref snapshot table name. A repository's snapshots are held in a single
+     * partition, keyed by repository name in both layouts.
+     */
+    static final String SNAPSHOT_TABLE_NAME = "ref_snapshot";
+
+    /**
+     * Ref log table name. A repository's log is held in a single partition,
+     * keyed by repository name in both layouts.
+     */
+    static final String LOG_TABLE_NAME = "ref_log";
+
+    /**
+     * Number of log entries since the snapshot was taken at which values()
+     * rebuilds the snapshot
+     */
+    static final int LOG_LIMIT = 1000;
+
+    /**
+     * Age at which values() rebuilds the snapshot, in milliseconds
+     */
+    private static final long SNAPSHOT_MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * Time for which log entries are kept, in seconds. This must exceed
+     * SNAPSHOT_MAX_USE, so the entries written since a snapshot was taken
+     * are kept for as long as it may be used.
+     */
+    private static final int LOG_TTL = (int) TimeUnit.DAYS.toSeconds(2);
+
+    /**
+     * Age after which a snapshot is no longer used, in milliseconds, even
+     * while another process holds the rebuild lease. The refs table is
+     * scanned instead.
+     */
+    private static final long SNAPSHOT_MAX_USE =
+            TimeUnit.SECONDS.toMillis(LOG_TTL) - TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Time for which the rebuild lease is held, in seconds, unless released
+     * sooner. Should the process holding it fail, another takes over the
+     * rebuild once it expires.
      */
-    private static final String TABLE_NAME = "refs";
+    private static final int LEASE_TTL = (int) TimeUnit.MINUTES.toSeconds(5);
 
     /**
-     * The keyspace acts as a namespace
+     * Allowance, in milliseconds, for the time between a ref being logged
+     * and the modification being applied, and for the clocks of the
+     * processes writing log entries running behind the clock of the process
+     * which took the snapshot. Log entries written up to this long before
+     * the snapshot was taken are looked up along with those written since,
+     * but do not count towards LOG_LIMIT. Cassandra already relies on the
+     * clocks of its clients being synchronised to order writes.
      */
-    private final String keyspace;
+    private static final long LOG_OVERLAP = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Maximum number of symbolic refs followed to reach an object id, the
+     * same limit JGit applies (RefDatabase.MAX_SYMBOLIC_REF_DEPTH)
+     */
+    static final int MAX_SYMBOLIC_REF_DEPTH = 5;
+
+    /**
+     * Extracts the outcome of a conditional statement
+     */
+    private static final Function<ResultSet, Boolean> WAS_APPLIED =
+            new Function<ResultSet, Boolean>() {
+                @Override
+                public Boolean apply(ResultSet results) {
+                    return results.wasApplied();
+                }
+            };
+
+    /**
+     * The keyspace, and partition in shared mode, holding the refs
+     */
+    private final Namespace ns;
+
+    private final String repoName;
+
+    private final RefEncoding encoding;
 
     /**
      * A Cassandra session instance
      */
     private final Session session;
 
+    /**
+     * Fetch sizes for queries returning many rows
+     */
+    private final Paging paging;
+
+    /**
+     * Prepared statements, obtained from the connection's statement cache
+     */
+    private PreparedStatement selectRefStmt;
+
+    private PreparedStatement selectAllStmt;
+
+    private PreparedStatement selectRangeStmt;
+
+    private PreparedStatement selectFromStmt;
+
+    private PreparedStatement insertRefStmt;
+
+    private PreparedStatement updateRefStmt;
+
+    private PreparedStatement deleteRefStmt;
+
+    private PreparedStatement selectVersionStmt;
+
+    private PreparedStatement updateVersionStmt;
+
+    private PreparedStatement selectSnapshotStmt;
+
+    private PreparedStatement insertSnapshotChunkStmt;
+
+    private PreparedStatement updateCurrentSnapshotStmt;
+
+    private PreparedStatement deleteSnapshotStmt;
+
+    private PreparedStatement acquireLeaseStmt;
+
+    private PreparedStatement releaseLeaseStmt;
+
+    private PreparedStatement selectLogStmt;
+
+    private PreparedStatement insertLogStmt;
+
     /**
      * Constructor
      *
-     * @param keyspace the Cassandra keyspace
-     * @param session  a Cassandra session instance
+     * @param repoName the name of the repository
+     * @param conn     connection to the Cassandra data store
      * @throws NullPointerException if either of the parameters are null
      * @throws IOException          if an exception occurs when communicating to the
      *                              database
      */
-    public RefStore(String keyspace, Session session) throws IOException {
-        if (keyspace == null || session == null) {
+    public RefStore(String repoName, StoreConnection conn) throws IOException {
+        if (repoName == null || conn == null) {
             throw new NullPointerException();
         }
-        this.keyspace = keyspace;
-        this.session = session;
-        createSchemaIfNotExist();
+        this.ns = new Namespace(repoName, conn);
+        this.repoName = repoName;
+        this.encoding = conn.isBinaryRefIds() ? RefEncoding.BINARY
+                : RefEncoding.TEXT;
+        this.session = conn.getSession();
+        this.paging = conn.getPaging();
+        conn.getSchemaManager().ensureSchema(ns.getKeyspace(), ns.isShared());
+        prepareStatements(conn.getStatementCache());
     }
 
     /**
@@ -91,52 +263,330 @@ public class RefStore {
      *                     database
      */
     public Ref get(String name) throws IOException {
+        return Utils.getUninterruptibly(getAsync(name));
+    }
+
+    /**
+     * Asynchronous form of get().
+     *
+     * @see #get(String)
+     */
+    public ListenableFuture<Ref> getAsync(String name) {
+        return getAsync(name, 0);
+    }
+
+    /**
+     * Asynchronous form of get(), for a ref reached by following "depth"
+     * symbolic refs.
+     */
+    private ListenableFuture<Ref> getAsync(final String name, final int depth) {
+        ResultSetFuture future = session.executeAsync(ns.bind(selectRefStmt, name));
+        return Futures.transform(future, new AsyncFunction<ResultSet, Ref>() {
+            @Override
+            public ListenableFuture<Ref> apply(ResultSet results) {
+                Row row = results.one();
+                if (!results.isExhausted()) {
+                    throw new IllegalStateException("Multiple rows for a single ref: "
+                            + name);
+                }
+                return rowToRef(row, depth);
+            }
+        });
+    }
+
+    /**
+     * Returns all refs in the store.
+     * <p/>
+     * The refs are read from the snapshot, with those logged since the
+     * snapshot was taken looked up concurrently, so this makes a few reads
+     * however many refs there are. If there is no complete snapshot, or it
+     * is due to be rebuilt and the rebuild lease can be taken, the refs table
+     * is scanned instead and the snapshot rebuilt from the scan. Symbolic
+     * refs are resolved against the refs read, without a query per symbolic
+     * ref.
+     *
+     * @return a Collection view of all refs in the store
+     * @throws IOException if an exception occurs when communicating to the
+     *                     database
+     */
+    public Collection<Ref> values() throws IOException {
+        Map<String, Ref> ids = new HashMap<String, Ref>();
+        Map<String, String> symbolic = new HashMap<String, String>();
+        UUID current = null;
+        Date asOf = null;
+        int count = 0;
+        boolean leased = false;
+        List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        final UUID lease = UUIDs.timeBased();
         try {
-            Statement stmt = QueryBuilder
-                    .select()
-                    .all()
-                    .from(keyspace, TABLE_NAME)
-                    .where(QueryBuilder.eq("name", name));
-            ResultSet results = session.execute(stmt);
-            Ref r = rowToRef(results.one());
-            if (!results.isExhausted()) {
-                throw new IllegalStateException("Multiple rows for a single ref: "
-                        + name);
+            for (Row row : session.execute(
+                    selectSnapshotStmt.bind(repoName))) {
+                current = row.getUUID("current");
+                asOf = row.getDate("as_of");
+                count = row.getInt("chunks");
+                leased = row.getUUID("lease") != null;
+                if (current != null && current.equals(row.getUUID("id"))) {
+                    chunks.add(row.getBytes("data"));
+                }
+            }
+
+            final long age = asOf != null
+                    ? System.currentTimeMillis() - asOf.getTime() : 0;
+            if (current != null && chunks.size() == count
+                    && age < SNAPSHOT_MAX_USE) {
+                // Once due, the snapshot is rebuilt by whichever caller
+                // takes the lease. The others merge the whole log.
+                boolean rebuild = false;
+                if (age >= SNAPSHOT_MAX_AGE && !leased) {
+                    rebuild = acquireLease(lease);
+                    leased = !rebuild;
+                }
+                Set<String> logged = new HashSet<String>();
+                int entries = 0;
+                Iterator<Row> log = rebuild
+                        ? Collections.<Row>emptyIterator()
+                        : new PagedRows(session, selectLogStmt.bind(repoName,
+                        UUIDs.startOf(asOf.getTime() - LOG_OVERLAP)),
+                        paging, Paging.Operation.REF_LOG).iterator();
+                while (!rebuild && log.hasNext()) {
+                    Row row = log.next();
+                    logged.add(row.getString("name"));
+                    if (UUIDs.unixTimestamp(row.getUUID("changed"))
+                            >= asOf.getTime() && ++entries == LOG_LIMIT
+                            && !leased) {
+                        rebuild = acquireLease(lease);
+                    }
+                }
+                if (!rebuild) {
+                    RefSnapshot.decode(chunks, ids, symbolic);
+                    lookupAll(logged, ids, symbolic);
+                    return resolveAll(ids, symbolic);
+                }
+            } else if (leased || !acquireLease(lease)) {
+                // Another process is rebuilding the snapshot
+                scanTable(ns.bind(selectAllStmt), ids, symbolic);
+                return resolveAll(ids, symbolic);
             }
-            return r;
         } catch (RuntimeException e) {
             e.printStackTrace();
             throw new IOException(e);
         }
+
+        try {
+            final Date scanned = new Date();
+            scanTable(ns.bind(selectAllStmt), ids, symbolic);
+            rebuildSnapshot(current, scanned, ids, symbolic);
+        } finally {
+            releaseLease(lease);
+        }
+        return resolveAll(ids, symbolic);
     }
 
     /**
-     * @return a Collection view of all refs in the store
+     * Returns all refs in the store, read by scanning the refs table rather
+     * than from the snapshot.
+     */
+    Collection<Ref> valuesFromTable() throws IOException {
+        return scan(ns.bind(selectAllStmt));
+    }
+
+    /**
+     * Returns the refs whose names start with "prefix".
+     * <p/>
+     * Ref names are clustering columns in the shared layout, so this is a
+     * single range scan of the repository's partition, and refs outside the
+     * range are not read. Symbolic refs within the range are resolved as
+     * in values(), with targets outside the range looked up.
+     *
+     * @param prefix the name prefix, e.g. "refs/heads/"
+     * @return the refs whose names start with "prefix"
+     * @throws IllegalStateException if the refs are not in a single
+     *                               partition (@see #isSinglePartition())
      * @throws IOException if an exception occurs when communicating to the
      *                     database
      */
-    public Collection<Ref> values() throws IOException {
+    public Collection<Ref> values(String prefix) throws IOException {
+        if (!isSinglePartition()) {
+            throw new IllegalStateException(
+                    "Refs are not stored in a single partition");
+        }
+        if (prefix.isEmpty()) {
+            return values();
+        }
+        final String end = rangeEnd(prefix);
+        return end != null
+                ? scan(ns.bind(selectRangeStmt, prefix, end))
+                : scan(ns.bind(selectFromStmt, prefix));
+    }
+
+    /**
+     * Returns the least string greater than every string starting with
+     * "prefix", as text columns are ordered: by their UTF-8 encoding, which
+     * orders strings by code point rather than by char. This is "prefix"
+     * with its last code point incremented, once any trailing
+     * Character.MAX_CODE_POINT, which has no successor, is dropped.
+     *
+     * @return the end of the range, or null if the range has no end as
+     * "prefix" is made up of Character.MAX_CODE_POINT alone
+     */
+    static String rangeEnd(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.codePointBefore(end)
+                == Character.MAX_CODE_POINT) {
+            end -= Character.charCount(Character.MAX_CODE_POINT);
+        }
+        if (end == 0) {
+            return null;
+        }
+        final int last = prefix.codePointBefore(end);
+        int next = last + 1;
+        if (next == Character.MIN_SURROGATE) {
+            // Not a code point of its own
+            next = Character.MAX_SURROGATE + 1;
+        }
+        return new StringBuilder(prefix.substring(0,
+                end - Character.charCount(last))).appendCodePoint(next)
+                .toString();
+    }
+
+    /**
+     * Executes "stmt", which selects rows of the refs table, and returns
+     * the refs read with symbolic refs resolved.
+     */
+    private Collection<Ref> scan(Statement stmt) throws IOException {
+        Map<String, Ref> ids = new HashMap<String, Ref>();
+        Map<String, String> symbolic = new HashMap<String, String>();
+        scanTable(stmt, ids, symbolic);
+        return resolveAll(ids, symbolic);
+    }
+
+    /**
+     * Executes "stmt", which selects rows of the refs table, adding the
+     * refs read to "ids", or to "symbolic" if symbolic.
+     */
+    private void scanTable(Statement stmt, Map<String, Ref> ids,
+                           Map<String, String> symbolic) throws IOException {
         try {
-            List<Ref> refs = new ArrayList<Ref>();
-            Statement stmt = QueryBuilder
-                    .select()
-                    .all()
-                    .from(keyspace, TABLE_NAME);
-            stmt.setFetchSize(FETCH_SIZE);
-            ResultSet results = session.execute(stmt);
-            for (Row row : results) {
-                refs.add(rowToRef(row));
+            for (Row row : new PagedRows(session, stmt, paging,
+                    Paging.Operation.REFS)) {
+                addRow(row, ids, symbolic);
             }
-            return refs;
         } catch (RuntimeException e) {
             e.printStackTrace();
             throw new IOException(e);
         }
     }
 
+    /**
+     * Looks up each of "names" in the refs table concurrently, replacing
+     * any existing entry in "ids" or "symbolic" with the ref found, or
+     * removing it if the ref no longer exists.
+     */
+    private void lookupAll(Collection<String> names, Map<String, Ref> ids,
+                           Map<String, String> symbolic) {
+        Map<String, ResultSetFuture> lookups =
+                new HashMap<String, ResultSetFuture>();
+        for (String name : names) {
+            lookups.put(name, session.executeAsync(
+                    ns.bind(selectRefStmt, name)));
+        }
+        for (Map.Entry<String, ResultSetFuture> lookup
+                : lookups.entrySet()) {
+            Row row = lookup.getValue().getUninterruptibly().one();
+            ids.remove(lookup.getKey());
+            symbolic.remove(lookup.getKey());
+            if (row != null) {
+                addRow(row, ids, symbolic);
+            }
+        }
+    }
+
+    /**
+     * Adds the ref held in a refs table row to "ids", or to "symbolic" if
+     * symbolic.
+     */
+    private void addRow(Row row, Map<String, Ref> ids,
+                        Map<String, String> symbolic) {
+        final String name = row.getString("name");
+        if (row.getInt("type") == RefType.SYMBOLIC.getValue()) {
+            symbolic.put(name, encoding.decodeTarget(row));
+        } else {
+            ids.put(name, rowToIdRef(row));
+        }
+    }
+
+    /**
+     * Returns the refs in "ids" and "symbolic", with symbolic refs resolved.
+     * <p/>
+     * Symbolic refs are resolved against the refs already read. These are
+     * not read as a snapshot, so the few targets not found among them, which
+     * are usually unborn refs, are looked up concurrently in case they were
+     * created while the refs were read.
+     */
+    private Collection<Ref> resolveAll(Map<String, Ref> ids,
+                                       Map<String, String> symbolic)
+            throws IOException {
+        Map<String, Ref> targets = new HashMap<String, Ref>(ids);
+        Map<String, ListenableFuture<Ref>> lookups =
+                new HashMap<String, ListenableFuture<Ref>>();
+        for (String target : symbolic.values()) {
+            if (!ids.containsKey(target) && !symbolic.containsKey(target)
+                    && !lookups.containsKey(target)) {
+                lookups.put(target, getAsync(target, 1));
+            }
+        }
+        for (Map.Entry<String, ListenableFuture<Ref>> lookup
+                : lookups.entrySet()) {
+            Ref target = Utils.getUninterruptibly(lookup.getValue());
+            if (target != null) {
+                targets.put(lookup.getKey(), target);
+            }
+        }
+
+        List<Ref> refs = new ArrayList<Ref>(ids.size() + symbolic.size());
+        refs.addAll(ids.values());
+        for (Map.Entry<String, String> sym : symbolic.entrySet()) {
+            refs.add(resolve(sym.getKey(), sym.getValue(), targets, symbolic,
+                    0));
+        }
+        return refs;
+    }
+
+    /**
+     * Resolves the symbolic ref "name", which points to "target", using refs
+     * already read.
+     * <p/>
+     * Chains of symbolic refs are followed up to MAX_SYMBOLIC_REF_DEPTH. A
+     * target which is not found, or which cannot be reached within that
+     * depth, including one which is part of a cycle, is returned as an
+     * unborn ref, and is left for JGit to reject when it resolves the ref.
+     *
+     * @param ids      non-symbolic refs, and any fully resolved refs, keyed
+     *                 by name
+     * @param symbolic the target of every symbolic ref, keyed by name
+     * @param depth    the number of symbolic refs already followed
+     */
+    static Ref resolve(String name, String target, Map<String, Ref> ids,
+                       Map<String, String> symbolic, int depth) {
+        Ref ref = ids.get(target);
+        if (ref == null && depth + 1 < MAX_SYMBOLIC_REF_DEPTH
+                && symbolic.containsKey(target)) {
+            ref = resolve(target, symbolic.get(target), ids, symbolic,
+                    depth + 1);
+        }
+        if (ref == null) {
+            ref = new ObjectIdRef.Unpeeled(Ref.Storage.NEW, target, null);
+        }
+        return new SymbolicRef(name, ref);
+    }
+
     /**
      * If the specified "name" is not already associated with a "Ref",
      * associate it with the given "Ref".
+     * <p/>
+     * The check and the insert are a single conditional (IF NOT EXISTS)
+     * statement, so concurrent callers racing on the same name are
+     * serialised by the database and at most one of them succeeds.
      *
      * @param name   the name (i.e. key) with which the specified value is
      *               to be associated
@@ -147,15 +597,44 @@ public class RefStore {
      *                     database
      */
     public Ref putIfAbsent(String name, Ref newRef) throws IOException {
-        final Ref cur = get(name);
-        if (cur == null) {
-            putRef(name, newRef);
+        ResultSet results;
+        try {
+            session.execute(logStatement(Collections.singleton(name)));
+            results = session.execute(ns.bind(insertRefStmt, name,
+                    refType(newRef).getValue(), refValue(newRef),
+                    refAuxValue(newRef)));
+            if (results.wasApplied()) {
+                return null;
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            throw new IOException(e);
         }
-        return cur;
+        // A failed conditional insert returns the existing row
+        return Utils.getUninterruptibly(rowToRef(results.one(), 0));
+    }
+
+    /**
+     * Asynchronous form of putIfAbsent(). Unlike putIfAbsent() the future
+     * only reports whether the ref was stored, so no lookup of an existing
+     * symbolic ref's target is made.
+     *
+     * @return a future yielding true if the ref was stored, or false if the
+     * name was already mapped
+     * @see #putIfAbsent(String, Ref)
+     */
+    public ListenableFuture<Boolean> putIfAbsentAsync(String name, Ref newRef) {
+        return logAndApply(Collections.singleton(name), ns.bind(insertRefStmt,
+                name, refType(newRef).getValue(), refValue(newRef),
+                refAuxValue(newRef)));
     }
 
     /**
      * Replaces the entry for a name only if currently mapped to a given Ref.
+     * <p/>
+     * The comparison is made by the database as part of a conditional
+     * update, against the value column (the object id, or the target name
+     * for a symbolic ref) of the stored row.
      *
      * @param name   name  which the specified value is associated
      * @param cur    Ref expected to be currently associated with the
@@ -166,17 +645,30 @@ public class RefStore {
      *                     database
      */
     public boolean replace(String name, Ref cur, Ref newRef) throws IOException {
-        final Ref curInStore = get(name);
-        if (curInStore != null && Utils.refsHaveEqualObjectId(curInStore, cur)) {
-            putRef(name, newRef);
-            return true;
-        } else {
-            return false;
+        return Utils.getUninterruptibly(replaceAsync(name, cur, newRef));
+    }
+
+    /**
+     * Asynchronous form of replace().
+     *
+     * @see #replace(String, Ref, Ref)
+     */
+    public ListenableFuture<Boolean> replaceAsync(String name, Ref cur,
+                                                  Ref newRef) {
+        final Object expected = refValue(cur);
+        if (expected == null) {
+            return Futures.immediateFuture(false);
         }
+        return logAndApply(Collections.singleton(name), ns.bind(updateRefStmt,
+                refType(newRef).getValue(), refValue(newRef),
+                refAuxValue(newRef), name, expected));
     }
 
     /**
      * Removes the entry for a name only if currently mapped to a given Ref
+     * <p/>
+     * As with replace(), the comparison is made by the database as part of
+     * a conditional delete.
      *
      * @param name name with which the specified value is associated
      * @param cur  Ref expected to be associated with the specified key
@@ -185,32 +677,355 @@ public class RefStore {
      *                     database
      */
     public boolean remove(String name, Ref cur) throws IOException {
-        final Ref curInStore = get(name);
-        if (curInStore != null && Utils.refsHaveEqualObjectId(curInStore, cur)) {
-            removeRef(name);
-            return true;
-        } else {
-            return false;
+        return Utils.getUninterruptibly(removeAsync(name, cur));
+    }
+
+    /**
+     * Asynchronous form of remove().
+     *
+     * @see #remove(String, Ref)
+     */
+    public ListenableFuture<Boolean> removeAsync(String name, Ref cur) {
+        final Object expected = refValue(cur);
+        if (expected == null) {
+            return Futures.immediateFuture(false);
+        }
+        return logAndApply(Collections.singleton(name),
+                ns.bind(deleteRefStmt, name, expected));
+    }
+
+    /**
+     * Returns the current version of the refs. The version changes each time
+     * refs are modified, and each time bumpVersionAsync() is called, so
+     * comparing it with the version read before a previous call to values()
+     * shows whether the refs may have changed since, at the cost of reading
+     * a single row.
+     *
+     * @return the version, or null if the refs have never been modified
+     * since versions were introduced
+     * @throws IOException if an exception occurs when communicating to the
+     *                     database
+     */
+    public UUID getVersion() throws IOException {
+        try {
+            Row row = session.execute(selectVersionStmt.bind(repoName)).one();
+            return row != null ? row.getUUID("version") : null;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Sets the version of the refs to a new value. Each modification made
+     * through this class sets it as the refs are logged, before they are
+     * modified; this must be called again once the modification has been
+     * applied, for callers which read the refs in the meantime.
+     *
+     * @return a future completing once the version has been set
+     */
+    public ResultSetFuture bumpVersionAsync() {
+        return session.executeAsync(updateVersionStmt.bind(UUIDs.timeBased(),
+                repoName));
+    }
+
+    /**
+     * @return true if all refs are kept in a single partition, in which case
+     * several refs can be updated atomically with compareAndPutAllAsync()
+     */
+    public boolean isSinglePartition() {
+        return ns.isShared();
+    }
+
+    /**
+     * Applies a set of conditional ref updates atomically: either all are
+     * applied, or none are.
+     * <p/>
+     * Update "i" is given by oldRefs[i] and newRefs[i], which have the same
+     * meaning as the parameters of DfsRefDatabase.compareAndPut(), except
+     * that a null new ref removes the ref. An old ref which is null or has a
+     * storage of Ref.Storage.NEW is expected not to exist, so cannot be
+     * removed; as with removeAsync(), nothing is applied.
+     *
+     * @return a future yielding true if the updates were applied, or false
+     * if any ref did not have its expected value
+     * @throws IllegalStateException if the refs are not in a single
+     *                               partition (@see #isSinglePartition())
+     */
+    public ListenableFuture<Boolean> compareAndPutAllAsync(List<Ref> oldRefs,
+                                                           List<Ref> newRefs) {
+        if (!isSinglePartition()) {
+            throw new IllegalStateException(
+                    "Refs are not stored in a single partition");
+        }
+        BatchStatement batch = new BatchStatement();
+        List<String> names = new ArrayList<String>(newRefs.size());
+        for (int i = 0; i < newRefs.size(); i++) {
+            final Ref oldRef = oldRefs.get(i);
+            final Ref newRef = newRefs.get(i);
+            final boolean absent = oldRef == null
+                    || oldRef.getStorage() == Ref.Storage.NEW;
+            if (absent && newRef == null) {
+                return Futures.immediateFuture(false);
+            }
+            names.add(newRef != null ? newRef.getName() : oldRef.getName());
+            if (absent) {
+                batch.add(ns.bind(insertRefStmt, newRef.getName(),
+                        refType(newRef).getValue(), refValue(newRef),
+                        refAuxValue(newRef)));
+                continue;
+            }
+            final Object expected = refValue(oldRef);
+            if (expected == null) {
+                return Futures.immediateFuture(false);
+            }
+            if (newRef == null) {
+                batch.add(ns.bind(deleteRefStmt, oldRef.getName(), expected));
+            } else {
+                batch.add(ns.bind(updateRefStmt, refType(newRef).getValue(),
+                        refValue(newRef), refAuxValue(newRef),
+                        newRef.getName(), expected));
+            }
+        }
+        return logAndApply(names, batch);
+    }
+
+    /**
+     * Logs "names" and then executes "stmt", a conditional statement
+     * modifying those refs, returning a future yielding whether it was
+     * applied. The modification is not attempted if the refs cannot be
+     * logged.
+     * <p/>
+     * The two cannot be sent together: a batch holding a conditional
+     * statement must stay within the refs partition, and values() only
+     * sees a modification through its log entry, so applying "stmt" while
+     * the entry may still fail could lose the modification from the
+     * snapshot. The log entry and the version change are plain writes, so
+     * those share a single round trip (@see #logStatement(Collection)).
+     */
+    private ListenableFuture<Boolean> logAndApply(Collection<String> names,
+                                                  final Statement stmt) {
+        return Futures.transform(session.executeAsync(logStatement(names)),
+                new AsyncFunction<ResultSet, Boolean>() {
+                    @Override
+                    public ListenableFuture<Boolean> apply(ResultSet logged) {
+                        return Futures.transform(session.executeAsync(stmt),
+                                WAS_APPLIED);
+                    }
+                });
+    }
+
+    /**
+     * @return a statement adding "names" to the log and changing the version
+     * of the refs, ahead of their modification
+     */
+    private Statement logStatement(Collection<String> names) {
+        final UUID changed = UUIDs.timeBased();
+        BatchStatement batch =
+                new BatchStatement(BatchStatement.Type.UNLOGGED);
+        for (String name : names) {
+            batch.add(insertLogStmt.bind(repoName, changed, name));
+        }
+        batch.add(updateVersionStmt.bind(changed, repoName));
+        return batch;
+    }
+
+    /**
+     * Takes the rebuild lease, which is held for LEASE_TTL unless released.
+     *
+     * @param lease a unique id for the holder
+     * @return true if the lease was taken, or false if another process holds
+     * it
+     */
+    private boolean acquireLease(UUID lease) {
+        return session.execute(acquireLeaseStmt.bind(lease, repoName, null))
+                .wasApplied();
+    }
+
+    /**
+     * Releases the rebuild lease, if "lease" still holds it. Should this
+     * fail the lease expires anyway, so the failure is not reported.
+     */
+    private void releaseLease(UUID lease) {
+        try {
+            session.execute(releaseLeaseStmt.bind(null, repoName, lease));
+        } catch (RuntimeException e) {
+            e.printStackTrace();
         }
     }
 
     /**
-     * Creates the Cassandra keyspace and refs table if it does
-     * not already exist.
+     * Replaces the snapshot with one holding the refs in "ids" and
+     * "symbolic", which were read from the refs table starting at "asOf".
+     * <p/>
+     * The new snapshot's chunks are written first, and then made current
+     * with a conditional update, so readers never see a partly written
+     * snapshot. If another process replaced the snapshot since "current" was
+     * read, the new snapshot is discarded, leaving the other in place. The
+     * caller should hold the rebuild lease, so this is rarely the case.
+     * <p/>
+     * The refs have already been read, so a failure here is not reported to
+     * the caller. The snapshot is rebuilt on a later call to values().
+     *
+     * @param current the id of the snapshot read, or null if there was none
+     */
+    private void rebuildSnapshot(UUID current, Date asOf,
+                                 Map<String, Ref> ids,
+                                 Map<String, String> symbolic) {
+        final UUID id = UUIDs.timeBased();
+        List<ByteBuffer> chunks = RefSnapshot.encode(ids, symbolic);
+        try {
+            List<ResultSetFuture> writes = new ArrayList<ResultSetFuture>();
+            for (int i = 0; i < chunks.size(); i++) {
+                writes.add(session.executeAsync(insertSnapshotChunkStmt.bind(
+                        repoName, id, i, chunks.get(i))));
+            }
+            for (ResultSetFuture write : writes) {
+                write.getUninterruptibly();
+            }
+            final boolean applied = session.execute(
+                    updateCurrentSnapshotStmt.bind(id, chunks.size(), asOf,
+                            repoName, current)).wasApplied();
+            // Delete whichever snapshot is no longer current
+            final UUID unused = applied ? current : id;
+            if (unused != null) {
+                session.execute(deleteSnapshotStmt.bind(repoName, unused));
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Looks up the statements used by this store in the statement cache,
+     * preparing any not yet prepared. Must be called after the schema has
+     * been created.
      *
      * @throws IOException if an exception occurs when communicating to the
      *                     database
      */
-    private void createSchemaIfNotExist() throws IOException {
+    private void prepareStatements(StatementCache cache) throws IOException {
+        final String keyspace = ns.getKeyspace();
+        final String table = encoding.getTableName();
         try {
-            session.execute("CREATE KEYSPACE IF NOT EXISTS " + keyspace
-                    + " WITH replication = {'class':'SimpleStrategy',"
-                    + " 'replication_factor':1};");
-
-            session.execute("CREATE TABLE IF NOT EXISTS "
-                    + keyspace + "." + TABLE_NAME
-                    + " (name varchar PRIMARY KEY, type int, value varchar, "
-                    + "aux_value varchar);");
+            selectRefStmt = cache.prepare(ns.where(QueryBuilder
+                    .select()
+                    .all()
+                    .from(keyspace, table))
+                    .and(QueryBuilder.eq("name", QueryBuilder.bindMarker())));
+
+            selectAllStmt = cache.prepare(ns.where(QueryBuilder
+                    .select()
+                    .all()
+                    .from(keyspace, table)));
+
+            if (ns.isShared()) {
+                selectRangeStmt = cache.prepare(ns.where(QueryBuilder
+                        .select()
+                        .all()
+                        .from(keyspace, table))
+                        .and(QueryBuilder.gte("name", QueryBuilder.bindMarker()))
+                        .and(QueryBuilder.lt("name", QueryBuilder.bindMarker())));
+
+                selectFromStmt = cache.prepare(ns.where(QueryBuilder
+                        .select()
+                        .all()
+                        .from(keyspace, table))
+                        .and(QueryBuilder.gte("name", QueryBuilder.bindMarker())));
+            }
+
+            insertRefStmt = cache.prepare(ns.insertInto(table)
+                    .value("name", QueryBuilder.bindMarker())
+                    .value("type", QueryBuilder.bindMarker())
+                    .value("value", QueryBuilder.bindMarker())
+                    .value("aux_value", QueryBuilder.bindMarker())
+                    .ifNotExists());
+
+            Update update = QueryBuilder.update(keyspace, table);
+            update.with(QueryBuilder.set("type", QueryBuilder.bindMarker()))
+                    .and(QueryBuilder.set("value", QueryBuilder.bindMarker()))
+                    .and(QueryBuilder.set("aux_value", QueryBuilder.bindMarker()));
+            updateRefStmt = cache.prepare(ns.where(update)
+                    .and(QueryBuilder.eq("name", QueryBuilder.bindMarker()))
+                    .onlyIf(QueryBuilder.eq("value", QueryBuilder.bindMarker())));
+
+            deleteRefStmt = cache.prepare(ns.where(QueryBuilder.delete()
+                    .from(keyspace, table))
+                    .and(QueryBuilder.eq("name", QueryBuilder.bindMarker()))
+                    .onlyIf(QueryBuilder.eq("value", QueryBuilder.bindMarker())));
+
+            selectVersionStmt = cache.prepare(QueryBuilder
+                    .select("version")
+                    .from(keyspace, VERSION_TABLE_NAME)
+                    .where(QueryBuilder.eq(Namespace.REPO_COLUMN,
+                            QueryBuilder.bindMarker())));
+
+            updateVersionStmt = cache.prepare(QueryBuilder
+                    .update(keyspace, VERSION_TABLE_NAME)
+                    .with(QueryBuilder.set("version", QueryBuilder.bindMarker()))
+                    .where(QueryBuilder.eq(Namespace.REPO_COLUMN,
+                            QueryBuilder.bindMarker())));
+
+            selectSnapshotStmt = cache.prepare(QueryBuilder
+                    .select("current", "chunks", "as_of", "lease", "id",
+                            "data")
+                    .from(keyspace, SNAPSHOT_TABLE_NAME)
+                    .where(QueryBuilder.eq(Namespace.REPO_COLUMN,
+                            QueryBuilder.bindMarker())));
+
+            insertSnapshotChunkStmt = cache.prepare(QueryBuilder
+                    .insertInto(keyspace, SNAPSHOT_TABLE_NAME)
+                    .value(Namespace.REPO_COLUMN, QueryBuilder.bindMarker())
+                    .value("id", QueryBuilder.bindMarker())
+                    .value("chunk", QueryBuilder.bindMarker())
+                    .value("data", QueryBuilder.bindMarker()));
+
+            updateCurrentSnapshotStmt = cache.prepare(QueryBuilder
+                    .update(keyspace, SNAPSHOT_TABLE_NAME)
+                    .with(QueryBuilder.set("current", QueryBuilder.bindMarker()))
+                    .and(QueryBuilder.set("chunks", QueryBuilder.bindMarker()))
+                    .and(QueryBuilder.set("as_of", QueryBuilder.bindMarker()))
+                    .where(QueryBuilder.eq(Namespace.REPO_COLUMN,
+                            QueryBuilder.bindMarker()))
+                    .onlyIf(QueryBuilder.eq("current",
+                            QueryBuilder.bindMarker())));
+
+            acquireLeaseStmt = cache.prepare(QueryBuilder
+                    .update(keyspace, SNAPSHOT_TABLE_NAME)
+                    .using(QueryBuilder.ttl(LEASE_TTL))
+                    .with(QueryBuilder.set("lease", QueryBuilder.bindMarker()))
+                    .where(QueryBuilder.eq(Namespace.REPO_COLUMN,
+                            QueryBuilder.bindMarker()))
+                    .onlyIf(QueryBuilder.eq("lease",
+                            QueryBuilder.bindMarker())));
+
+            releaseLeaseStmt = cache.prepare(QueryBuilder
+                    .update(keyspace, SNAPSHOT_TABLE_NAME)
+                    .with(QueryBuilder.set("lease", QueryBuilder.bindMarker()))
+                    .where(QueryBuilder.eq(Namespace.REPO_COLUMN,
+                            QueryBuilder.bindMarker()))
+                    .onlyIf(QueryBuilder.eq("lease",
+                            QueryBuilder.bindMarker())));
+
+            deleteSnapshotStmt = cache.prepare(QueryBuilder.delete()
+                    .from(keyspace, SNAPSHOT_TABLE_NAME)
+                    .where(QueryBuilder.eq(Namespace.REPO_COLUMN,
+                            QueryBuilder.bindMarker()))
+                    .and(QueryBuilder.eq("id", QueryBuilder.bindMarker())));
+
+            selectLogStmt = cache.prepare(QueryBuilder
+                    .select("changed", "name")
+                    .from(keyspace, LOG_TABLE_NAME)
+                    .where(QueryBuilder.eq(Namespace.REPO_COLUMN,
+                            QueryBuilder.bindMarker()))
+                    .and(QueryBuilder.gt("changed", QueryBuilder.bindMarker())));
+
+            insertLogStmt = cache.prepare(QueryBuilder
+                    .insertInto(keyspace, LOG_TABLE_NAME)
+                    .value(Namespace.REPO_COLUMN, QueryBuilder.bindMarker())
+                    .value("changed", QueryBuilder.bindMarker())
+                    .value("name", QueryBuilder.bindMarker())
+                    .using(QueryBuilder.ttl(LOG_TTL)));
         } catch (RuntimeException e) {
             e.printStackTrace();
             throw new IOException(e);
@@ -218,114 +1033,117 @@ public class RefStore {
     }
 
     /**
-     * Parses a Cassandra refs table row and converts it to a Ref
+     * Parses a Cassandra refs table row and converts it to a Ref.
+     * <p/>
+     * For a symbolic ref the target is looked up asynchronously. A symbolic
+     * ref whose target does not exist refers to an unborn ref, in the same
+     * way as JGit represents HEAD in an empty repository. Lookups stop once
+     * MAX_SYMBOLIC_REF_DEPTH symbolic refs have been followed, so a cycle
+     * does not recurse indefinitely.
      *
-     * @param row a single Cassandra row to parse
-     * @return a ref, or null if the "row" parameter is null
-     * @throws IOException           if an exception occurs when communicating to the
-     *                               database
+     * @param row   a single Cassandra row to parse
+     * @param depth the number of symbolic refs followed to reach this row
+     * @return a future yielding the ref, or null if the "row" parameter is
+     * null
      * @throws IllegalStateException if the "type" field read back from the
      *                               database is not one of the four handled
      *                               types (@see RefType).
      */
-    private Ref rowToRef(Row row) throws IOException {
+    private ListenableFuture<Ref> rowToRef(Row row, int depth) {
         if (row == null) {
-            return null;
+            return Futures.immediateFuture(null);
         }
+        if (row.getInt("type") != RefType.SYMBOLIC.getValue()) {
+            return Futures.immediateFuture(rowToIdRef(row));
+        }
+
+        final String name = row.getString("name");
+        final String value = encoding.decodeTarget(row);
+        if (depth + 1 >= MAX_SYMBOLIC_REF_DEPTH) {
+            return Futures.<Ref>immediateFuture(new SymbolicRef(name,
+                    new ObjectIdRef.Unpeeled(Ref.Storage.NEW, value, null)));
+        }
+        return Futures.transform(getAsync(value, depth + 1),
+                new Function<Ref, Ref>() {
+                    @Override
+                    public Ref apply(Ref target) {
+                        if (target == null) {
+                            target = new ObjectIdRef.Unpeeled(Ref.Storage.NEW,
+                                    value, null);
+                        }
+                        return new SymbolicRef(name, target);
+                    }
+                });
+    }
 
+    /**
+     * Parses a Cassandra refs table row holding a non-symbolic ref.
+     *
+     * @throws IllegalStateException if the "type" field read back from the
+     *                               database is not one of the three
+     *                               non-symbolic types (@see RefType).
+     */
+    private Ref rowToIdRef(Row row) {
         final String name = row.getString("name");
-        final String value = row.getString("value");
         final int refType = row.getInt("type");
 
         if (refType == RefType.PEELED_NONTAG.getValue()) {
             return new ObjectIdRef.PeeledNonTag(Ref.Storage.NETWORK, name,
-                    ObjectId.fromString(value));
+                    encoding.decodeId(row, "value"));
         } else if (refType == RefType.PEELED_TAG.getValue()) {
-            final String auxValue = row.getString("aux_value");
             return new ObjectIdRef.PeeledTag(Ref.Storage.NETWORK, name,
-                    ObjectId.fromString(value),
-                    ObjectId.fromString(auxValue));
+                    encoding.decodeId(row, "value"),
+                    encoding.decodeId(row, "aux_value"));
         } else if (refType == RefType.UNPEELED.getValue()) {
             return new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, name,
-                    ObjectId.fromString(value));
-        } else if (refType == RefType.SYMBOLIC.getValue()) {
-            return new SymbolicRef(name, get(value));
+                    encoding.decodeId(row, "value"));
         } else {
             throw new IllegalStateException("Unhandled ref type: " + refType);
         }
     }
 
     /**
-     * Inserts a single ref into the database
-     *
+     * @return the type stored for the ref
      * @throws IllegalStateException if the reference concrete type is not
      *                               one of the four handled classes
      *                               (@see RefType).
      */
-    private void putRef(String name, Ref r) throws IOException {
+    private static RefType refType(Ref r) {
         if (r instanceof SymbolicRef) {
-            putRow(name, RefType.SYMBOLIC, r.getTarget().getName(), "");
+            return RefType.SYMBOLIC;
         } else if (r instanceof ObjectIdRef.PeeledNonTag) {
-            putRow(name, RefType.PEELED_NONTAG, r.getObjectId().name(), "");
+            return RefType.PEELED_NONTAG;
         } else if (r instanceof ObjectIdRef.PeeledTag) {
-            putRow(name, RefType.PEELED_TAG, r.getObjectId().name(),
-                    r.getPeeledObjectId().toString());
+            return RefType.PEELED_TAG;
         } else if (r instanceof ObjectIdRef.Unpeeled) {
-            putRow(name, RefType.UNPEELED, r.getObjectId().name(), "");
+            return RefType.UNPEELED;
         } else {
             throw new IllegalStateException("Unhandled ref type: " + r);
         }
     }
 
     /**
-     * Inserts a row into the refs table. This works for both insertion of a
-     * new row, and updating an existing row.
-     *
-     * @param name     the primary key
-     * @param type     a type where the value is mapped to an integer through
-     *                 the RefType enum
-     * @param value    the value, either a commit id or in the case of a
-     *                 symbolic reference, the target name
-     * @param auxValue an additional value, either the peeled object id in the
-     *                 case of a peeled tag ref, or an empty string for all
-     *                 other types of commits
-     * @throws IOException if an exception occurs when communicating to the
-     *                     database
+     * @return the value stored for the ref, either the object id or in the
+     * case of a symbolic reference, the target name. Null if the ref has no
+     * object id.
      */
-    private void putRow(String name, RefType type, String value, String auxValue)
-            throws IOException {
-        try {
-            Statement stmt = QueryBuilder.insertInto(keyspace, TABLE_NAME)
-                    .value("name", name)
-                    .value("type", type.getValue())
-                    .value("value", value)
-                    .value("aux_value", auxValue);
-
-            session.execute(stmt);
-        } catch (RuntimeException e) {
-            e.printStackTrace();
-            throw new IOException(e);
+    private Object refValue(Ref r) {
+        if (r.isSymbolic()) {
+            return encoding.encodeTarget(r.getTarget().getName());
         }
+        return r.getObjectId() != null
+                ? encoding.encodeId(r.getObjectId()) : null;
     }
 
     /**
-     * Removes the ref row given by "name".
-     * <p/>
-     * Given name is the primary key (and unique) only a single row will be
-     * removed.
-     *
-     * @throws IOException if an exception occurs when communicating to the
-     *                     database
+     * @return the additional value stored for the ref, either the peeled
+     * object id in the case of a peeled tag ref, or an empty value for all
+     * other types of ref
      */
-    private void removeRef(String name) throws IOException {
-        try {
-            Statement stmt = QueryBuilder.delete()
-                    .from(keyspace, TABLE_NAME)
-                    .where(QueryBuilder.eq("name", name));
-            session.execute(stmt);
-        } catch (RuntimeException e) {
-            e.printStackTrace();
-            throw new IOException(e);
+    private Object refAuxValue(Ref r) {
+        if (r instanceof ObjectIdRef.PeeledTag) {
+            return encoding.encodeId(r.getPeeledObjectId());
         }
+        return encoding.empty();
     }
 }
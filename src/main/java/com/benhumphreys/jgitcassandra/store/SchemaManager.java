@@ -0,0 +1,353 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TableMetadata;
+
+/**
+ * Creates the keyspaces and tables used by the stores, and remembers which
+ * are known to exist.
+ * <p/>
+ * Schema changes are slow: each waits for every node in the cluster to
+ * agree on the new schema. So before running any DDL the cluster metadata
+ * held by the driver is checked, which needs no round trip, and only the
+ * keyspace or tables found to be missing are created. Once a keyspace has
+ * been checked it is not checked again for the life of the connection.
+ * <p/>
+ * DDL is run by one thread at a time, so opening many new repositories at
+ * once does not issue concurrent schema changes.
+ * <p/>
+ * When refs are stored in binary, a keyspace holding text refs which have
+ * not been copied with RefMigration is refused, rather than given an empty
+ * binary refs table which would make the repository appear to have no refs.
+ * Likewise a keyspace whose pack data is still stored a file per row, as it
+ * was before files were split into chunks, is refused until it has been
+ * copied with PackDataMigration.
+ */
+public class SchemaManager {
+    private final Session session;
+
+    /**
+     * Encoding of the refs table created
+     */
+    private final RefEncoding refEncoding;
+
+    /**
+     * Keyspaces known to hold all of the tables the stores require
+     */
+    private final Set<String> known =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Constructor. Object ids in refs are stored as text.
+     *
+     * @param session the session used to read metadata and run DDL
+     */
+    public SchemaManager(Session session) {
+        this(session, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param session      the session used to read metadata and run DDL
+     * @param binaryRefIds true if object ids in refs are stored in binary,
+     *                     in the "refs_bin" table rather than "refs"
+     */
+    public SchemaManager(Session session, boolean binaryRefIds) {
+        this.session = session;
+        this.refEncoding = binaryRefIds ? RefEncoding.BINARY
+                : RefEncoding.TEXT;
+    }
+
+    /**
+     * Ensures "keyspace" and the ref and pack tables within it exist,
+     * creating any which do not.
+     *
+     * @param keyspace the keyspace
+     * @param shared   true if the keyspace is shared by all repositories, in
+     *                 which case the tables are partitioned by repository
+     * @throws IOException if the keyspace holds refs in another encoding or
+     *                     unchunked pack data, or an exception occurs when
+     *                     communicating to the database
+     */
+    public void ensureSchema(String keyspace, boolean shared)
+            throws IOException {
+        if (known.contains(keyspace)) {
+            return;
+        }
+        synchronized (this) {
+            if (known.contains(keyspace)) {
+                return;
+            }
+            try {
+                KeyspaceMetadata ksm = session.getCluster().getMetadata()
+                        .getKeyspace(keyspace);
+                if (isUnmigrated(ksm)) {
+                    throw new IOException("Refs in keyspace " + keyspace
+                            + " must be copied with MigrateRefs before using "
+                            + "binary ref ids");
+                }
+                if (isUnchunked(ksm)) {
+                    throw new IOException("Pack data in keyspace " + keyspace
+                            + " must be copied with MigratePackData before "
+                            + "use");
+                }
+                if (ksm == null) {
+                    session.execute("CREATE KEYSPACE IF NOT EXISTS " + keyspace
+                            + " WITH replication = {'class':'SimpleStrategy',"
+                            + " 'replication_factor':1};");
+                }
+                for (Map.Entry<String, String> table
+                        : tables(keyspace, shared).entrySet()) {
+                    if (ksm == null || ksm.getTable(table.getKey()) == null) {
+                        session.execute(table.getValue());
+                    }
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                throw new IOException(e);
+            }
+            known.add(keyspace);
+        }
+    }
+
+    /**
+     * Returns the keyspaces holding refs which must be copied with
+     * RefMigration before they can be read. This is only the case when refs
+     * are stored in binary, and a keyspace has a text refs table but no
+     * binary one.
+     *
+     * @param keyspace the keyspace to check, or null to check every keyspace
+     * @return the keyspaces, or an empty list if there are none
+     * @throws IOException if an exception occurs when communicating to the
+     *                     database
+     */
+    public List<String> findUnmigrated(String keyspace) throws IOException {
+        List<String> unmigrated = new ArrayList<String>();
+        try {
+            if (keyspace != null) {
+                if (isUnmigrated(session.getCluster().getMetadata()
+                        .getKeyspace(keyspace))) {
+                    unmigrated.add(keyspace);
+                }
+                return unmigrated;
+            }
+            for (KeyspaceMetadata ksm
+                    : session.getCluster().getMetadata().getKeyspaces()) {
+                if (!ksm.getName().startsWith("system")
+                        && isUnmigrated(ksm)) {
+                    unmigrated.add(ksm.getName());
+                }
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+        return unmigrated;
+    }
+
+    /**
+     * Returns the keyspaces holding pack data stored a file per row, which
+     * must be copied with PackDataMigration before it can be read.
+     *
+     * @param keyspace the keyspace to check, or null to check every keyspace
+     * @return the keyspaces, or an empty list if there are none
+     * @throws IOException if an exception occurs when communicating to the
+     *                     database
+     */
+    public List<String> findUnchunked(String keyspace) throws IOException {
+        List<String> unchunked = new ArrayList<String>();
+        try {
+            if (keyspace != null) {
+                if (isUnchunked(session.getCluster().getMetadata()
+                        .getKeyspace(keyspace))) {
+                    unchunked.add(keyspace);
+                }
+                return unchunked;
+            }
+            for (KeyspaceMetadata ksm
+                    : session.getCluster().getMetadata().getKeyspaces()) {
+                if (!ksm.getName().startsWith("system")
+                        && isUnchunked(ksm)) {
+                    unchunked.add(ksm.getName());
+                }
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+        return unchunked;
+    }
+
+    /**
+     * @return the number of keyspaces known to exist
+     */
+    public int size() {
+        return known.size();
+    }
+
+    /**
+     * @return true if "ksm" has text refs but refs are stored in binary, and
+     * have not been copied
+     */
+    private boolean isUnmigrated(KeyspaceMetadata ksm) {
+        return refEncoding == RefEncoding.BINARY && ksm != null
+                && ksm.getTable(RefEncoding.TEXT.getTableName()) != null
+                && ksm.getTable(RefEncoding.BINARY.getTableName()) == null;
+    }
+
+    /**
+     * @return true if "ksm" has a pack data table in the layout used before
+     * files were split into chunks, or the files moved aside by an
+     * incomplete PackDataMigration
+     */
+    static boolean isUnchunked(KeyspaceMetadata ksm) {
+        if (ksm == null) {
+            return false;
+        }
+        if (ksm.getTable(PackDataMigration.OLD_TABLE_NAME) != null) {
+            return true;
+        }
+        TableMetadata table = ksm.getTable(ObjStore.DATA_TABLE_NAME);
+        return table != null && !isChunked(table);
+    }
+
+    /**
+     * @return true if "table" has the columns and key of the pack data table
+     * created by dataTable()
+     */
+    static boolean isChunked(TableMetadata table) {
+        List<ColumnMetadata> partitionKey = table.getPartitionKey();
+        List<ColumnMetadata> clustering = table.getClusteringColumns();
+        ColumnMetadata fileSize = table.getColumn("file_size");
+        return clustering.size() == 1
+                && clustering.get(0).getName().equals("chunk_offset")
+                && partitionKey.get(partitionKey.size() - 1).getName()
+                        .equals("name")
+                && table.getColumn("data") != null
+                && fileSize != null && fileSize.isStatic();
+    }
+
+    /**
+     * Returns the DDL for each table in "keyspace", keyed by table name.
+     */
+    private Map<String, String> tables(String keyspace, boolean shared) {
+        Map<String, String> tables = new LinkedHashMap<String, String>();
+        tables.put(refEncoding.getTableName(),
+                refsTable(keyspace, shared, refEncoding));
+        if (shared) {
+            tables.put(ObjStore.DESC_TABLE_NAME, "CREATE TABLE IF NOT EXISTS "
+                    + keyspace + "." + ObjStore.DESC_TABLE_NAME
+                    + " (repo varchar, name varchar, source int, "
+                    + "last_modified bigint, size_map map<text, bigint>, "
+                    + "object_count bigint, delta_count bigint, "
+                    + "extensions int, index_version int, "
+                    + "PRIMARY KEY (repo, name));");
+        } else {
+            tables.put(ObjStore.DESC_TABLE_NAME, "CREATE TABLE IF NOT EXISTS "
+                    + keyspace + "." + ObjStore.DESC_TABLE_NAME
+                    + " (name varchar PRIMARY KEY, source int, "
+                    + "last_modified bigint, size_map map<text, bigint>, "
+                    + "object_count bigint, delta_count bigint, "
+                    + "extensions int, index_version int);");
+        }
+        tables.put(ObjStore.DATA_TABLE_NAME, dataTable(keyspace, shared));
+        // Keyed by repository in both layouts, as each holds a single
+        // partition per repository
+        tables.put(RefStore.VERSION_TABLE_NAME, "CREATE TABLE IF NOT EXISTS "
+                + keyspace + "." + RefStore.VERSION_TABLE_NAME
+                + " (repo varchar PRIMARY KEY, version timeuuid);");
+        tables.put(ObjStore.VERSION_TABLE_NAME, "CREATE TABLE IF NOT EXISTS "
+                + keyspace + "." + ObjStore.VERSION_TABLE_NAME
+                + " (repo varchar PRIMARY KEY, version timeuuid);");
+        tables.put(ObjStore.TRASH_TABLE_NAME, trashTable(keyspace));
+        tables.put(RefStore.SNAPSHOT_TABLE_NAME, "CREATE TABLE IF NOT EXISTS "
+                + keyspace + "." + RefStore.SNAPSHOT_TABLE_NAME
+                + " (repo varchar, id timeuuid, chunk int, data blob, "
+                + "current timeuuid static, chunks int static, "
+                + "as_of timestamp static, lease timeuuid static, "
+                + "PRIMARY KEY (repo, id, chunk));");
+        tables.put(RefStore.LOG_TABLE_NAME, "CREATE TABLE IF NOT EXISTS "
+                + keyspace + "." + RefStore.LOG_TABLE_NAME
+                + " (repo varchar, changed timeuuid, name varchar, "
+                + "PRIMARY KEY (repo, changed, name));");
+        return tables;
+    }
+
+    /**
+     * Returns the DDL for the pack data table in "keyspace", which holds a
+     * row per chunk of each file.
+     */
+    static String dataTable(String keyspace, boolean shared) {
+        if (shared) {
+            return "CREATE TABLE IF NOT EXISTS " + keyspace + "."
+                    + ObjStore.DATA_TABLE_NAME
+                    + " (repo varchar, name varchar, chunk_offset bigint, "
+                    + "data blob, file_size bigint static, "
+                    + "PRIMARY KEY ((repo, name), chunk_offset));";
+        }
+        return "CREATE TABLE IF NOT EXISTS " + keyspace + "."
+                + ObjStore.DATA_TABLE_NAME
+                + " (name varchar, chunk_offset bigint, data blob, "
+                + "file_size bigint static, "
+                + "PRIMARY KEY (name, chunk_offset));";
+    }
+
+    /**
+     * Returns the DDL for the pack trash table in "keyspace", which is keyed
+     * by repository in both layouts.
+     */
+    static String trashTable(String keyspace) {
+        return "CREATE TABLE IF NOT EXISTS " + keyspace + "."
+                + ObjStore.TRASH_TABLE_NAME
+                + " (repo varchar, trashed timeuuid, name varchar, "
+                + "PRIMARY KEY (repo, trashed, name));";
+    }
+
+    /**
+     * Returns the DDL for the refs table in "keyspace" with the given
+     * encoding.
+     */
+    static String refsTable(String keyspace, boolean shared,
+                            RefEncoding encoding) {
+        final String type = encoding.getColumnType();
+        if (shared) {
+            return "CREATE TABLE IF NOT EXISTS " + keyspace + "."
+                    + encoding.getTableName()
+                    + " (repo varchar, name varchar, type int, "
+                    + "value " + type + ", aux_value " + type + ", "
+                    + "PRIMARY KEY (repo, name));";
+        }
+        return "CREATE TABLE IF NOT EXISTS " + keyspace + "."
+                + encoding.getTableName()
+                + " (name varchar PRIMARY KEY, type int, value " + type
+                + ", aux_value " + type + ");";
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.Session;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Caches prepared statements for a session, keyed by query string.
+ * <p/>
+ * Store instances obtain their statements from here rather than preparing
+ * them directly, so each distinct query is prepared once per session no
+ * matter how many stores, or how many instances of the same repository,
+ * use it.
+ * <p/>
+ * With a keyspace per repository every repository has a set of queries of
+ * its own, so the number of statements is bounded and the least recently
+ * used are evicted. Stores keep the statements they obtained, so an
+ * evicted statement is only prepared again when another store asks for it.
+ */
+public class StatementCache {
+    /**
+     * Default maximum number of statements held, enough for a few hundred
+     * repositories each in a keyspace of its own
+     */
+    public static final long DEFAULT_MAX_STATEMENTS = 10000;
+
+    private final Session session;
+
+    private final Cache<String, PreparedStatement> statements;
+
+    /**
+     * Constructor
+     *
+     * @param session the session statements are prepared against
+     */
+    public StatementCache(Session session) {
+        this(session, DEFAULT_MAX_STATEMENTS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param session       the session statements are prepared against
+     * @param maxStatements the maximum number of statements held
+     */
+    public StatementCache(Session session, long maxStatements) {
+        this.session = session;
+        this.statements = CacheBuilder.newBuilder()
+                .maximumSize(maxStatements)
+                .build();
+    }
+
+    /**
+     * Returns the prepared form of "stmt", preparing it if this query has
+     * not been prepared before, or has since been evicted. Concurrent
+     * requests for the same query wait for a single prepare.
+     *
+     * @param stmt the statement to prepare, typically built with bind markers
+     * @return the prepared statement
+     */
+    public PreparedStatement prepare(final RegularStatement stmt) {
+        try {
+            return statements.get(stmt.getQueryString(),
+                    new Callable<PreparedStatement>() {
+                        @Override
+                        public PreparedStatement call() {
+                            return session.prepare(stmt);
+                        }
+                    });
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of distinct statements held
+     */
+    public long size() {
+        return statements.size();
+    }
+}
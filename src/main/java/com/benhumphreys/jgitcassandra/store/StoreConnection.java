@@ -30,6 +30,34 @@ import com.datastax.driver.core.Session;
 public class StoreConnection {
     private final Cluster cluster;
     private final Session session;
+    private final StatementCache statements;
+    private final SchemaManager schema;
+
+    /**
+     * The keyspace shared by all repositories, or null if each repository
+     * has a keyspace of its own
+     */
+    private final String sharedKeyspace;
+
+    /**
+     * True if object ids in refs are stored in binary
+     */
+    private final boolean binaryRefIds;
+
+    /**
+     * Fetch sizes for queries returning many rows
+     */
+    private final Paging paging;
+
+    /**
+     * Constructor. Each repository is stored in a keyspace of its own.
+     *
+     * @param nodes a list of one or more Cassandra nodes to connect to.
+     * @see #StoreConnection(List, String)
+     */
+    public StoreConnection(List<String> nodes) {
+        this(nodes, null);
+    }
 
     /**
      * Constructor
@@ -39,8 +67,47 @@ public class StoreConnection {
      *              supplied; one will suffice however if that node is
      *              unavailable the connection attempt will fail, even if the
      *              others are available.
+     * @param sharedKeyspace if not null, all repositories are stored in this
+     *              keyspace, in tables partitioned by repository name.
+     *              Otherwise each repository has a keyspace of its own.
      */
-    public StoreConnection(List<String> nodes) {
+    public StoreConnection(List<String> nodes, String sharedKeyspace) {
+        this(nodes, sharedKeyspace, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param nodes          a list of one or more Cassandra nodes to connect
+     *                       to.
+     * @param sharedKeyspace if not null, all repositories are stored in this
+     *                       keyspace (@see #StoreConnection(List, String))
+     * @param binaryRefIds   if true, object ids in refs are stored as 20
+     *                       byte blobs in the "refs_bin" table, rather than
+     *                       as hex strings in the "refs" table. Existing
+     *                       refs must first be copied with RefMigration.
+     */
+    public StoreConnection(List<String> nodes, String sharedKeyspace,
+                           boolean binaryRefIds) {
+        this(nodes, sharedKeyspace, binaryRefIds, new Paging());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param nodes          a list of one or more Cassandra nodes to connect
+     *                       to.
+     * @param sharedKeyspace if not null, all repositories are stored in this
+     *                       keyspace (@see #StoreConnection(List, String))
+     * @param binaryRefIds   if true, object ids in refs are stored in binary
+     *                       (@see #StoreConnection(List, String, boolean))
+     * @param paging         fetch sizes for queries returning many rows
+     */
+    public StoreConnection(List<String> nodes, String sharedKeyspace,
+                           boolean binaryRefIds, Paging paging) {
+        this.sharedKeyspace = sharedKeyspace;
+        this.binaryRefIds = binaryRefIds;
+        this.paging = paging;
         Cluster.Builder builder = Cluster.builder();
         for (String node : nodes) {
             builder.addContactPoint(node);
@@ -54,6 +121,8 @@ public class StoreConnection {
                     host.getDatacenter(), host.getAddress(), host.getRack());
         }
         session = cluster.connect();
+        statements = new StatementCache(session);
+        schema = new SchemaManager(session, binaryRefIds);
     }
 
     /**
@@ -70,4 +139,40 @@ public class StoreConnection {
     public Session getSession() {
         return session;
     }
+
+    /**
+     * Returns the prepared statement cache for this connection's session.
+     */
+    public StatementCache getStatementCache() {
+        return statements;
+    }
+
+    /**
+     * Returns the schema manager for this connection's session.
+     */
+    public SchemaManager getSchemaManager() {
+        return schema;
+    }
+
+    /**
+     * Returns the keyspace shared by all repositories, or null if each
+     * repository has a keyspace of its own.
+     */
+    public String getSharedKeyspace() {
+        return sharedKeyspace;
+    }
+
+    /**
+     * Returns true if object ids in refs are stored in binary.
+     */
+    public boolean isBinaryRefIds() {
+        return binaryRefIds;
+    }
+
+    /**
+     * Returns the fetch sizes for queries returning many rows.
+     */
+    public Paging getPaging() {
+        return paging;
+    }
 }
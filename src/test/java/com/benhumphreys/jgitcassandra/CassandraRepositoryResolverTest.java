@@ -16,20 +16,110 @@
  */
 package com.benhumphreys.jgitcassandra;
 
-import org.junit.After;
-import org.junit.Before;
+import com.benhumphreys.jgitcassandra.repo.CassandraRepository;
+import com.benhumphreys.jgitcassandra.store.StoreConnection;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.Rule;
 import org.junit.Test;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
+/**
+ * The repository cache tests require a running Cassandra instance, so are
+ * skipped unless the "jgitcassandra.test.nodes" system property is set, e.g.
+ * -Djgitcassandra.test.nodes=127.0.0.1
+ */
 public class CassandraRepositoryResolverTest {
+    @Rule
+    public final CassandraRule cassandra = new CassandraRule("resolver_test");
 
-    @Before
-    public void setUp() throws Exception {
+    @Test
+    public final void testOpenLoadsOnce() throws Exception {
+        StoreConnection conn = cassandra.connect(true);
+        final CassandraRepositoryResolver resolver =
+                new CassandraRepositoryResolver(conn);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Repository>> results = new ArrayList<Future<Repository>>();
+        try {
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<Repository>() {
+                    @Override
+                    public Repository call() throws Exception {
+                        return resolver.open(null, "repo.git");
+                    }
+                }));
+            }
+            Repository first = results.get(0).get();
+            for (Future<Repository> result : results) {
+                assertSame(first, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertSame(results.get(0).get(), resolver.open(null, "repo"));
+        assertEquals(1, resolver.getCacheStats().loadSuccessCount());
+        assertEquals(1, resolver.size());
     }
 
-    @After
-    public void tearDown() throws Exception {
+    @Test
+    public final void testEviction() throws Exception {
+        StoreConnection conn = cassandra.connect(true);
+        CassandraRepositoryResolver resolver =
+                new CassandraRepositoryResolver(conn, 1, 600);
+        Repository evicted = resolver.open(null, "repo1");
+        evicted.close();
+        resolver.open(null, "repo2").close();
+        // Closed by the eviction, so not handed out again
+        assertFalse(((CassandraRepository) evicted).tryIncrementOpen());
+        assertNotSame(evicted, resolver.open(null, "repo1"));
+        assertEquals(1, resolver.size());
+        assertEquals(2, resolver.getCacheStats().evictionCount());
+        assertEquals(3, resolver.getCacheStats().missCount());
+    }
+
+    @Test
+    public final void testRefChangesVisible() throws Exception {
+        StoreConnection conn = cassandra.connect(true);
+        // Two resolvers stand in for two servers, each with its own cache
+        Repository a = new CassandraRepositoryResolver(conn)
+                .open(null, "repo");
+        CassandraRepositoryResolver resolver =
+                new CassandraRepositoryResolver(conn);
+        assertNull(resolver.open(null, "repo").getRef("refs/heads/master"));
+
+        ObjectInserter ins = a.newObjectInserter();
+        ObjectId blob = ins.insert(Constants.OBJ_BLOB, new byte[0]);
+        ins.flush();
+        ins.release();
+        RefUpdate update = a.updateRef("refs/heads/master");
+        update.setNewObjectId(blob);
+        assertEquals(RefUpdate.Result.NEW, update.update());
+
+        Ref ref = resolver.open(null, "repo").getRef("refs/heads/master");
+        assertNotNull(ref);
+        assertEquals(blob, ref.getObjectId());
+        assertEquals(1, resolver.getCacheStats().loadSuccessCount());
     }
 
     @Test
@@ -52,4 +142,21 @@ public class CassandraRepositoryResolverTest {
     public final void testSanitiseNameInvalid() {
         CassandraRepositoryResolver.sanitiseName("DROP TABLE refs.git");
     }
+
+    @Test
+    public final void testMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name =
+                new ObjectName(CassandraRepositoryResolver.MBEAN_NAME);
+        // Nothing is loaded, so no connection is needed
+        new CassandraRepositoryResolver(null).registerMBean();
+        try {
+            assertEquals(0L, server.getAttribute(name, "Size"));
+            assertEquals(0L, server.getAttribute(name, "HitCount"));
+            assertEquals(0L, server.getAttribute(name, "EvictionCount"));
+            assertEquals(1.0, server.getAttribute(name, "HitRate"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
 }
@@ -0,0 +1,133 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2014-2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.rules.ExternalResource;
+
+import com.benhumphreys.jgitcassandra.store.StoreConnection;
+
+/**
+ * Connects tests to the Cassandra instance given by the
+ * "jgitcassandra.test.nodes" system property, e.g.
+ * -Djgitcassandra.test.nodes=127.0.0.1. Tests which connect are skipped
+ * unless it is set; tests which do not connect always run.
+ * <p/>
+ * Each test is given a new keyspace name, used either as the shared keyspace
+ * or as the keyspace of a single repository. The keyspace is dropped and
+ * every connection closed after the test, and after any @After methods.
+ */
+public class CassandraRule extends ExternalResource {
+    /**
+     * Name of the repository used with a shared keyspace
+     */
+    public static final String SHARED_REPOSITORY = "repo";
+
+    private final String prefix;
+
+    private final List<StoreConnection> connections =
+            new ArrayList<StoreConnection>();
+
+    private String keyspace;
+
+    /**
+     * Constructor
+     *
+     * @param prefix prefix of the keyspace name, which identifies the test
+     *               class when a keyspace is left behind
+     */
+    public CassandraRule(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    protected void before() {
+        keyspace = prefix + "_" + System.currentTimeMillis();
+    }
+
+    @Override
+    protected void after() {
+        if (connections.isEmpty()) {
+            return;
+        }
+        try {
+            connections.get(0).getSession().execute(
+                    "DROP KEYSPACE IF EXISTS " + keyspace);
+        } finally {
+            for (StoreConnection conn : connections) {
+                conn.close();
+            }
+            connections.clear();
+        }
+    }
+
+    /**
+     * @return the keyspace for this test
+     */
+    public String getKeyspace() {
+        return keyspace;
+    }
+
+    /**
+     * @param shared true if the repository is stored in the shared keyspace
+     * @return the name of the repository to test with, which is the keyspace
+     * itself when it is not shared
+     */
+    public String getRepositoryName(boolean shared) {
+        return shared ? SHARED_REPOSITORY : keyspace;
+    }
+
+    /**
+     * Connects without a shared keyspace.
+     */
+    public StoreConnection connect() {
+        return connect(false, false);
+    }
+
+    /**
+     * Connects, with text ref ids.
+     *
+     * @param shared true to use the keyspace for this test as the shared
+     *               keyspace
+     */
+    public StoreConnection connect(boolean shared) {
+        return connect(shared, false);
+    }
+
+    /**
+     * Connects, skipping the test if no Cassandra instance is configured.
+     * The connection is closed after the test.
+     *
+     * @param shared       true to use the keyspace for this test as the
+     *                     shared keyspace
+     * @param binaryRefIds true to store ref ids in binary
+     * @return the new connection
+     */
+    public StoreConnection connect(boolean shared, boolean binaryRefIds) {
+        String nodes = System.getProperty("jgitcassandra.test.nodes");
+        Assume.assumeTrue(nodes != null && !nodes.isEmpty());
+        StoreConnection conn = new StoreConnection(
+                Arrays.asList(nodes.split(",")), shared ? keyspace : null,
+                binaryRefIds);
+        connections.add(conn);
+        return conn;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.repo;
+
+import com.benhumphreys.jgitcassandra.CassandraRule;
+import com.benhumphreys.jgitcassandra.store.StoreConnection;
+import org.eclipse.jgit.internal.storage.dfs.DfsGarbageCollector;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackFile;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.eclipse.jgit.internal.storage.pack.PackWriter;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.eclipse.jgit.util.io.NullOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the time taken to serve a clone of a large repository from a
+ * garbage collected pack without a bitmap index with the time taken once
+ * GcService has rewritten it with one. Each clone is simulated by packing
+ * every object reachable from the refs, as UploadPack does when the client
+ * has nothing, and discarding the output.
+ * <p/>
+ * Requires a running Cassandra instance, so is skipped unless the
+ * "jgitcassandra.test.nodes" system property is set, e.g.
+ * -Djgitcassandra.test.nodes=127.0.0.1. The number of commits in the
+ * repository is set with "jgitcassandra.bench.commits".
+ */
+public class BitmapCloneTest {
+    private static final DfsRepositoryDescription REPO =
+            new DfsRepositoryDescription("repo");
+
+    private static final int RUNS = 3;
+
+    /**
+     * Number of files in each commit's tree; each commit changes one
+     */
+    private static final int FILES = 50;
+
+    /**
+     * Number of commits written to each pack
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    @Rule
+    public final CassandraRule cassandra = new CassandraRule("bitmap_test");
+
+    private StoreConnection conn;
+
+    private GcService gc;
+
+    @Before
+    public void setUp() throws Exception {
+        conn = cassandra.connect(true);
+        gc = new GcService(conn, 1);
+        gc.setGracePeriod(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (gc != null) {
+            gc.shutdown(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testClone() throws Exception {
+        int count = Integer.getInteger("jgitcassandra.bench.commits", 2000);
+        CassandraRepository repo = new CassandraRepository(REPO, conn);
+        ObjectId head = writeHistory(repo, count);
+        RefUpdate update = repo.updateRef("refs/heads/master");
+        update.setNewObjectId(head);
+        assertEquals(RefUpdate.Result.NEW, update.update());
+        repo.close();
+
+        // A collection as made before bitmaps were always written
+        repo = new CassandraRepository(REPO, conn);
+        DfsGarbageCollector plainGc = new DfsGarbageCollector(repo);
+        PackConfig packConfig = new PackConfig(repo);
+        packConfig.setBuildBitmaps(false);
+        plainGc.setPackConfig(packConfig);
+        assertTrue(plainGc.pack(NullProgressMonitor.INSTANCE));
+        repo.close();
+        assertFalse(hasBitmap());
+        long plainObjects = cloneObjects();
+        long plainMs = cloneMillis();
+
+        gc.collect(REPO.getRepositoryName(), GcService.Kind.GC);
+        assertTrue(hasBitmap());
+        assertEquals(plainObjects, cloneObjects());
+        long bitmapMs = cloneMillis();
+
+        System.out.printf("Clone of %d commits, %d objects: without bitmaps"
+                + " %d ms, with bitmaps %d ms%n", count, plainObjects,
+                plainMs, bitmapMs);
+    }
+
+    /**
+     * @return true if the repository's only pack has a bitmap index
+     */
+    private boolean hasBitmap() throws Exception {
+        CassandraRepository repo = new CassandraRepository(REPO, conn);
+        try {
+            DfsPackFile[] packs = repo.getObjectDatabase().getPacks();
+            assertEquals(1, packs.length);
+            return packs[0].getPackDescription()
+                    .hasFileExt(PackExt.BITMAP_INDEX);
+        } finally {
+            repo.close();
+        }
+    }
+
+    /**
+     * @return the number of objects sent by a clone
+     */
+    private long cloneObjects() throws Exception {
+        return clone(new CassandraRepository(REPO, conn)).getTotalObjects();
+    }
+
+    /**
+     * @return the fastest of RUNS clones, in milliseconds, each from a new
+     * repository instance
+     */
+    private long cloneMillis() throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            CassandraRepository repo = new CassandraRepository(REPO, conn);
+            long start = System.nanoTime();
+            clone(repo);
+            best = Math.min(best, (System.nanoTime() - start) / 1000000);
+        }
+        return best;
+    }
+
+    private static PackWriter.Statistics clone(CassandraRepository repo)
+            throws Exception {
+        PackWriter pw = new PackWriter(repo, repo.newObjectReader());
+        try {
+            pw.setUseBitmaps(true);
+            pw.setDeltaBaseAsOffset(true);
+            Set<ObjectId> wants = new HashSet<ObjectId>();
+            for (Ref ref : repo.getAllRefs().values()) {
+                wants.add(ref.getObjectId());
+            }
+            pw.preparePack(NullProgressMonitor.INSTANCE, wants,
+                    Collections.<ObjectId>emptySet());
+            pw.writePack(NullProgressMonitor.INSTANCE,
+                    NullProgressMonitor.INSTANCE, NullOutputStream.INSTANCE);
+            return pw.getStatistics();
+        } finally {
+            pw.release();
+            repo.close();
+        }
+    }
+
+    /**
+     * Writes "count" commits in a line, each changing one of FILES files
+     *
+     * @return the last commit
+     */
+    private static ObjectId writeHistory(CassandraRepository repo, int count)
+            throws Exception {
+        ObjectId[] blobs = new ObjectId[FILES];
+        ObjectId parent = null;
+        PersonIdent ident = new PersonIdent("test", "test@example.com");
+        ObjectInserter ins = repo.newObjectInserter();
+        try {
+            for (int i = 0; i < count; i++) {
+                int file = i % FILES;
+                StringBuilder content = new StringBuilder();
+                for (int line = 0; line < 100; line++) {
+                    content.append("file ").append(file).append(" line ")
+                            .append(line).append(" commit ")
+                            .append(line == i % 100 ? i : 0).append('\n');
+                }
+                blobs[file] = ins.insert(Constants.OBJ_BLOB,
+                        Constants.encode(content.toString()));
+                TreeFormatter tree = new TreeFormatter();
+                for (int j = 0; j < FILES; j++) {
+                    if (blobs[j] != null) {
+                        tree.append(String.format("f%03d", j),
+                                FileMode.REGULAR_FILE, blobs[j]);
+                    }
+                }
+                CommitBuilder cb = new CommitBuilder();
+                cb.setTreeId(ins.insert(tree));
+                if (parent != null) {
+                    cb.setParentId(parent);
+                }
+                cb.setAuthor(ident);
+                cb.setCommitter(ident);
+                cb.setMessage("commit " + i);
+                parent = ins.insert(cb);
+                if ((i + 1) % BATCH_SIZE == 0) {
+                    ins.flush();
+                }
+            }
+            ins.flush();
+        } finally {
+            ins.release();
+        }
+        return parent;
+    }
+}
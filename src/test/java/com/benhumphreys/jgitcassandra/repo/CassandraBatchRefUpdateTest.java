@@ -0,0 +1,194 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.repo;
+
+import com.benhumphreys.jgitcassandra.CassandraRule;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for CassandraBatchRefUpdate, including a benchmark comparing it to
+ * JGit's default one-ref-at-a-time batch update. Each test is run with a
+ * keyspace per repository, and with a shared keyspace.
+ * <p/>
+ * Apart from the name conflict test these require a running Cassandra
+ * instance, so are skipped unless the "jgitcassandra.test.nodes" system
+ * property is set, e.g. -Djgitcassandra.test.nodes=127.0.0.1. The number of
+ * refs used by the benchmark is set with "jgitcassandra.bench.refs".
+ */
+@RunWith(Parameterized.class)
+public class CassandraBatchRefUpdateTest {
+    @Parameterized.Parameters(name = "shared={0}")
+    public static Collection<Object[]> layouts() {
+        return Arrays.asList(new Object[][]{{false}, {true}});
+    }
+
+    @Rule
+    public final CassandraRule cassandra = new CassandraRule("batch_test");
+
+    private final boolean shared;
+
+    private CassandraRepository repo;
+
+    private ObjectId commit;
+
+    public CassandraBatchRefUpdateTest(boolean shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * Connects, and writes the commit the refs point at.
+     */
+    private void openRepository() throws Exception {
+        repo = new CassandraRepository(new DfsRepositoryDescription(
+                cassandra.getRepositoryName(shared)),
+                cassandra.connect(shared));
+
+        ObjectInserter ins = repo.newObjectInserter();
+        try {
+            CommitBuilder cb = new CommitBuilder();
+            cb.setTreeId(ins.insert(Constants.OBJ_TREE, new byte[0]));
+            PersonIdent ident = new PersonIdent("test", "test@example.com");
+            cb.setAuthor(ident);
+            cb.setCommitter(ident);
+            cb.setMessage("test");
+            commit = ins.insert(cb);
+            ins.flush();
+        } finally {
+            ins.release();
+        }
+    }
+
+    @Test
+    public void testIsNameConflicting() {
+        TreeSet<String> taken = new TreeSet<String>(Arrays.asList(
+                "refs/heads/a", "refs/heads/b/c", "refs/heads/bb"));
+        assertTrue(CassandraBatchRefUpdate.isNameConflicting(
+                "refs/heads/a/b", taken));
+        assertTrue(CassandraBatchRefUpdate.isNameConflicting(
+                "refs/heads/b", taken));
+        assertFalse(CassandraBatchRefUpdate.isNameConflicting(
+                "refs/heads/b/d", taken));
+        assertFalse(CassandraBatchRefUpdate.isNameConflicting(
+                "refs/heads/ab", taken));
+    }
+
+    @Test
+    public void testPerRefResults() throws Exception {
+        openRepository();
+        ObjectId missing = ObjectId.fromString(
+                "0123456789012345678901234567890123456789");
+
+        execute(repo.getRefDatabase().newBatchUpdate(),
+                create("refs/heads/a"));
+
+        ReceiveCommand stale = new ReceiveCommand(missing, commit,
+                "refs/heads/a", ReceiveCommand.Type.UPDATE);
+        ReceiveCommand created = create("refs/heads/b");
+        ReceiveCommand conflict = create("refs/heads/b/c");
+        ReceiveCommand absent = new ReceiveCommand(ObjectId.zeroId(),
+                missing, "refs/heads/c", ReceiveCommand.Type.CREATE);
+        ReceiveCommand deleted = new ReceiveCommand(commit, ObjectId.zeroId(),
+                "refs/heads/a", ReceiveCommand.Type.DELETE);
+        execute(repo.getRefDatabase().newBatchUpdate(),
+                stale, created, conflict, absent);
+        execute(repo.getRefDatabase().newBatchUpdate(), deleted);
+
+        assertEquals(ReceiveCommand.Result.LOCK_FAILURE, stale.getResult());
+        assertEquals(ReceiveCommand.Result.OK, created.getResult());
+        assertEquals(ReceiveCommand.Result.LOCK_FAILURE, conflict.getResult());
+        assertEquals(ReceiveCommand.Result.REJECTED_MISSING_OBJECT,
+                absent.getResult());
+        assertEquals(ReceiveCommand.Result.OK, deleted.getResult());
+
+        // The cached refs must reflect the batch
+        assertEquals(Arrays.asList("refs/heads/b"), new ArrayList<String>(
+                repo.getRefDatabase().getRefs(RefDatabase.ALL).keySet()));
+    }
+
+    @Test
+    public void testBenchmark() throws Exception {
+        openRepository();
+        int count = Integer.getInteger("jgitcassandra.bench.refs", 10000);
+
+        long start = System.nanoTime();
+        execute(new BatchRefUpdate(repo.getRefDatabase()) {
+        }, createTags("refs/tags/default/", count));
+        long defaultMs = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        execute(repo.getRefDatabase().newBatchUpdate(),
+                createTags("refs/tags/batch/", count));
+        long batchMs = (System.nanoTime() - start) / 1000000;
+
+        System.out.printf("Created %d refs (shared keyspace: %b): "
+                + "default batch %d ms, CassandraBatchRefUpdate %d ms%n",
+                count, shared, defaultMs, batchMs);
+        assertEquals(2 * count,
+                repo.getRefDatabase().getRefs(RefDatabase.ALL).size());
+    }
+
+    private ReceiveCommand create(String name) {
+        return new ReceiveCommand(ObjectId.zeroId(), commit, name,
+                ReceiveCommand.Type.CREATE);
+    }
+
+    private ReceiveCommand[] createTags(String prefix, int count) {
+        ReceiveCommand[] cmds = new ReceiveCommand[count];
+        for (int i = 0; i < count; i++) {
+            cmds[i] = create(prefix + i);
+        }
+        return cmds;
+    }
+
+    private void execute(BatchRefUpdate batch, ReceiveCommand... cmds)
+            throws Exception {
+        batch.setAllowNonFastForwards(true);
+        batch.addCommand(cmds);
+        RevWalk walk = new RevWalk(repo);
+        try {
+            batch.execute(walk, NullProgressMonitor.INSTANCE);
+        } finally {
+            walk.release();
+        }
+        for (ReceiveCommand cmd : cmds) {
+            assertNotEquals(ReceiveCommand.Result.NOT_ATTEMPTED,
+                    cmd.getResult());
+        }
+    }
+}
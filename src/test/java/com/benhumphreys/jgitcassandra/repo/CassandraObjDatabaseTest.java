@@ -0,0 +1,179 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.repo;
+
+import com.benhumphreys.jgitcassandra.CassandraRule;
+import com.benhumphreys.jgitcassandra.store.StoreConnection;
+import org.eclipse.jgit.internal.storage.dfs.DfsObjDatabase;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that listings of packs made by one repository instance reflect
+ * packs committed and removed by another, while reusing the descriptions
+ * already listed, that a pack replacing many others is committed in a
+ * single step, and that the index reads issued by a listing are bounded.
+ * Each test is run with a keyspace per repository, and with a shared
+ * keyspace.
+ * <p/>
+ * Requires a running Cassandra instance, so is skipped unless the
+ * "jgitcassandra.test.nodes" system property is set, e.g.
+ * -Djgitcassandra.test.nodes=127.0.0.1.
+ */
+@RunWith(Parameterized.class)
+public class CassandraObjDatabaseTest {
+    @Parameterized.Parameters(name = "shared={0}")
+    public static Collection<Object[]> layouts() {
+        return Arrays.asList(new Object[][]{{false}, {true}});
+    }
+
+    @Rule
+    public final CassandraRule cassandra = new CassandraRule("objdb_test");
+
+    private final boolean shared;
+
+    private StoreConnection conn;
+
+    private DfsRepositoryDescription desc;
+
+    public CassandraObjDatabaseTest(boolean shared) {
+        this.shared = shared;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        conn = cassandra.connect(shared);
+        desc = new DfsRepositoryDescription(
+                cassandra.getRepositoryName(shared));
+    }
+
+    @Test
+    public void testListingFollowsCommits() throws Exception {
+        CassandraObjDatabase writer = objdb(new CassandraRepository(desc,
+                conn));
+        CassandraObjDatabase reader = objdb(new CassandraRepository(desc,
+                conn));
+        assertTrue(reader.listPacks().isEmpty());
+
+        insertBlob(writer, "a");
+        List<DfsPackDescription> first = reader.listPacks();
+        assertEquals(1, first.size());
+        // Unchanged, so the same descriptions are returned
+        assertSame(first.get(0), reader.listPacks().get(0));
+
+        insertBlob(writer, "b");
+        List<DfsPackDescription> second = reader.listPacks();
+        assertEquals(2, second.size());
+        assertTrue(containsSame(second, first.get(0)));
+
+        writer.commitPackImpl(Collections.<DfsPackDescription>emptyList(),
+                first);
+        List<DfsPackDescription> third = reader.listPacks();
+        assertEquals(1, third.size());
+        assertFalse(third.contains(first.get(0)));
+        assertTrue(containsSame(second, third.get(0)));
+
+        // A new instance reads the same list from scratch
+        List<DfsPackDescription> fresh = objdb(new CassandraRepository(desc,
+                conn)).listPacks();
+        assertEquals(third, fresh);
+        assertEquals(third.get(0).getObjectCount(),
+                fresh.get(0).getObjectCount());
+    }
+
+    @Test
+    public void testReplaceMany() throws Exception {
+        CassandraObjDatabase writer = objdb(new CassandraRepository(desc,
+                conn));
+        List<DfsPackDescription> packs = new ArrayList<DfsPackDescription>();
+        for (int i = 0; i < 50; i++) {
+            packs.add(writer.newPack(DfsObjDatabase.PackSource.INSERT));
+        }
+        writer.commitPackImpl(packs, null);
+        CassandraObjDatabase reader = objdb(new CassandraRepository(desc,
+                conn));
+        assertEquals(50, reader.listPacks().size());
+
+        DfsPackDescription gc = writer.newPack(DfsObjDatabase.PackSource.GC);
+        writer.commitPackImpl(Collections.singletonList(gc), packs);
+        assertEquals(Collections.singletonList(gc), reader.listPacks());
+    }
+
+    @Test
+    public void testPrefetchBounded() throws Exception {
+        CassandraObjDatabase writer = objdb(new CassandraRepository(desc,
+                conn));
+        for (int i = 0; i < 20; i++) {
+            insertBlob(writer, "blob " + i);
+        }
+        int budget = CassandraObjDatabase.getPrefetchBudget();
+        CassandraObjDatabase reader = objdb(new CassandraRepository(desc,
+                conn));
+        assertEquals(20, reader.listPacks().size());
+        assertEquals(16, reader.getPrefetchCount());
+        assertTrue(CassandraObjDatabase.getPrefetchBudget() < budget);
+
+        // Reads never picked up return their budget
+        reader.clearCache();
+        assertEquals(0, reader.getPrefetchCount());
+        assertEquals(budget, CassandraObjDatabase.getPrefetchBudget());
+        reader.listPacks();
+        reader.close();
+        assertEquals(0, reader.getPrefetchCount());
+        assertEquals(budget, CassandraObjDatabase.getPrefetchBudget());
+    }
+
+    private static CassandraObjDatabase objdb(CassandraRepository repo) {
+        return (CassandraObjDatabase) repo.getObjectDatabase();
+    }
+
+    private static void insertBlob(CassandraObjDatabase objdb, String content)
+            throws Exception {
+        ObjectInserter ins = objdb.newInserter();
+        try {
+            ins.insert(Constants.OBJ_BLOB, Constants.encode(content));
+            ins.flush();
+        } finally {
+            ins.release();
+        }
+    }
+
+    private static boolean containsSame(List<DfsPackDescription> packs,
+                                        DfsPackDescription pack) {
+        for (DfsPackDescription p : packs) {
+            if (p == pack) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.repo;
+
+import com.benhumphreys.jgitcassandra.CassandraRule;
+import com.benhumphreys.jgitcassandra.store.StoreConnection;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that getRefs() for a prefix returns the same refs whether read with
+ * a range scan, before the refs are cached, or from the cache. Each test is
+ * run with a keyspace per repository, and with a shared keyspace.
+ * <p/>
+ * Requires a running Cassandra instance, so is skipped unless the
+ * "jgitcassandra.test.nodes" system property is set, e.g.
+ * -Djgitcassandra.test.nodes=127.0.0.1.
+ */
+@RunWith(Parameterized.class)
+public class CassandraRefDatabaseTest {
+    @Parameterized.Parameters(name = "shared={0}")
+    public static Collection<Object[]> layouts() {
+        return Arrays.asList(new Object[][]{{false}, {true}});
+    }
+
+    @Rule
+    public final CassandraRule cassandra = new CassandraRule("refdb_test");
+
+    private final boolean shared;
+
+    private StoreConnection conn;
+
+    private DfsRepositoryDescription desc;
+
+    private ObjectId commit;
+
+    public CassandraRefDatabaseTest(boolean shared) {
+        this.shared = shared;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        conn = cassandra.connect(shared);
+        desc = new DfsRepositoryDescription(
+                cassandra.getRepositoryName(shared));
+
+        CassandraRepository repo = new CassandraRepository(desc, conn);
+        ObjectInserter ins = repo.newObjectInserter();
+        try {
+            CommitBuilder cb = new CommitBuilder();
+            cb.setTreeId(ins.insert(Constants.OBJ_TREE, new byte[0]));
+            PersonIdent ident = new PersonIdent("test", "test@example.com");
+            cb.setAuthor(ident);
+            cb.setCommitter(ident);
+            cb.setMessage("test");
+            commit = ins.insert(cb);
+            ins.flush();
+        } finally {
+            ins.release();
+        }
+
+        for (String name : Arrays.asList("refs/heads/master",
+                "refs/heads/feature/a", "refs/heads0", "refs/tags/v1")) {
+            RefUpdate update = repo.updateRef(name);
+            update.setNewObjectId(commit);
+            assertEquals(RefUpdate.Result.NEW, update.update());
+        }
+        assertEquals(RefUpdate.Result.NEW, repo.getRefDatabase()
+                .newUpdate("refs/remotes/origin/HEAD", false)
+                .link("refs/heads/master"));
+        assertEquals(RefUpdate.Result.NEW, repo.getRefDatabase()
+                .newUpdate("refs/remotes/origin/unborn", false)
+                .link("refs/heads/unborn"));
+    }
+
+    @Test
+    public void testGetRefsWithPrefix() throws Exception {
+        for (String prefix : Arrays.asList("refs/heads/", "refs/remotes/",
+                "refs/remotes/origin/", "refs/notes/")) {
+            RefDatabase scanned = new CassandraRepository(desc, conn)
+                    .getRefDatabase();
+            Map<String, Ref> actual = scanned.getRefs(prefix);
+
+            RefDatabase cached = new CassandraRepository(desc, conn)
+                    .getRefDatabase();
+            cached.getRefs(RefDatabase.ALL);
+            Map<String, Ref> expected = cached.getRefs(prefix);
+
+            assertEquals(expected.keySet(), actual.keySet());
+            for (Ref ref : expected.values()) {
+                Ref other = actual.get(ref.getName().substring(
+                        prefix.length()));
+                assertEquals(ref.getName(), other.getName());
+                assertEquals(ref.getObjectId(), other.getObjectId());
+                assertEquals(ref.getLeaf().getName(),
+                        other.getLeaf().getName());
+            }
+        }
+
+        Map<String, Ref> heads = new CassandraRepository(desc, conn)
+                .getRefDatabase().getRefs(Constants.R_HEADS);
+        assertEquals(2, heads.size());
+        assertEquals(commit, heads.get("feature/a").getObjectId());
+
+        Map<String, Ref> remotes = new CassandraRepository(desc, conn)
+                .getRefDatabase().getRefs(Constants.R_REMOTES);
+        assertEquals(1, remotes.size());
+        assertEquals("refs/heads/master",
+                remotes.get("origin/HEAD").getTarget().getName());
+        assertEquals(commit, remotes.get("origin/HEAD").getObjectId());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.repo;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.ReadableChannel;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DiskCacheTest {
+    private static final DfsRepositoryDescription REPO =
+            new DfsRepositoryDescription("repo");
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @After
+    public void tearDown() throws Exception {
+        DiskCache.reconfigure(null, 0);
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        assertFalse(DiskCache.getInstance().isCacheable(1));
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        File dir = tmp.newFolder("cache");
+        DiskCache.reconfigure(dir, 1024 * 1024);
+        DiskCache cache = DiskCache.getInstance();
+        DfsPackDescription desc = new DfsPackDescription(REPO, "pack-1");
+        byte[] pack = new byte[100000];
+        new Random(42).nextBytes(pack);
+
+        assertNull(cache.openIfCached(desc, PackExt.PACK, pack.length));
+        ReadableChannel source = channel(pack);
+        cache.copy(desc, PackExt.PACK, source, pack.length);
+        ReadableChannel rc = awaitCopy(cache, desc, pack.length);
+        assertFalse(source.isOpen());
+
+        // Served from disk
+        rc.position(50000);
+        ByteBuffer buf = ByteBuffer.allocate(10);
+        rc.read(buf);
+        rc.close();
+        assertEquals(pack[50000], buf.get(0));
+
+        // Already on disk, so not copied again
+        ReadableChannel other = channel(new byte[pack.length]);
+        cache.copy(desc, PackExt.PACK, other, pack.length);
+        assertFalse(other.isOpen());
+        assertArrayEquals(pack, readAll(
+                cache.openIfCached(desc, PackExt.PACK, pack.length)));
+
+        // Copies are found again after a restart
+        DiskCache.reconfigure(dir, 1024 * 1024);
+        cache = DiskCache.getInstance();
+        assertEquals(1, cache.size());
+        assertArrayEquals(pack, readAll(
+                cache.openIfCached(desc, PackExt.PACK, pack.length)));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        File dir = tmp.newFolder("cache");
+        DiskCache.reconfigure(dir, 4 * 1024);
+        DiskCache cache = DiskCache.getInstance();
+        for (int i = 0; i < 100; i++) {
+            DfsPackDescription desc = new DfsPackDescription(REPO, "pack-" + i);
+            cache.copy(desc, PackExt.PACK, channel(new byte[1024]), 1024);
+            awaitCopy(cache, desc, 1024).close();
+        }
+        assertTrue(cache.size() <= 4);
+        assertEquals(cache.size(), new File(dir, "repo").list().length);
+    }
+
+    @Test
+    public void testRepositoryNames() throws Exception {
+        File dir = tmp.newFolder("cache");
+        DiskCache.reconfigure(dir, 1024 * 1024);
+        DiskCache cache = DiskCache.getInstance();
+        DfsPackDescription desc = new DfsPackDescription(
+                new DfsRepositoryDescription("../group/Repo"), "pack-1");
+        cache.copy(desc, PackExt.PACK, channel(new byte[1024]), 1024);
+        awaitCopy(cache, desc, 1024).close();
+
+        // One directory inside the cache directory, and nothing beside it
+        assertEquals(1, tmp.getRoot().list().length);
+        File[] repos = dir.listFiles();
+        assertEquals(1, repos.length);
+        assertEquals("../group/Repo", DiskCache.decodeName(repos[0].getName()));
+        assertEquals(1, repos[0].list().length);
+
+        // Leftovers of nested directories are deleted on a restart
+        File stale = new File(new File(dir, "group"), "repo");
+        assertTrue(stale.mkdirs());
+        assertTrue(new File(stale, "pack-2.pack.1").createNewFile());
+        DiskCache.reconfigure(dir, 1024 * 1024);
+        cache = DiskCache.getInstance();
+        assertEquals(1, cache.size());
+        assertNotNull(cache.openIfCached(desc, PackExt.PACK, 1024));
+        assertFalse(stale.exists());
+
+        assertEquals("a%2fb%c3%a9", DiskCache.encodeName("a/b\u00e9"));
+        assertNull(DiskCache.decodeName("a/b"));
+        assertNull(DiskCache.decodeName("%61"));
+        assertNull(DiskCache.decodeName("a%2"));
+        assertNull(DiskCache.decodeName("%ff"));
+    }
+
+    /**
+     * @return a channel reading the local copy of "desc", once the copy has
+     * been made
+     */
+    private static ReadableChannel awaitCopy(DiskCache cache,
+                                             DfsPackDescription desc,
+                                             long size) throws Exception {
+        for (int i = 0; i < 500; i++) {
+            ReadableChannel rc = cache.openIfCached(desc, PackExt.PACK, size);
+            if (rc != null) {
+                return rc;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Not copied: " + desc);
+    }
+
+    private static ReadableChannel channel(byte[] data) {
+        return new ByteBufferReadableChannel(ByteBuffer.wrap(data));
+    }
+
+    private static byte[] readAll(ReadableChannel rc) throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate((int) rc.size());
+        while (rc.read(buf) > 0) {
+            // Keep reading
+        }
+        rc.close();
+        return buf.array();
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.repo;
+
+import com.benhumphreys.jgitcassandra.CassandraRule;
+import com.benhumphreys.jgitcassandra.store.StoreConnection;
+import org.eclipse.jgit.internal.storage.dfs.DfsObjDatabase;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackFile;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepository;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the thresholds which trigger compaction and garbage collection,
+ * that the counters are exposed through JMX, and, if a Cassandra instance
+ * is available, that both kinds of run leave every object readable from
+ * fewer packs, once the replaced packs have been deleted, and that the
+ * collected pack has a bitmap index. The latter requires the
+ * "jgitcassandra.test.nodes" system property to be set, e.g.
+ * -Djgitcassandra.test.nodes=127.0.0.1.
+ */
+public class GcServiceTest {
+    private static final DfsRepositoryDescription REPO =
+            new DfsRepositoryDescription("repo");
+
+    @Rule
+    public final CassandraRule cassandra = new CassandraRule("gc_test");
+
+    private StoreConnection conn;
+
+    private GcService gc;
+
+    @Before
+    public void setUp() throws Exception {
+        gc = new GcService(null, 1);
+        gc.setCompactPackCount(3);
+        gc.setSmallPackSize(100);
+        gc.setGcPackCount(6);
+        gc.setGcBytes(1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        gc.shutdown(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testCheck() throws Exception {
+        List<DfsPackDescription> packs = new ArrayList<DfsPackDescription>();
+        packs.add(pack("gc", DfsObjDatabase.PackSource.GC, 5000));
+        packs.add(pack("a", DfsObjDatabase.PackSource.RECEIVE, 10));
+        packs.add(pack("b", DfsObjDatabase.PackSource.RECEIVE, 10));
+        assertNull(gc.check(packs));
+
+        packs.add(pack("c", DfsObjDatabase.PackSource.INSERT, 10));
+        assertEquals(GcService.Kind.COMPACT, gc.check(packs));
+
+        // Packs of garbage do not count towards a collection
+        packs.add(pack("garbage",
+                DfsObjDatabase.PackSource.UNREACHABLE_GARBAGE, 5000));
+        packs.add(pack("d", DfsObjDatabase.PackSource.RECEIVE, 10));
+        assertEquals(GcService.Kind.COMPACT, gc.check(packs));
+        packs.add(pack("e", DfsObjDatabase.PackSource.RECEIVE, 10));
+        assertEquals(GcService.Kind.GC, gc.check(packs));
+
+        // Large packs not written by a collection trigger one
+        packs.clear();
+        packs.add(pack("gc", DfsObjDatabase.PackSource.GC, 5000));
+        packs.add(pack("a", DfsObjDatabase.PackSource.RECEIVE, 600));
+        assertNull(gc.check(packs));
+        packs.add(pack("b", DfsObjDatabase.PackSource.COMPACT, 600));
+        assertEquals(GcService.Kind.GC, gc.check(packs));
+
+        // Small packs written by a collection, or with a bitmap index, are
+        // not compacted
+        gc.setGcPackCount(10);
+        packs.clear();
+        packs.add(pack("gc", DfsObjDatabase.PackSource.GC, 10));
+        packs.add(pack("garbage",
+                DfsObjDatabase.PackSource.UNREACHABLE_GARBAGE, 10));
+        DfsPackDescription bitmap =
+                pack("bitmap", DfsObjDatabase.PackSource.COMPACT, 10);
+        bitmap.addFileExt(PackExt.BITMAP_INDEX);
+        packs.add(bitmap);
+        packs.add(pack("a", DfsObjDatabase.PackSource.RECEIVE, 10));
+        packs.add(pack("b", DfsObjDatabase.PackSource.RECEIVE, 10));
+        assertNull(gc.check(packs));
+        packs.add(pack("c", DfsObjDatabase.PackSource.RECEIVE, 10));
+        assertEquals(GcService.Kind.COMPACT, gc.check(packs));
+    }
+
+    @Test
+    public void testWithoutThreads() throws Exception {
+        GcService purgeOnly = new GcService(null, 0);
+        purgeOnly.setGcPackCount(1);
+        InMemoryRepository repo = new InMemoryRepository(REPO);
+        commit(repo, null, "commit");
+        // Over the threshold, but there is no thread to run on
+        assertFalse(purgeOnly.schedule(repo));
+        assertTrue(purgeOnly.shutdown(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(GcService.MBEAN_NAME);
+        gc.registerMBean();
+        try {
+            assertEquals(6, server.getAttribute(name, "GcPackCount"));
+            assertEquals(0L, server.getAttribute(name, "CollectionCount"));
+            assertEquals(0L, server.getAttribute(name, "SkipCount"));
+            assertEquals(0L, server.getAttribute(name, "FailureCount"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void testCollect() throws Exception {
+        conn = cassandra.connect(true);
+        gc.shutdown(10, TimeUnit.SECONDS);
+        gc = new GcService(conn, 1);
+        gc.setGracePeriod(0);
+
+        CassandraRepository repo = new CassandraRepository(REPO, conn);
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        ObjectId parent = null;
+        for (int i = 0; i < 5; i++) {
+            parent = commit(repo, parent, "commit " + i);
+            ids.add(parent);
+        }
+        RefUpdate update = repo.updateRef("refs/heads/master");
+        update.setNewObjectId(parent);
+        assertEquals(RefUpdate.Result.NEW, update.update());
+        assertEquals(5, packs().size());
+
+        gc.collect(REPO.getRepositoryName(), GcService.Kind.COMPACT);
+        assertEquals(1, gc.getCompactionCount());
+        assertEquals(5, gc.getPacksMerged());
+        List<DfsPackDescription> packs = packs();
+        assertEquals(1, packs.size());
+        assertEquals(DfsObjDatabase.PackSource.COMPACT,
+                packs.get(0).getPackSource());
+        assertReadable(ids);
+
+        // Unreachable, so collected into a pack of garbage
+        ids.add(commit(repo, null, "garbage"));
+        gc.collect(REPO.getRepositoryName(), GcService.Kind.GC);
+        assertEquals(1, gc.getCollectionCount());
+        assertEquals(7, gc.getPacksMerged());
+        // The packs replaced by the compaction
+        assertEquals(5, gc.getPacksPurged());
+        assertTrue(gc.getBytesRewritten() > 0);
+        assertEquals(0, gc.getFailureCount());
+        List<DfsObjDatabase.PackSource> sources =
+                new ArrayList<DfsObjDatabase.PackSource>();
+        for (DfsPackDescription desc : packs()) {
+            sources.add(desc.getPackSource());
+            if (desc.getPackSource() == DfsObjDatabase.PackSource.GC) {
+                assertTrue(desc.hasFileExt(PackExt.BITMAP_INDEX));
+                assertTrue(desc.getFileSize(PackExt.BITMAP_INDEX) > 0);
+            }
+        }
+        assertTrue(sources.contains(DfsObjDatabase.PackSource.GC));
+        assertTrue(sources.contains(
+                DfsObjDatabase.PackSource.UNREACHABLE_GARBAGE));
+        assertEquals(2, sources.size());
+        assertReadable(ids);
+
+        // The packs replaced by the collection, purged without a run
+        assertEquals(2, gc.purgeAll());
+        assertEquals(7, gc.getPacksPurged());
+        assertReadable(ids);
+    }
+
+    private static DfsPackDescription pack(String name,
+                                           DfsObjDatabase.PackSource source,
+                                           long size) {
+        DfsPackDescription desc = new DfsPackDescription(REPO, name);
+        desc.setPackSource(source);
+        desc.setFileSize(PackExt.PACK, size);
+        return desc;
+    }
+
+    /**
+     * @return the packs of "repo" as listed by a new instance
+     */
+    private List<DfsPackDescription> packs()
+            throws Exception {
+        List<DfsPackDescription> packs = new ArrayList<DfsPackDescription>();
+        for (DfsPackFile pack : new CassandraRepository(REPO, conn)
+                .getObjectDatabase().getPacks()) {
+            packs.add(pack.getPackDescription());
+        }
+        return packs;
+    }
+
+    private void assertReadable(List<ObjectId> ids)
+            throws Exception {
+        ObjectReader reader = new CassandraRepository(REPO, conn)
+                .newObjectReader();
+        try {
+            for (ObjectId id : ids) {
+                assertTrue(reader.has(id));
+                assertEquals(Constants.OBJ_COMMIT, reader.open(id).getType());
+            }
+        } finally {
+            reader.release();
+        }
+    }
+
+    /**
+     * Inserts a commit in a pack of its own
+     */
+    private static ObjectId commit(DfsRepository repo, ObjectId parent,
+                                   String message) throws Exception {
+        ObjectInserter ins = repo.newObjectInserter();
+        try {
+            CommitBuilder cb = new CommitBuilder();
+            cb.setTreeId(ins.insert(Constants.OBJ_TREE, new byte[0]));
+            if (parent != null) {
+                cb.setParentId(parent);
+            }
+            PersonIdent ident = new PersonIdent("test", "test@example.com");
+            cb.setAuthor(ident);
+            cb.setCommitter(ident);
+            cb.setMessage(message);
+            ObjectId id = ins.insert(cb);
+            ins.flush();
+            return id;
+        } finally {
+            ins.release();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.repo;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.ReadableChannel;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.*;
+
+public class PackIndexCacheTest {
+    private static final DfsRepositoryDescription REPO =
+            new DfsRepositoryDescription("repo");
+
+    @After
+    public void tearDown() {
+        PackIndexCache.reconfigure(PackIndexCache.DEFAULT_LIMIT);
+    }
+
+    @Test
+    public void testReadThrough() throws Exception {
+        PackIndexCache.reconfigure(1024 * 1024);
+        PackIndexCache cache = PackIndexCache.getInstance();
+        DfsPackDescription desc = new DfsPackDescription(REPO, "pack-1");
+        byte[] idx = new byte[100000];
+        new Random(42).nextBytes(idx);
+
+        assertTrue(cache.isCacheable(PackExt.INDEX, idx.length));
+        assertTrue(cache.isCacheable(PackExt.BITMAP_INDEX, idx.length));
+        assertFalse(cache.isCacheable(PackExt.PACK, idx.length));
+        assertFalse(cache.contains(desc, PackExt.INDEX));
+        ReadableChannel source = channel(idx);
+        assertArrayEquals(idx, readAll(
+                cache.open(desc, PackExt.INDEX, source, idx.length)));
+        assertFalse(source.isOpen());
+
+        // A second open is served from the cache, not the source
+        assertTrue(cache.contains(desc, PackExt.INDEX));
+        assertArrayEquals(idx, readAll(cache.open(desc, PackExt.INDEX,
+                channel(new byte[idx.length]), idx.length)));
+        assertEquals(1, cache.getStats().hitCount());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        PackIndexCache.reconfigure(4 * 1024);
+        PackIndexCache cache = PackIndexCache.getInstance();
+        assertFalse(cache.isCacheable(PackExt.INDEX, 2 * 1024));
+        for (int i = 0; i < 100; i++) {
+            DfsPackDescription desc = new DfsPackDescription(REPO, "pack-" + i);
+            cache.open(desc, PackExt.INDEX, channel(new byte[1024]), 1024);
+        }
+        assertTrue(cache.size() <= 4);
+        assertTrue(cache.getStats().evictionCount() >= 96);
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(PackIndexCache.MBEAN_NAME);
+        PackIndexCache.registerMBean();
+        try {
+            PackIndexCache.reconfigure(1024 * 1024);
+            DfsPackDescription desc = new DfsPackDescription(REPO, "pack-1");
+            for (int i = 0; i < 2; i++) {
+                PackIndexCache.getInstance().open(desc, PackExt.INDEX,
+                        channel(new byte[1024]), 1024).close();
+            }
+            assertEquals(1L, server.getAttribute(name, "Size"));
+            assertEquals(1L, server.getAttribute(name, "HitCount"));
+            assertEquals(1L, server.getAttribute(name, "MissCount"));
+            assertEquals(0.5, server.getAttribute(name, "HitRate"));
+
+            // The statistics follow the cache through a reconfiguration
+            PackIndexCache.reconfigure(1024 * 1024);
+            assertEquals(0L, server.getAttribute(name, "Size"));
+            assertEquals(0L, server.getAttribute(name, "EvictionCount"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    private static ReadableChannel channel(byte[] data) {
+        return new ByteBufferReadableChannel(ByteBuffer.wrap(data));
+    }
+
+    private static byte[] readAll(ReadableChannel rc) throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate((int) rc.size());
+        while (rc.read(buf) > 0) {
+            // Keep reading
+        }
+        rc.close();
+        return buf.array();
+    }
+}
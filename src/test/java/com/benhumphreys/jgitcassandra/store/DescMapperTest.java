@@ -67,6 +67,17 @@ public class DescMapperTest {
         assertEquals(0, desc.getFileSize(PackExt.BITMAP_INDEX));
     }
 
+    @Test
+    public void testLookupExt() throws Exception {
+        assertSame(PackExt.PACK, DescMapper.lookupExt("pack"));
+        assertSame(PackExt.BITMAP_INDEX, DescMapper.lookupExt("bitmap"));
+
+        // An unknown extension is registered once, and found afterwards
+        PackExt ext = DescMapper.lookupExt("descmappertest");
+        assertEquals("descmappertest", ext.getExtension());
+        assertSame(ext, DescMapper.lookupExt("descmappertest"));
+    }
+
     @Test
     public void testGetExtBits() throws Exception {
         // Prepare the desc object
@@ -0,0 +1,106 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import com.benhumphreys.jgitcassandra.CassandraRule;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that pack data is split into blob chunks without copying, and, if
+ * a Cassandra instance is available, that files written through ObjStore
+ * read back unchanged. The latter requires the "jgitcassandra.test.nodes"
+ * system property to be set, e.g. -Djgitcassandra.test.nodes=127.0.0.1.
+ */
+public class PackDataEncodingTest {
+    private static final int MB = 1024 * 1024;
+
+    private static final DfsRepositoryDescription REPO =
+            new DfsRepositoryDescription("repo");
+
+    @Rule
+    public final CassandraRule cassandra = new CassandraRule("encoding_test");
+
+    private ByteBuffer data;
+
+    @Before
+    public void setUp() throws Exception {
+        byte[] bytes = new byte[MB];
+        new Random(42).nextBytes(bytes);
+        data = ByteBuffer.wrap(bytes);
+    }
+
+    @Test
+    public void testSplitChunks() throws Exception {
+        List<ByteBuffer> chunks = ObjStore.splitChunks(data);
+        assertEquals(MB / ObjStore.CHUNK_SIZE, chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            ByteBuffer chunk = chunks.get(i);
+            assertEquals(ObjStore.CHUNK_SIZE, chunk.remaining());
+            assertSame(data.array(), chunk.array());
+            assertEquals(i * ObjStore.CHUNK_SIZE, chunk.position());
+        }
+        assertEquals(0, data.position());
+    }
+
+    @Test
+    public void testSplitChunksPartial() throws Exception {
+        data.position(10);
+        data.limit(ObjStore.CHUNK_SIZE + 20);
+        List<ByteBuffer> chunks = ObjStore.splitChunks(data);
+        assertEquals(2, chunks.size());
+        assertEquals(ObjStore.CHUNK_SIZE, chunks.get(0).remaining());
+        assertEquals(10, chunks.get(1).remaining());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        StoreConnection conn = cassandra.connect(true);
+        ObjStore store = new ObjStore(REPO.getRepositoryName(), conn, REPO);
+        DfsPackDescription desc = new DfsPackDescription(REPO, "pack-1");
+
+        // Not a multiple of the chunk size, so the last chunk is partial
+        data.limit(MB - 100);
+        store.writeFile(desc, PackExt.PACK, data);
+        assertEquals(MB - 100, store.fileSize(desc, PackExt.PACK));
+        assertEquals(data, store.readFile(desc, PackExt.PACK));
+        ByteBuffer chunks = store.readChunks(desc, PackExt.PACK,
+                ObjStore.CHUNK_SIZE, 2);
+        assertEquals(2 * ObjStore.CHUNK_SIZE, chunks.remaining());
+        ByteBuffer expected = data.duplicate();
+        expected.position(ObjStore.CHUNK_SIZE);
+        expected.limit(3 * ObjStore.CHUNK_SIZE);
+        assertEquals(expected, chunks);
+
+        // Overwriting with a shorter file leaves none of the old chunks
+        data.limit(ObjStore.CHUNK_SIZE + 1);
+        store.writeFile(desc, PackExt.PACK, data);
+        assertEquals(data, store.readFile(desc, PackExt.PACK));
+        assertEquals(1, store.readChunks(desc, PackExt.PACK,
+                ObjStore.CHUNK_SIZE, 10).remaining());
+    }
+}
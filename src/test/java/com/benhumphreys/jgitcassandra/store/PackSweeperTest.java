@@ -0,0 +1,185 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import com.benhumphreys.jgitcassandra.CassandraRule;
+import org.eclipse.jgit.internal.storage.dfs.DfsObjDatabase;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the files of trashed packs are deleted only once the grace
+ * period has passed, and only if the pack has no description, and that the
+ * sweeper finds files with no description, skipping those written recently
+ * and keeping those it finds for longer than the grace period. Each test is
+ * run with a keyspace per repository, and with a shared keyspace.
+ * <p/>
+ * Requires a running Cassandra instance, so is skipped unless the
+ * "jgitcassandra.test.nodes" system property is set, e.g.
+ * -Djgitcassandra.test.nodes=127.0.0.1.
+ */
+@RunWith(Parameterized.class)
+public class PackSweeperTest {
+    @Parameterized.Parameters(name = "shared={0}")
+    public static Collection<Object[]> layouts() {
+        return Arrays.asList(new Object[][]{{false}, {true}});
+    }
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @Rule
+    public final CassandraRule cassandra = new CassandraRule("sweep_test");
+
+    private final boolean shared;
+
+    private StoreConnection conn;
+
+    private String keyspace;
+
+    private DfsRepositoryDescription repoDesc;
+
+    private ObjStore store;
+
+    public PackSweeperTest(boolean shared) {
+        this.shared = shared;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        keyspace = cassandra.getKeyspace();
+        conn = cassandra.connect(shared);
+        repoDesc = new DfsRepositoryDescription(
+                cassandra.getRepositoryName(shared));
+        store = new ObjStore(repoDesc.getRepositoryName(), conn, repoDesc);
+    }
+
+    @Test
+    public void testTrashAndSweep() throws Exception {
+        DfsPackDescription live = writePack("live");
+        DfsPackDescription replaced = writePack("replaced");
+        store.commitDesc(Arrays.asList(live, replaced),
+                Collections.<DfsPackDescription>emptyList());
+        DfsPackDescription orphan = writePack("orphan");
+
+        DfsPackDescription gc = writePack("gc");
+        store.commitDesc(Collections.singletonList(gc),
+                Collections.singletonList(replaced));
+        store.trashPacks(Collections.singletonList(replaced));
+
+        PackSweeper sweeper = new PackSweeper(conn.getSession());
+        sweeper.setMinIdle(0);
+        sweeper.setOrphanDelay(0);
+        assertTrue(sweeper.findKeyspaces(shared).contains(keyspace));
+        assertFalse(sweeper.findKeyspaces(!shared).contains(keyspace));
+        // Only the orphan; "replaced" is already in the trash
+        assertEquals(1, sweeper.sweep(keyspace));
+        assertEquals(0, sweeper.sweep(keyspace));
+        assertEquals(Collections.singletonList(repoDesc.getRepositoryName()),
+                sweeper.findTrashedRepositories(keyspace));
+
+        // Within the grace period
+        assertEquals(0, store.purgeTrash(HOUR));
+        assertFiles(replaced, true);
+        assertFiles(orphan, true);
+
+        // Purged without creating missing tables
+        conn.getSession().execute("DROP TABLE " + keyspace + "."
+                + RefStore.TABLE_NAME);
+        StoreConnection other = cassandra.connect(shared);
+        assertEquals(2, new PackSweeper(other.getSession())
+                .purge(other, keyspace, 0));
+        assertNull(other.getSession().getCluster().getMetadata()
+                .getKeyspace(keyspace).getTable(RefStore.TABLE_NAME));
+        assertFiles(replaced, false);
+        assertFiles(orphan, false);
+        assertFiles(live, true);
+        assertFiles(gc, true);
+        assertTrue(sweeper.findTrashedRepositories(keyspace).isEmpty());
+    }
+
+    @Test
+    public void testSweepDelays() throws Exception {
+        DfsPackDescription orphan = writePack("orphan");
+        PackSweeper sweeper = new PackSweeper(conn.getSession());
+        // Written too recently, so may be a push in progress
+        assertEquals(0, sweeper.sweep(keyspace));
+
+        sweeper.setMinIdle(0);
+        assertEquals(1, sweeper.sweep(keyspace));
+        // Kept for longer than the grace period
+        assertEquals(0, store.purgeTrash(0));
+        assertFiles(orphan, true);
+        // As if the delay had passed
+        assertEquals(1, store.purgeTrash(-PackSweeper.DEFAULT_ORPHAN_DELAY));
+        assertFiles(orphan, false);
+    }
+
+    @Test
+    public void testCommittedAfterTrash() throws Exception {
+        DfsPackDescription pack = writePack("pack");
+        store.trashPacks(Collections.singletonList(pack));
+        store.commitDesc(Collections.singletonList(pack),
+                Collections.<DfsPackDescription>emptyList());
+        assertEquals(0, store.purgeTrash(0));
+        assertFiles(pack, true);
+        List<DfsPackDescription> packs = store.listPacks();
+        assertEquals(Collections.singletonList(pack), packs);
+    }
+
+    private DfsPackDescription writePack(String name) throws Exception {
+        DfsPackDescription desc = new DfsPackDescription(repoDesc, name
+                + "-" + System.nanoTime() + ".pack");
+        desc.setPackSource(DfsObjDatabase.PackSource.INSERT);
+        for (PackExt ext : Arrays.asList(PackExt.PACK, PackExt.INDEX)) {
+            byte[] data = new byte[ObjStore.CHUNK_SIZE + 100];
+            Arrays.fill(data, (byte) ext.getPosition());
+            store.writeFile(desc, ext, ByteBuffer.wrap(data));
+            desc.addFileExt(ext);
+            desc.setFileSize(ext, data.length);
+        }
+        return desc;
+    }
+
+    private void assertFiles(DfsPackDescription desc, boolean exist)
+            throws Exception {
+        for (PackExt ext : Arrays.asList(PackExt.PACK, PackExt.INDEX)) {
+            try {
+                assertEquals(ObjStore.CHUNK_SIZE + 100,
+                        store.fileSize(desc, ext));
+                assertTrue(exist);
+            } catch (FileNotFoundException e) {
+                assertFalse(exist);
+            }
+        }
+    }
+}
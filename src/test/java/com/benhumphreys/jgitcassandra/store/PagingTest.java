@@ -0,0 +1,67 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PagingTest {
+    @Test
+    public void testDefaults() {
+        Paging paging = new Paging();
+        for (Paging.Operation op : Paging.Operation.values()) {
+            assertEquals(op.getDefaultFetchSize(), paging.getFetchSize(op));
+            assertEquals(op.getDefaultFetchSize(),
+                    paging.initialFetchSize(op));
+        }
+        assertTrue(paging.isAdaptive());
+    }
+
+    @Test
+    public void testSizedByRows() {
+        Paging paging = new Paging();
+        paging.setPageBytes(1000);
+        assertEquals(10, paging.nextFetchSize(Paging.Operation.REFS, 100));
+        // Later reads start with the measured size
+        assertEquals(10, paging.initialFetchSize(Paging.Operation.REFS));
+        assertEquals(Paging.Operation.PACKS.getDefaultFetchSize(),
+                paging.initialFetchSize(Paging.Operation.PACKS));
+
+        // Rows larger than a page are read one at a time
+        assertEquals(1, paging.nextFetchSize(Paging.Operation.FILES, 5000));
+        // Small rows are limited to MAX_FETCH_SIZE
+        paging.setPageBytes(Paging.DEFAULT_PAGE_BYTES);
+        assertEquals(Paging.MAX_FETCH_SIZE,
+                paging.nextFetchSize(Paging.Operation.REFS, 1));
+    }
+
+    @Test
+    public void testFixed() {
+        Paging paging = new Paging();
+        paging.setPageBytes(0);
+        paging.setFetchSize(Paging.Operation.REFS, 500);
+        assertFalse(paging.isAdaptive());
+        assertEquals(500, paging.nextFetchSize(Paging.Operation.REFS, 100));
+        assertEquals(500, paging.initialFetchSize(Paging.Operation.REFS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFetchSize() {
+        new Paging().setFetchSize(Paging.Operation.REFS, 0);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import com.benhumphreys.jgitcassandra.CassandraRule;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.SymbolicRef;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that refs copied by RefMigration read back the same in the binary
+ * encoding, and compares the time taken to scan refs in each encoding with
+ * the time taken to read them from the ref snapshot.
+ * <p/>
+ * Requires a running Cassandra instance, so is skipped unless the
+ * "jgitcassandra.test.nodes" system property is set, e.g.
+ * -Djgitcassandra.test.nodes=127.0.0.1. The number of refs used is set with
+ * "jgitcassandra.bench.refs".
+ */
+public class RefEncodingTest {
+    private static final int RUNS = 3;
+
+    private static final int BATCH_SIZE = 100;
+
+    @Rule
+    public final CassandraRule cassandra = new CassandraRule("encoding_test");
+
+    private StoreConnection textConn;
+
+    private StoreConnection binaryConn;
+
+    private String keyspace;
+
+    @Before
+    public void setUp() throws Exception {
+        keyspace = cassandra.getKeyspace();
+        textConn = cassandra.connect(true, false);
+        binaryConn = cassandra.connect(true, true);
+    }
+
+    @Test
+    public void testMigrateAndScan() throws Exception {
+        int count = Integer.getInteger("jgitcassandra.bench.refs", 10000);
+        RefStore text = new RefStore("repo", textConn);
+        ObjectId tag = ObjectId.fromString(
+                "0123456789012345678901234567890123456789");
+        ObjectId commit = ObjectId.fromString(
+                "9876543210987654321098765432109876543210");
+        // Written in single partition batches, as CassandraBatchRefUpdate does
+        List<Ref> oldRefs = new ArrayList<Ref>();
+        List<Ref> newRefs = new ArrayList<Ref>();
+        for (int i = 0; i < count; i++) {
+            String name = "refs/tags/t" + i;
+            oldRefs.add(null);
+            newRefs.add(i % 2 == 0
+                    ? new ObjectIdRef.PeeledTag(Ref.Storage.NETWORK, name,
+                    tag, commit)
+                    : new ObjectIdRef.PeeledNonTag(Ref.Storage.NETWORK, name,
+                    commit));
+            if (newRefs.size() == BATCH_SIZE || i == count - 1) {
+                assertTrue(text.compareAndPutAllAsync(oldRefs, newRefs).get());
+                oldRefs.clear();
+                newRefs.clear();
+            }
+        }
+        // A ref expected not to exist cannot be removed
+        assertFalse(text.compareAndPutAllAsync(
+                Arrays.<Ref>asList(new ObjectIdRef.Unpeeled(Ref.Storage.NEW,
+                        "refs/tags/missing", null)),
+                Arrays.<Ref>asList((Ref) null)).get());
+        assertNull(text.putIfAbsent("HEAD", new SymbolicRef("HEAD",
+                new ObjectIdRef.Unpeeled(Ref.Storage.NEW, "refs/tags/t1",
+                        null))));
+
+        // Unmigrated refs are refused rather than appearing to be missing
+        SchemaManager schema = binaryConn.getSchemaManager();
+        assertEquals(Arrays.asList(keyspace), schema.findUnmigrated(keyspace));
+        assertTrue(schema.findUnmigrated(null).contains(keyspace));
+        try {
+            new RefStore("repo", binaryConn);
+            fail("Opened unmigrated refs");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        RefMigration migration = new RefMigration(textConn.getSession());
+        assertEquals(count + 1, migration.migrate(keyspace));
+        assertTrue(schema.findUnmigrated(keyspace).isEmpty());
+        RefStore binary = new RefStore("repo", binaryConn);
+
+        Map<String, Ref> expected = toMap(text.valuesFromTable());
+        Map<String, Ref> actual = toMap(binary.valuesFromTable());
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Ref ref : expected.values()) {
+            Ref other = actual.get(ref.getName());
+            assertEquals(ref.getClass(), other.getClass());
+            assertEquals(ref.getObjectId(), other.getObjectId());
+            assertEquals(ref.getPeeledObjectId(), other.getPeeledObjectId());
+            assertEquals(ref.getLeaf().getName(), other.getLeaf().getName());
+        }
+
+        // Builds the snapshot
+        assertEquals(count + 1, text.values().size());
+
+        long textMs = Long.MAX_VALUE;
+        long binaryMs = Long.MAX_VALUE;
+        long snapshotMs = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            text.valuesFromTable();
+            textMs = Math.min(textMs, (System.nanoTime() - start) / 1000000);
+            start = System.nanoTime();
+            binary.valuesFromTable();
+            binaryMs = Math.min(binaryMs,
+                    (System.nanoTime() - start) / 1000000);
+            start = System.nanoTime();
+            text.values();
+            snapshotMs = Math.min(snapshotMs,
+                    (System.nanoTime() - start) / 1000000);
+        }
+        System.out.printf("Read %d refs: scan with text ids %d ms, scan with"
+                + " binary ids %d ms, snapshot %d ms%n", count + 1, textMs,
+                binaryMs, snapshotMs);
+    }
+
+    private static Map<String, Ref> toMap(Collection<Ref> refs) {
+        Map<String, Ref> map = new TreeMap<String, Ref>();
+        for (Ref ref : refs) {
+            map.put(ref.getName(), ref);
+        }
+        return map;
+    }
+}
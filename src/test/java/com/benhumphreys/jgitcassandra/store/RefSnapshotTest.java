@@ -0,0 +1,111 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RefSnapshotTest {
+    private static final ObjectId TAG = ObjectId.fromString(
+            "0123456789012345678901234567890123456789");
+
+    private static final ObjectId COMMIT = ObjectId.fromString(
+            "9876543210987654321098765432109876543210");
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Map<String, Ref> ids = new HashMap<String, Ref>();
+        put(ids, new ObjectIdRef.PeeledNonTag(Ref.Storage.NETWORK,
+                "refs/heads/master", COMMIT));
+        put(ids, new ObjectIdRef.PeeledTag(Ref.Storage.NETWORK,
+                "refs/tags/v1", TAG, COMMIT));
+        put(ids, new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK,
+                "refs/heads/feature", COMMIT));
+        Map<String, String> symbolic = new HashMap<String, String>();
+        symbolic.put("HEAD", "refs/heads/master");
+        symbolic.put("refs/remotes/origin/HEAD", "refs/heads/unborn");
+
+        Map<String, Ref> actualIds = new HashMap<String, Ref>();
+        Map<String, String> actualSymbolic = new HashMap<String, String>();
+        RefSnapshot.decode(RefSnapshot.encode(ids, symbolic), actualIds,
+                actualSymbolic);
+
+        assertEquals(symbolic, actualSymbolic);
+        assertEquals(ids.keySet(), actualIds.keySet());
+        for (Ref ref : ids.values()) {
+            Ref other = actualIds.get(ref.getName());
+            assertEquals(ref.getClass(), other.getClass());
+            assertEquals(ref.getObjectId(), other.getObjectId());
+            assertEquals(ref.getPeeledObjectId(), other.getPeeledObjectId());
+        }
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        List<ByteBuffer> chunks = RefSnapshot.encode(
+                new HashMap<String, Ref>(), new HashMap<String, String>());
+        assertEquals(1, chunks.size());
+
+        Map<String, Ref> ids = new HashMap<String, Ref>();
+        Map<String, String> symbolic = new HashMap<String, String>();
+        RefSnapshot.decode(chunks, ids, symbolic);
+        assertTrue(ids.isEmpty());
+        assertTrue(symbolic.isEmpty());
+    }
+
+    @Test
+    public void testChunked() throws Exception {
+        // Random ids do not compress, so these need several chunks
+        Random random = new Random(0);
+        byte[] raw = new byte[20];
+        Map<String, Ref> ids = new HashMap<String, Ref>();
+        for (int i = 0; i < 100000; i++) {
+            random.nextBytes(raw);
+            put(ids, new ObjectIdRef.PeeledNonTag(Ref.Storage.NETWORK,
+                    "refs/changes/" + (i % 100) + "/" + i + "/1",
+                    ObjectId.fromRaw(raw)));
+        }
+        List<ByteBuffer> chunks = RefSnapshot.encode(ids,
+                new HashMap<String, String>());
+        assertTrue(chunks.size() > 1);
+        for (ByteBuffer chunk : chunks) {
+            assertTrue(chunk.remaining() <= RefSnapshot.CHUNK_SIZE);
+        }
+
+        Map<String, Ref> actual = new HashMap<String, Ref>();
+        RefSnapshot.decode(chunks, actual, new HashMap<String, String>());
+        assertEquals(ids.size(), actual.size());
+        for (Ref ref : ids.values()) {
+            assertEquals(ref.getObjectId(),
+                    actual.get(ref.getName()).getObjectId());
+        }
+    }
+
+    private static void put(Map<String, Ref> ids, Ref ref) {
+        ids.put(ref.getName(), ref);
+    }
+}
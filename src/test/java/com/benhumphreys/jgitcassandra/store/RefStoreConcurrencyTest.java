@@ -0,0 +1,141 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import com.benhumphreys.jgitcassandra.CassandraRule;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Races many writers against a single ref and checks that exactly one of
+ * them wins.
+ * <p/>
+ * Requires a running Cassandra instance, so is skipped unless the
+ * "jgitcassandra.test.nodes" system property is set to a comma separated
+ * list of nodes, e.g. -Djgitcassandra.test.nodes=127.0.0.1
+ */
+public class RefStoreConcurrencyTest {
+    private static final int WRITERS = 16;
+
+    private static final String REF_NAME = "refs/heads/master";
+
+    @Rule
+    public final CassandraRule cassandra = new CassandraRule("refstore_test");
+
+    private StoreConnection conn;
+
+    private RefStore store;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        conn = cassandra.connect();
+        store = new RefStore(cassandra.getKeyspace(), conn);
+        executor = Executors.newFixedThreadPool(WRITERS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testConcurrentCreate() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < WRITERS; i++) {
+            final Ref ref = newRef(i);
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    start.await();
+                    return store.putIfAbsent(REF_NAME, ref) == null;
+                }
+            }));
+        }
+        start.countDown();
+
+        Ref winner = null;
+        for (int i = 0; i < WRITERS; i++) {
+            if (results.get(i).get()) {
+                assertNull("More than one writer created the ref", winner);
+                winner = newRef(i);
+            }
+        }
+        assertNotNull("No writer created the ref", winner);
+        assertEquals(winner.getObjectId(), store.get(REF_NAME).getObjectId());
+    }
+
+    @Test
+    public void testConcurrentReplace() throws Exception {
+        final Ref initial = newRef(WRITERS);
+        assertNull(store.putIfAbsent(REF_NAME, initial));
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < WRITERS; i++) {
+            final Ref ref = newRef(i);
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    start.await();
+                    return store.replace(REF_NAME, initial, ref);
+                }
+            }));
+        }
+        start.countDown();
+
+        Ref winner = null;
+        for (int i = 0; i < WRITERS; i++) {
+            if (results.get(i).get()) {
+                assertNull("More than one writer replaced the ref", winner);
+                winner = newRef(i);
+            }
+        }
+        assertNotNull("No writer replaced the ref", winner);
+        assertEquals(winner.getObjectId(), store.get(REF_NAME).getObjectId());
+
+        assertFalse(store.remove(REF_NAME, initial));
+        assertTrue(store.remove(REF_NAME, winner));
+        assertNull(store.get(REF_NAME));
+    }
+
+    private static Ref newRef(int i) {
+        byte[] raw = new byte[20];
+        raw[19] = (byte) (i + 1);
+        return new ObjectIdRef.PeeledNonTag(Ref.Storage.NETWORK, REF_NAME,
+                ObjectId.fromRaw(raw));
+    }
+}
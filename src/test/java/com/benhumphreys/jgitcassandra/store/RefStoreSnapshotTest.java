@@ -0,0 +1,246 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import com.benhumphreys.jgitcassandra.CassandraRule;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.SymbolicRef;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that values(), which reads the ref snapshot and log, returns the
+ * same refs as a scan of the refs table as refs are modified, including
+ * once enough refs have been logged for the snapshot to be rebuilt. Each
+ * test is run with a keyspace per repository, and with a shared keyspace.
+ * <p/>
+ * Requires a running Cassandra instance, so is skipped unless the
+ * "jgitcassandra.test.nodes" system property is set, e.g.
+ * -Djgitcassandra.test.nodes=127.0.0.1.
+ */
+@RunWith(Parameterized.class)
+public class RefStoreSnapshotTest {
+    @Parameterized.Parameters(name = "shared={0}")
+    public static Collection<Object[]> layouts() {
+        return Arrays.asList(new Object[][]{{false}, {true}});
+    }
+
+    private static final ObjectId ID1 = ObjectId.fromString(
+            "0123456789012345678901234567890123456789");
+
+    private static final ObjectId ID2 = ObjectId.fromString(
+            "9876543210987654321098765432109876543210");
+
+    private static final int IN_FLIGHT = 32;
+
+    @Rule
+    public final CassandraRule cassandra = new CassandraRule("snapshot_test");
+
+    private final boolean shared;
+
+    private StoreConnection conn;
+
+    private String keyspace;
+
+    private String repoName;
+
+    private RefStore store;
+
+    public RefStoreSnapshotTest(boolean shared) {
+        this.shared = shared;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        keyspace = cassandra.getKeyspace();
+        conn = cassandra.connect(shared);
+        repoName = cassandra.getRepositoryName(shared);
+        store = new RefStore(repoName, conn);
+    }
+
+    @Test
+    public void testLogMerge() throws Exception {
+        Ref master = nonTag("refs/heads/master", ID1);
+        assertNull(store.putIfAbsent("refs/heads/master", master));
+        assertNull(store.putIfAbsent("refs/heads/old", nonTag(
+                "refs/heads/old", ID1)));
+        assertNull(store.putIfAbsent("HEAD", new SymbolicRef("HEAD",
+                master)));
+        assertEquals(3, store.values().size());
+        UUID snapshot = currentSnapshot();
+        assertNotNull(snapshot);
+
+        // Modified through another store, as by another process
+        RefStore other = new RefStore(repoName, conn);
+        assertTrue(other.replace("refs/heads/master", master,
+                nonTag("refs/heads/master", ID2)));
+        assertTrue(other.remove("refs/heads/old", nonTag("refs/heads/old",
+                ID1)));
+        assertTrue(other.putIfAbsentAsync("refs/tags/v1",
+                new ObjectIdRef.PeeledTag(Ref.Storage.NETWORK,
+                        "refs/tags/v1", ID1, ID2)).get());
+
+        Map<String, Ref> refs = assertSameAsTable();
+        assertEquals(ID2, refs.get("HEAD").getObjectId());
+        assertFalse(refs.containsKey("refs/heads/old"));
+        assertEquals(ID2, refs.get("refs/tags/v1").getPeeledObjectId());
+        assertEquals(snapshot, currentSnapshot());
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        assertTrue(store.values().isEmpty());
+        UUID snapshot = currentSnapshot();
+        putBranches(RefStore.LOG_LIMIT);
+        assertEquals(snapshot, currentSnapshot());
+
+        // Reaching the log limit rebuilds the snapshot, and the old one is
+        // deleted
+        assertEquals(RefStore.LOG_LIMIT, assertSameAsTable().size());
+        UUID rebuilt = currentSnapshot();
+        assertFalse(snapshot.equals(rebuilt));
+        assertEquals(RefStore.LOG_LIMIT, assertSameAsTable().size());
+        assertEquals(rebuilt, currentSnapshot());
+        for (Row row : conn.getSession().execute("SELECT id FROM " + keyspace
+                + "." + RefStore.SNAPSHOT_TABLE_NAME + " WHERE repo = ?",
+                repoName)) {
+            assertEquals(rebuilt, row.getUUID("id"));
+        }
+    }
+
+    @Test
+    public void testRebuildLeased() throws Exception {
+        assertTrue(store.values().isEmpty());
+        UUID snapshot = currentSnapshot();
+        putBranches(RefStore.LOG_LIMIT + 1);
+
+        // While another process holds the lease the whole log is merged
+        // onto the old snapshot
+        assertTrue(conn.getSession().execute("UPDATE " + keyspace + "."
+                + RefStore.SNAPSHOT_TABLE_NAME + " SET lease = now()"
+                + " WHERE repo = ? IF lease = null", repoName).wasApplied());
+        assertEquals(RefStore.LOG_LIMIT + 1, assertSameAsTable().size());
+        assertEquals(snapshot, currentSnapshot());
+
+        // Once it is released the snapshot is rebuilt
+        conn.getSession().execute("UPDATE " + keyspace + "."
+                + RefStore.SNAPSHOT_TABLE_NAME + " SET lease = null"
+                + " WHERE repo = ? IF lease != null", repoName);
+        assertEquals(RefStore.LOG_LIMIT + 1, assertSameAsTable().size());
+        assertFalse(snapshot.equals(currentSnapshot()));
+        assertNull(conn.getSession().execute("SELECT lease FROM " + keyspace
+                + "." + RefStore.SNAPSHOT_TABLE_NAME + " WHERE repo = ?",
+                repoName).one().getUUID("lease"));
+    }
+
+    /**
+     * Creates branches "refs/heads/b0" to "refs/heads/b(count - 1)", each
+     * of which is logged.
+     */
+    private void putBranches(int count) throws Exception {
+        List<ListenableFuture<Boolean>> puts =
+                new ArrayList<ListenableFuture<Boolean>>();
+        for (int i = 0; i < count; i++) {
+            String name = "refs/heads/b" + i;
+            puts.add(store.putIfAbsentAsync(name, nonTag(name, ID1)));
+            if (puts.size() == IN_FLIGHT) {
+                for (ListenableFuture<Boolean> put : puts) {
+                    assertTrue(put.get());
+                }
+                puts.clear();
+            }
+        }
+        for (ListenableFuture<Boolean> put : puts) {
+            assertTrue(put.get());
+        }
+    }
+
+    private Map<String, Ref> assertSameAsTable() throws Exception {
+        Map<String, Ref> expected = toMap(store.valuesFromTable());
+        Map<String, Ref> actual = toMap(store.values());
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Ref ref : expected.values()) {
+            Ref other = actual.get(ref.getName());
+            assertEquals(ref.getClass(), other.getClass());
+            assertEquals(ref.getObjectId(), other.getObjectId());
+            assertEquals(ref.getPeeledObjectId(), other.getPeeledObjectId());
+            assertEquals(ref.getLeaf().getName(), other.getLeaf().getName());
+        }
+        return actual;
+    }
+
+    @Test
+    public void testValuesWithPrefix() throws Exception {
+        assertEquals("refs/heads0", RefStore.rangeEnd("refs/heads/"));
+        assertEquals("a\ud800\udc00", RefStore.rangeEnd("a\uffff"));
+        assertEquals("b", RefStore.rangeEnd("a\udbff\udfff"));
+        assertEquals("\ue000", RefStore.rangeEnd("\ud7ff"));
+        assertNull(RefStore.rangeEnd("\udbff\udfff"));
+        Assume.assumeTrue(shared);
+
+        List<String> names = Arrays.asList("refs/x\uffff",
+                "refs/x\uffff\uffff/a", "refs/x\ud800\udc00", "refs/y",
+                "\udbff\udfff/a");
+        for (String name : names) {
+            assertNull(store.putIfAbsent(name, nonTag(name, ID1)));
+        }
+        assertEquals(Arrays.asList("refs/x\uffff", "refs/x\uffff\uffff/a"),
+                new ArrayList<String>(toMap(store.values("refs/x\uffff"))
+                        .keySet()));
+        assertEquals(4, store.values("refs/").size());
+        assertEquals(Arrays.asList("\udbff\udfff/a"),
+                new ArrayList<String>(toMap(store.values("\udbff\udfff"))
+                        .keySet()));
+    }
+
+    private UUID currentSnapshot() {
+        return conn.getSession().execute("SELECT current FROM " + keyspace
+                + "." + RefStore.SNAPSHOT_TABLE_NAME + " WHERE repo = ?",
+                repoName).one().getUUID("current");
+    }
+
+    private static Ref nonTag(String name, ObjectId id) {
+        return new ObjectIdRef.PeeledNonTag(Ref.Storage.NETWORK, name, id);
+    }
+
+    private static Map<String, Ref> toMap(Collection<Ref> refs) {
+        Map<String, Ref> map = new TreeMap<String, Ref>();
+        for (Ref ref : refs) {
+            map.put(ref.getName(), ref);
+        }
+        return map;
+    }
+}
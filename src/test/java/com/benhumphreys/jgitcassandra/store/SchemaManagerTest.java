@@ -0,0 +1,121 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import com.benhumphreys.jgitcassandra.CassandraRule;
+import com.datastax.driver.core.KeyspaceMetadata;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Requires a running Cassandra instance, so is skipped unless the
+ * "jgitcassandra.test.nodes" system property is set, e.g.
+ * -Djgitcassandra.test.nodes=127.0.0.1
+ */
+public class SchemaManagerTest {
+    @Rule
+    public final CassandraRule cassandra = new CassandraRule("schema_test");
+
+    private StoreConnection conn;
+
+    private String keyspace;
+
+    @Before
+    public void setUp() throws Exception {
+        conn = cassandra.connect();
+        keyspace = cassandra.getKeyspace();
+    }
+
+    @Test
+    public void testEnsureSchema() throws Exception {
+        SchemaManager schema = new SchemaManager(conn.getSession());
+        schema.ensureSchema(keyspace, true);
+        assertEquals(1, schema.size());
+        assertNotNull(metadata().getTable(RefStore.TABLE_NAME));
+        assertNotNull(metadata().getTable(ObjStore.DESC_TABLE_NAME));
+        assertNotNull(metadata().getTable(ObjStore.DATA_TABLE_NAME));
+
+        // Once known, the keyspace is not checked again
+        conn.getSession().execute("DROP TABLE " + keyspace + "."
+                + ObjStore.DATA_TABLE_NAME);
+        schema.ensureSchema(keyspace, true);
+        assertNull(metadata().getTable(ObjStore.DATA_TABLE_NAME));
+
+        // A new manager checks the metadata and creates only what is missing
+        SchemaManager other = new SchemaManager(conn.getSession());
+        other.ensureSchema(keyspace, true);
+        assertNotNull(metadata().getTable(ObjStore.DATA_TABLE_NAME));
+    }
+
+    @Test
+    public void testUnchunkedPackData() throws Exception {
+        // The layout of pack data before files were split into chunks
+        conn.getSession().execute("CREATE KEYSPACE " + keyspace
+                + " WITH replication = {'class':'SimpleStrategy',"
+                + " 'replication_factor':1};");
+        conn.getSession().execute("CREATE TABLE " + keyspace + "."
+                + ObjStore.DATA_TABLE_NAME
+                + " (name varchar PRIMARY KEY, data blob);");
+        DfsRepositoryDescription repoDesc =
+                new DfsRepositoryDescription(keyspace);
+        DfsPackDescription desc = new DfsPackDescription(repoDesc, "pack-1");
+        byte[] data = new byte[2 * ObjStore.CHUNK_SIZE + 100];
+        new Random(42).nextBytes(data);
+        conn.getSession().execute("INSERT INTO " + keyspace + "."
+                + ObjStore.DATA_TABLE_NAME + " (name, data) VALUES (?, ?)",
+                desc.getFileName(PackExt.PACK), ByteBuffer.wrap(data));
+
+        // Refused rather than failing on the first read
+        SchemaManager schema = new SchemaManager(conn.getSession());
+        assertEquals(Arrays.asList(keyspace), schema.findUnchunked(keyspace));
+        try {
+            schema.ensureSchema(keyspace, false);
+            fail("Used unchunked pack data");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        PackDataMigration migration =
+                new PackDataMigration(conn.getSession());
+        assertTrue(migration.findKeyspaces().contains(keyspace));
+        assertEquals(1, migration.migrate(keyspace));
+        assertEquals(0, migration.migrate(keyspace));
+        assertTrue(schema.findUnchunked(keyspace).isEmpty());
+        assertNull(metadata().getTable(PackDataMigration.OLD_TABLE_NAME));
+
+        ObjStore store = new ObjStore(keyspace, conn, repoDesc);
+        assertEquals(data.length, store.fileSize(desc, PackExt.PACK));
+        assertEquals(ByteBuffer.wrap(data),
+                store.readFile(desc, PackExt.PACK));
+    }
+
+    private KeyspaceMetadata metadata() {
+        return conn.getSession().getCluster().getMetadata()
+                .getKeyspace(keyspace);
+    }
+}
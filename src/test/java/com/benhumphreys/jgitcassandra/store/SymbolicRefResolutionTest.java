@@ -0,0 +1,90 @@
+/*
+ * A Cassandra backend for JGit
+ * Copyright 2015 Ben Humphreys
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.benhumphreys.jgitcassandra.store;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SymbolicRefResolutionTest {
+    private static final ObjectId ID = ObjectId.fromString(
+            "0123456789012345678901234567890123456789");
+
+    private Map<String, Ref> ids;
+
+    private Map<String, String> symbolic;
+
+    @Before
+    public void setUp() {
+        ids = new HashMap<String, Ref>();
+        ids.put("refs/heads/master", new ObjectIdRef.PeeledNonTag(
+                Ref.Storage.NETWORK, "refs/heads/master", ID));
+        symbolic = new HashMap<String, String>();
+    }
+
+    @Test
+    public void testResolve() {
+        Ref head = RefStore.resolve("HEAD", "refs/heads/master", ids,
+                symbolic, 0);
+        assertTrue(head.isSymbolic());
+        assertEquals("refs/heads/master", head.getTarget().getName());
+        assertEquals(ID, head.getObjectId());
+    }
+
+    @Test
+    public void testResolveChain() {
+        symbolic.put("refs/remotes/origin/HEAD", "refs/heads/master");
+        Ref head = RefStore.resolve("HEAD", "refs/remotes/origin/HEAD", ids,
+                symbolic, 0);
+        assertEquals("refs/remotes/origin/HEAD", head.getTarget().getName());
+        assertTrue(head.getTarget().isSymbolic());
+        assertEquals(head.getLeaf(), ids.get("refs/heads/master"));
+        assertEquals(ID, head.getObjectId());
+    }
+
+    @Test
+    public void testResolveMissing() {
+        Ref head = RefStore.resolve("HEAD", "refs/heads/unborn", ids,
+                symbolic, 0);
+        assertEquals("refs/heads/unborn", head.getLeaf().getName());
+        assertEquals(Ref.Storage.NEW, head.getLeaf().getStorage());
+        assertNull(head.getObjectId());
+    }
+
+    @Test
+    public void testResolveCycle() {
+        symbolic.put("refs/heads/a", "refs/heads/b");
+        symbolic.put("refs/heads/b", "refs/heads/a");
+        Ref a = RefStore.resolve("refs/heads/a", "refs/heads/b", ids,
+                symbolic, 0);
+        assertNull(a.getObjectId());
+        assertEquals(Ref.Storage.NEW, a.getLeaf().getStorage());
+
+        int depth = 0;
+        for (Ref r = a; r.isSymbolic(); r = r.getTarget()) {
+            depth++;
+        }
+        assertEquals(RefStore.MAX_SYMBOLIC_REF_DEPTH, depth);
+    }
+}